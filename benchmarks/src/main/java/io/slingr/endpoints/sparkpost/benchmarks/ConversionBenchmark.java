@@ -0,0 +1,96 @@
+package io.slingr.endpoints.sparkpost.benchmarks;
+
+import io.slingr.endpoints.utils.Json;
+import io.slingr.endpoints.ws.exchange.FunctionRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Conversion of a list of HTML values to text, calling the function once per value or once with the
+ * whole list. Values are either the same template on every operation, served from the conversion
+ * cache after the first one, or different on every operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+    private static final String TEMPLATE = "<html><body><h1>Your request was updated</h1>"
+            + "<p>Hi, your request <b>#%s</b> was updated by the support team.</p>"
+            + "<table><tr><td>Status</td><td>In progress</td></tr><tr><td>Priority</td><td>High</td></tr></table>"
+            + "<p>Reply to this email to add a comment, or <a href=\"https://example.com/requests\">open the request</a>.</p>"
+            + "</body></html>";
+
+    @Param({"10", "100"})
+    public int values;
+
+    @Param({"true", "false"})
+    public boolean cachedValues;
+
+    private StubbedEndpoint endpoint;
+    private FunctionRequest request;
+    private FunctionRequest batchRequest;
+    private long operations = 0;
+    private int index = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        endpoint = new StubbedEndpoint(Collections.emptyMap());
+        endpoint.endpointStarted();
+        request = mock(FunctionRequest.class, withSettings().stubOnly());
+        doAnswer(invocation -> Json.map().set("value", value(index))).when(request).getJsonParams();
+        batchRequest = mock(FunctionRequest.class, withSettings().stubOnly());
+        doAnswer(invocation -> {
+            final List<String> list = new ArrayList<>();
+            for (int i = 0; i < values; i++) {
+                list.add(value(i));
+            }
+            return Json.map().set("values", list);
+        }).when(batchRequest).getJsonParams();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        endpoint.endpointStopped("benchmark finished");
+    }
+
+    @Benchmark
+    public List<Json> convertEach() {
+        operations++;
+        final List<Json> results = new ArrayList<>();
+        for (index = 0; index < values; index++) {
+            results.add(endpoint.convertToText(request));
+        }
+        return results;
+    }
+
+    @Benchmark
+    public Json convertBatch() {
+        operations++;
+        return endpoint.convertToTextBatch(batchRequest);
+    }
+
+    private String value(int i) {
+        // a different value on each operation skips the conversion cache
+        return String.format(TEMPLATE, cachedValues ? String.valueOf(i) : i + "-" + operations);
+    }
+}
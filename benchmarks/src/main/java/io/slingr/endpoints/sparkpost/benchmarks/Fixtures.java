@@ -0,0 +1,223 @@
+package io.slingr.endpoints.sparkpost.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Realistic payloads of SparkPost: batches of events as they arrive on the event webhook, relay
+ * messages with their MIME content and attachments of transmissions. Fixtures are deterministic so
+ * results of different runs can be compared.
+ */
+public class Fixtures {
+    private static final String[] EVENT_TYPES = {"delivery", "open", "click", "injection", "bounce", "spam_complaint"};
+    private static final int EVENT_ID_DIGITS = 18;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Batch of events of the event webhook. Ids of the events can be renewed with {@link EventBatch#next()}
+     * so the batch is not discarded as a retry.
+     *
+     * @param events     number of events in the batch
+     * @param messageIds message ids used in the addresses of the events, the ones stored on the endpoint are correlated
+     */
+    public static EventBatch eventBatch(int events, List<String> messageIds) {
+        final Random random = new Random(events);
+        final StringBuilder sb = new StringBuilder(events * 1200);
+        final List<Integer> idOffsets = new ArrayList<>(events);
+        sb.append('[');
+        for (int i = 0; i < events; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            final String type = EVENT_TYPES[i % EVENT_TYPES.length];
+            final String messageId = messageIds.get(random.nextInt(messageIds.size()));
+            sb.append("{\"msys\":{\"").append(type.equals("open") || type.equals("click") ? "track_event" : "message_event").append("\":{");
+            sb.append("\"type\":\"").append(type).append("\",");
+            sb.append("\"event_id\":\"");
+            idOffsets.add(sb.length());
+            sb.append(String.format("%0" + EVENT_ID_DIGITS + "d", i)).append("\",");
+            sb.append("\"campaign_id\":\"Example Campaign Name\",");
+            sb.append("\"customer_id\":\"1\",");
+            sb.append("\"delv_method\":\"esmtp\",");
+            sb.append("\"friendly_from\":\"info+").append(messageId).append("@example.com\",");
+            sb.append("\"ip_address\":\"127.0.0.1\",");
+            sb.append("\"message_id\":\"0e0d94b7-9085-4e3c-ab30-").append(String.format("%012d", i)).append("\",");
+            sb.append("\"msg_from\":\"msprvs1=17827RA6TC=bounces-").append(random.nextInt(100000)).append("@sparkpostmail.com\",");
+            sb.append("\"msg_size\":\"").append(1000 + random.nextInt(50000)).append("\",");
+            sb.append("\"queue_time\":\"").append(random.nextInt(1000)).append("\",");
+            sb.append("\"raw_rcpt_to\":\"recipient").append(i).append("@example.org\",");
+            sb.append("\"rcpt_meta\":{\"customKey\":\"customValue\"},");
+            sb.append("\"rcpt_tags\":[\"male\",\"US\"],");
+            sb.append("\"rcpt_to\":\"recipient").append(i).append("@example.org\",");
+            sb.append("\"routing_domain\":\"example.org\",");
+            sb.append("\"sending_ip\":\"127.0.0.1\",");
+            sb.append("\"subject\":\"Summer deals are here!\",");
+            sb.append("\"template_id\":\"templ-1234\",");
+            sb.append("\"timestamp\":\"").append(1460989507 + i).append("\",");
+            sb.append("\"transmission_id\":\"65832150921904138\",");
+            sb.append("\"user_agent\":\"Mozilla/5.0 (Macintosh; Intel Mac OS X 10_11_6) AppleWebKit/537.36 (KHTML, like Gecko)\"");
+            sb.append("}}}");
+        }
+        sb.append(']');
+        final int[] offsets = new int[idOffsets.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = idOffsets.get(i);
+        }
+        return new EventBatch(sb.toString().getBytes(StandardCharsets.UTF_8), offsets);
+    }
+
+    /**
+     * Batch with one delivery event of an email just sent
+     *
+     * @param messageId message id used in the address of the sender
+     * @param eventId   id of the event, unique for each event
+     */
+    public static byte[] deliveryEvent(String messageId, long eventId) {
+        final StringBuilder sb = new StringBuilder(1024);
+        sb.append("[{\"msys\":{\"message_event\":{");
+        sb.append("\"type\":\"delivery\",");
+        sb.append("\"event_id\":\"").append(String.format("%0" + EVENT_ID_DIGITS + "d", eventId)).append("\",");
+        sb.append("\"friendly_from\":\"info+").append(messageId).append("@example.com\",");
+        sb.append("\"msg_from\":\"msprvs1=17827RA6TC=bounces-1@sparkpostmail.com\",");
+        sb.append("\"rcpt_to\":\"customer@example.org\",");
+        sb.append("\"subject\":\"Your request was updated\",");
+        sb.append("\"timestamp\":\"").append(System.currentTimeMillis() / 1000).append("\",");
+        sb.append("\"transmission_id\":\"65832150921904138\"");
+        sb.append("}}}]");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Batch of relay messages, each one with a multipart MIME body that contains an attachment
+     *
+     * @param messages   number of messages in the batch
+     * @param mimeSize   approximated size of the MIME content of each message
+     * @param messageIds message ids used in the recipient addresses, stored ones are responses
+     */
+    public static byte[] relayBatch(int messages, int mimeSize, List<String> messageIds) {
+        final Random random = new Random(messages);
+        final StringBuilder sb = new StringBuilder(messages * (mimeSize * 2 + 2000));
+        sb.append('[');
+        for (int i = 0; i < messages; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            final String messageId = messageIds.get(random.nextInt(messageIds.size()));
+            final String text = "Thanks, it works now.\n\nOn Tue, Apr 18, 2017 at 10:30 AM, Info <info@example.com> wrote:\n> Your request was updated";
+            final String html = "<div>Thanks, it works now.</div><blockquote>Your request was updated</blockquote>";
+            sb.append("{\"msys\":{\"relay_message\":{");
+            sb.append("\"content\":{");
+            sb.append("\"email_rfc822\":\"").append(escape(mime(text, html, mimeSize, random))).append("\",");
+            sb.append("\"email_rfc822_is_base64\":false,");
+            sb.append("\"headers\":[{\"Content-Type\":\"multipart/mixed; boundary=\\\"boundary-1\\\"\"},{\"Subject\":\"Re: Your request\"}],");
+            sb.append("\"html\":\"").append(escape(html)).append("\",");
+            sb.append("\"subject\":\"Re: Your request\",");
+            sb.append("\"text\":\"").append(escape(text)).append("\",");
+            sb.append("\"to\":[\"info+").append(messageId).append("@example.com\"]");
+            sb.append("},");
+            sb.append("\"customer_id\":\"1337\",");
+            sb.append("\"friendly_from\":\"customer").append(i).append("@example.org\",");
+            sb.append("\"msg_from\":\"customer").append(i).append("@example.org\",");
+            sb.append("\"rcpt_to\":\"info+").append(messageId).append("@example.com\",");
+            sb.append("\"webhook_id\":\"4839201967643219\"");
+            sb.append("}}}");
+        }
+        sb.append(']');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Random content of the given size encoded in base64, as returned by the files service
+     */
+    public static String attachment(int size) {
+        final byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return Base64.getEncoder().encodeToString(content);
+    }
+
+    private static String mime(String text, String html, int size, Random random) {
+        final byte[] attachment = new byte[Math.max(0, size * 3 / 4)];
+        random.nextBytes(attachment);
+        return "MIME-Version: 1.0\r\n" +
+                "From: Customer <customer@example.org>\r\n" +
+                "To: info@example.com\r\n" +
+                "Subject: Re: Your request\r\n" +
+                "Content-Type: multipart/mixed; boundary=\"boundary-1\"\r\n\r\n" +
+                "--boundary-1\r\n" +
+                "Content-Type: multipart/alternative; boundary=\"boundary-2\"\r\n\r\n" +
+                "--boundary-2\r\n" +
+                "Content-Type: text/plain; charset=UTF-8\r\n\r\n" +
+                text + "\r\n" +
+                "--boundary-2\r\n" +
+                "Content-Type: text/html; charset=UTF-8\r\n\r\n" +
+                html + "\r\n" +
+                "--boundary-2--\r\n" +
+                "--boundary-1\r\n" +
+                "Content-Type: application/pdf; name=\"report.pdf\"\r\n" +
+                "Content-Disposition: attachment; filename=\"report.pdf\"\r\n" +
+                "Content-Transfer-Encoding: base64\r\n\r\n" +
+                Base64.getMimeEncoder().encodeToString(attachment) + "\r\n" +
+                "--boundary-1--\r\n";
+    }
+
+    private static String escape(String value) {
+        final StringBuilder sb = new StringBuilder(value.length() + 64);
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Serialized batch of events where the ids of the events can be rewritten in place
+     */
+    public static class EventBatch {
+        private final byte[] body;
+        private final int[] idOffsets;
+        private long sequence = 0;
+
+        EventBatch(byte[] body, int[] idOffsets) {
+            this.body = body;
+            this.idOffsets = idOffsets;
+        }
+
+        /**
+         * Renews the ids of the events and returns the body, which is shared between calls
+         */
+        public byte[] next() {
+            for (int offset : idOffsets) {
+                long id = ++sequence;
+                for (int i = offset + EVENT_ID_DIGITS - 1; i >= offset; i--) {
+                    body[i] = (byte) ('0' + id % 10);
+                    id /= 10;
+                }
+            }
+            return body;
+        }
+
+        public int size() {
+            return idOffsets.length;
+        }
+    }
+}
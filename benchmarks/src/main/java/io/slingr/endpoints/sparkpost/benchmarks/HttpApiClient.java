@@ -0,0 +1,155 @@
+package io.slingr.endpoints.sparkpost.benchmarks;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+import io.slingr.endpoints.services.HttpService;
+import io.slingr.endpoints.sparkpost.ApiErrors;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Minimal HTTP client used by the load tools: it sends the requests of the endpoint to the (mock)
+ * SparkPost API and posts webhooks to a running endpoint.
+ */
+public class HttpApiClient {
+    private static final int MAX_CONNECTIONS = 200;
+
+    private final String baseUrl;
+    private final String authorization;
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * @param baseUrl       URL the paths of the requests are relative to
+     * @param authorization value of the 'Authorization' header
+     */
+    public HttpApiClient(String baseUrl, String authorization) {
+        this.baseUrl = StringUtils.removeEnd(baseUrl, "/") + "/";
+        this.authorization = authorization;
+        this.httpClient = HttpClients.custom()
+                .setMaxConnTotal(MAX_CONNECTIONS)
+                .setMaxConnPerRoute(MAX_CONNECTIONS)
+                .build();
+    }
+
+    /**
+     * HTTP service of the platform that sends the requests of the endpoint with this client
+     */
+    public HttpService toHttpService() {
+        return toHttpService(request -> {
+        });
+    }
+
+    /**
+     * HTTP service of the platform that sends the requests of the endpoint with this client
+     *
+     * @param postListener receives the POST requests before they are sent, in the thread of the endpoint
+     */
+    public HttpService toHttpService(Consumer<Json> postListener) {
+        final HttpService httpService = mock(HttpService.class, withSettings().stubOnly());
+        doAnswer(invocation -> get(argument(invocation.getArguments()))).when(httpService).defaultGetRequest(any(Json.class));
+        doAnswer(invocation -> get(argument(invocation.getArguments()))).when(httpService).defaultGetRequest(any(Json.class), anyString());
+        doAnswer(invocation -> {
+            postListener.accept(argument(invocation.getArguments()));
+            return post(argument(invocation.getArguments()));
+        }).when(httpService).defaultPostRequest(any(Json.class));
+        doAnswer(invocation -> {
+            postListener.accept(argument(invocation.getArguments()));
+            return post(argument(invocation.getArguments()));
+        }).when(httpService).defaultPostRequest(any(Json.class), anyString());
+        doAnswer(invocation -> delete(argument(invocation.getArguments()))).when(httpService).defaultDeleteRequest(any(Json.class));
+        return httpService;
+    }
+
+    public Json get(Json request) {
+        return execute(new HttpGet(url(request.string("path"))), null);
+    }
+
+    public Json post(Json request) {
+        final Json body = request.json("body");
+        return execute(new HttpPost(url(request.string("path"))), body != null ? body.toString().getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    public Json delete(Json request) {
+        return execute(new HttpDelete(url(request.string("path"))), null);
+    }
+
+    /**
+     * Posts a raw body and returns the HTTP status code of the response
+     */
+    public int post(String path, byte[] body) throws IOException {
+        return post(path, body, null);
+    }
+
+    /**
+     * Posts a raw body already encoded with the content encoding, like 'gzip', and returns the HTTP
+     * status code of the response
+     */
+    public int post(String path, byte[] body, String contentEncoding) throws IOException {
+        final HttpPost post = new HttpPost(url(path));
+        post.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+        if (contentEncoding != null) {
+            post.setHeader(HttpHeaders.CONTENT_ENCODING, contentEncoding);
+        }
+        post.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+        try (CloseableHttpResponse response = httpClient.execute(post)) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException ex) {
+            // nothing to do
+        }
+    }
+
+    private Json execute(HttpRequestBase request, byte[] body) {
+        request.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+        request.setHeader(HttpHeaders.ACCEPT, "application/json");
+        if (body != null && request instanceof HttpPost) {
+            ((HttpPost) request).setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+        }
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            final int status = response.getStatusLine().getStatusCode();
+            final String content = response.getEntity() != null ? EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) : null;
+            if (status >= 300) {
+                throw ApiErrors.fromResponse(String.format("Error when send request [%s %s]: %s",
+                        status, response.getStatusLine().getReasonPhrase(), content), response, content);
+            }
+            return StringUtils.isNotBlank(content) ? Json.parse(content) : Json.map();
+        } catch (IOException ex) {
+            throw EndpointException.permanent(ErrorCode.CLIENT, String.format("Exception when try to send request [%s]", ex.getMessage()), ex);
+        }
+    }
+
+    private String url(String path) {
+        return baseUrl + StringUtils.removeStart(StringUtils.defaultString(path), "/");
+    }
+
+    private static Json argument(Object[] arguments) {
+        return (Json) arguments[0];
+    }
+}
@@ -0,0 +1,393 @@
+package io.slingr.endpoints.sparkpost.benchmarks;
+
+import io.slingr.endpoints.sparkpost.Histogram;
+import io.slingr.endpoints.sparkpost.WebhookEventParser;
+import io.slingr.endpoints.utils.Base64Utils;
+import io.slingr.endpoints.utils.Json;
+import io.slingr.endpoints.ws.exchange.FunctionRequest;
+import io.slingr.endpoints.ws.exchange.WebServiceRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Load test of the endpoint on a single box. The endpoint runs in this process with the services of
+ * the platform stubbed, and it is started against the mock SparkPost API (see {@link MockSparkPostServer}),
+ * so the startup, the rate limiter and the retries of throttled transmissions work as in production.
+ *
+ * Emails are sent and webhook batches of events and relay messages are replayed at the target rates.
+ * Latencies are measured from the time each operation was scheduled, so operations delayed because
+ * the endpoint could not keep up are accounted. When '--endpointUrl' is given, webhooks are posted
+ * with the webhook credentials to '/' and '/inbound' of an endpoint running locally instead.
+ *
+ * With '--instances', several instances of the endpoint run in this process sharing the data stores,
+ * like the instances of an endpoint in the platform. Each operation goes to a random instance, and
+ * each email sent is followed by a delivery event posted to another instance, to check that events are
+ * correlated wherever they arrive. Some webhook batches can be posted again to another instance, as
+ * SparkPost does when it retries a batch, to check that retries are discarded.
+ *
+ * Arguments (all optional):
+ * <pre>
+ *   --duration=30            seconds to run
+ *   --instances=1            instances of the endpoint
+ *   --retryRatio=0           ratio of webhook batches posted again to another instance
+ *   --threads=32             threads executing each type of operation
+ *   --sendRate=100           emails sent per second
+ *   --attachments=0          attachments of each email
+ *   --attachmentSize=102400  size in bytes of each attachment
+ *   --webhookRate=10         batches of events per second
+ *   --eventsPerBatch=100     events in each batch
+ *   --relayRate=1            relay messages per second
+ *   --relaySize=10240        size in bytes of the MIME content of relay messages
+ *   --compressWebhooks=false post batches of events compressed with gzip
+ *   --latency=50             latency in milliseconds of the mock API
+ *   --latencyJitter=20       maximum random latency in milliseconds added by the mock API
+ *   --throttleRatio=0.01     ratio of requests rejected by the mock API with 429
+ *   --retryAfter=1           'Retry-After' in seconds of the rejected requests
+ *   --apiUrl=                use this API instead of starting the mock server
+ *   --endpointUrl=           post webhooks to this endpoint instead of the one in this process
+ *   --webhookUsername=sparkpost --webhookPassword=secret
+ *   --property.NAME=VALUE    properties of the endpoint, like --property.coalesceWindow=100
+ * </pre>
+ */
+public class LoadDriver {
+    private static final String API_KEY = "mock-api-key";
+    private static final int STORED_MESSAGES = 1000;
+    private static final long REPORT_PERIOD = 5; // seconds
+    private static final String BATCH_ID_HEADER = "X-MessageSystems-Batch-ID";
+    private static final long EVENT_ID_OFFSET = 500000000000000000L;
+
+    private final LoadOptions options;
+    private final List<StubbedEndpoint> endpoints = new ArrayList<>();
+    private final HttpApiClient webhookClient;
+    private final Fixtures.EventBatch eventBatch;
+    private final byte[] relayBatch;
+    private final int attachments;
+
+    private final Operation sends = new Operation("sends");
+    private final Operation webhooks = new Operation("webhooks");
+    private final Operation relays = new Operation("relays");
+
+    private final ThreadLocal<String> sentMessageId = new ThreadLocal<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final List<String> crossInstanceFunctionIds = Collections.synchronizedList(new ArrayList<>());
+    private final LongAdder retriedBatches = new LongAdder();
+
+    public LoadDriver(LoadOptions options, String apiUrl) {
+        this.options = options;
+
+        final Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("apiKey", API_KEY);
+        properties.put("apiUrl", apiUrl);
+        properties.put("inboundDomains", "example.com");
+        properties.putAll(options.getProperties());
+        final Map<String, Map<String, Json>> dataStores = new ConcurrentHashMap<>();
+        final HttpApiClient apiClient = new HttpApiClient(apiUrl, API_KEY);
+        for (int i = 0; i < Math.max(1, options.getInt("instances", 1)); i++) {
+            final StubbedEndpoint endpoint = new StubbedEndpoint(properties, dataStores);
+            endpoint.setHttpService(apiClient.toHttpService(this::captureMessageId));
+            endpoints.add(endpoint);
+        }
+        final StubbedEndpoint endpoint = endpoints.get(0);
+
+        final List<String> messageIds = new ArrayList<>();
+        for (int i = 0; i < STORED_MESSAGES * 2; i++) {
+            final String messageId = String.format("m%07d", i);
+            messageIds.add(messageId);
+            if (i % 2 == 0) {
+                endpoint.addMessage(messageId, "function-" + i);
+            }
+        }
+        eventBatch = Fixtures.eventBatch(options.getInt("eventsPerBatch", 100), messageIds);
+        relayBatch = Fixtures.relayBatch(1, options.getInt("relaySize", 10240), messageIds);
+
+        attachments = options.getInt("attachments", 0);
+        if (attachments > 0) {
+            final String attachment = Fixtures.attachment(options.getInt("attachmentSize", 102400));
+            for (StubbedEndpoint instance : endpoints) {
+                instance.addFile("file", attachment);
+            }
+        }
+
+        final String endpointUrl = options.getString("endpointUrl", null);
+        if (endpointUrl != null) {
+            final String username = options.getString("webhookUsername", StubbedEndpoint.WEBHOOK_USERNAME);
+            final String password = options.getString("webhookPassword", StubbedEndpoint.WEBHOOK_PASSWORD);
+            webhookClient = new HttpApiClient(endpointUrl, "Basic " + Base64Utils.encodeBasicAuthorization(username, password));
+        } else {
+            webhookClient = null;
+        }
+    }
+
+    public void run() throws InterruptedException {
+        for (StubbedEndpoint endpoint : endpoints) {
+            endpoint.endpointStarted();
+        }
+
+        final long duration = options.getLong("duration", 30);
+        final int threads = options.getInt("threads", 32);
+        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(3);
+        // each type of operation has its own threads, so slow sends do not delay webhooks
+        final List<ExecutorService> workers = new ArrayList<>();
+        workers.add(schedule(scheduler, threads, options.getDouble("sendRate", 100), sends, this::send));
+        workers.add(schedule(scheduler, threads, options.getDouble("webhookRate", 10), webhooks, this::webhook));
+        workers.add(schedule(scheduler, threads, options.getDouble("relayRate", 1), relays, this::relay));
+
+        final long start = System.nanoTime();
+        for (long elapsed = 0; elapsed < duration; elapsed += REPORT_PERIOD) {
+            TimeUnit.SECONDS.sleep(Math.min(REPORT_PERIOD, duration - elapsed));
+            System.out.println(String.format("[%ss] %s | %s | %s", Math.min(elapsed + REPORT_PERIOD, duration),
+                    sends.progress(), webhooks.progress(), relays.progress()));
+        }
+        scheduler.shutdownNow();
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+        for (ExecutorService worker : workers) {
+            if (!worker.awaitTermination(60, TimeUnit.SECONDS)) {
+                worker.shutdownNow();
+            }
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println();
+        System.out.println(sends.report(seconds));
+        System.out.println(webhooks.report(seconds));
+        System.out.println(relays.report(seconds));
+        // stopping the instances processes the queued webhooks and saves the pending records
+        for (StubbedEndpoint endpoint : endpoints) {
+            endpoint.endpointStopped("load test finished");
+        }
+        long sentEvents = 0;
+        long duplicatedBatches = 0;
+        for (StubbedEndpoint endpoint : endpoints) {
+            sentEvents += endpoint.getSentEvents();
+            final Json gauges = endpoint.getMetrics(null).json("gauges");
+            duplicatedBatches += gauges != null && gauges.longInteger("webhook_batches_duplicated") != null ? gauges.longInteger("webhook_batches_duplicated") : 0;
+        }
+        System.out.println();
+        System.out.println(String.format("Service events sent to the app: %.1f/s", sentEvents / seconds));
+        if (endpoints.size() > 1) {
+            int correlated = 0;
+            synchronized (crossInstanceFunctionIds) {
+                for (String functionId : crossInstanceFunctionIds) {
+                    for (StubbedEndpoint endpoint : endpoints) {
+                        if (endpoint.getCorrelatedEvents(functionId) > 0) {
+                            correlated++;
+                            break;
+                        }
+                    }
+                }
+            }
+            System.out.println(String.format("Events correlated by another instance: [%s] of [%s]", correlated, crossInstanceFunctionIds.size()));
+            System.out.println(String.format("Retried webhook batches discarded: [%s] of [%s]", duplicatedBatches, retriedBatches.sum()));
+        }
+        for (int i = 0; i < endpoints.size(); i++) {
+            System.out.println(String.format("Endpoint metrics%s: %s", endpoints.size() > 1 ? " [" + (i + 1) + "]" : "", endpoints.get(i).getMetrics(null)));
+        }
+
+        if (webhookClient != null) {
+            webhookClient.close();
+        }
+    }
+
+    private int send() throws Exception {
+        final Json content = Json.map()
+                .set("subject", "Your request was updated")
+                .set("text", "Hi, your request was updated. Reply to this email to add a comment.");
+        if (attachments > 0) {
+            final List<Json> files = new ArrayList<>();
+            for (int i = 0; i < attachments; i++) {
+                files.add(Json.map().set("name", "report-" + i + ".pdf").set("type", "application/pdf").set("fileId", "file:" + i));
+            }
+            content.set("attachments", files);
+        }
+        final List<Json> recipients = new ArrayList<>();
+        recipients.add(Json.map().set("address", Json.map().set("email", "customer@example.org")));
+        final Json body = Json.map().set("content", content).set("recipients", recipients);
+
+        final FunctionRequest request = mock(FunctionRequest.class, withSettings().stubOnly());
+        final String functionId = endpoints.size() > 1 ? "send-" + sequence.incrementAndGet() : "function-" + ThreadLocalRandom.current().nextInt(STORED_MESSAGES);
+        when(request.getFunctionId()).thenReturn(functionId);
+        when(request.getJsonParams()).thenReturn(body);
+        final int instance = ThreadLocalRandom.current().nextInt(endpoints.size());
+        sentMessageId.remove();
+        endpoints.get(instance).sendEmail(request);
+
+        // the first event of the email arrives to another instance
+        final String messageId = sentMessageId.get();
+        if (endpoints.size() > 1 && messageId != null) {
+            crossInstanceFunctionIds.add(functionId);
+            post(endpoints.get((instance + 1) % endpoints.size()), "/", Fixtures.deliveryEvent(messageId, EVENT_ID_OFFSET + sequence.incrementAndGet()), null);
+        }
+        return 1;
+    }
+
+    /**
+     * Keeps the message id of the transmission sent by the current thread, from the address of the sender
+     */
+    private void captureMessageId(Json request) {
+        final Json body = request.json("body");
+        final Json content = body != null ? body.json("content") : null;
+        if (content != null && String.valueOf(request.string("path")).contains("transmissions")) {
+            final Object from = content.object("from");
+            final String address = from instanceof Json ? ((Json) from).string("email") : from != null ? from.toString() : null;
+            sentMessageId.set(WebhookEventParser.extractId(address));
+        }
+    }
+
+    private int webhook() throws Exception {
+        final byte[] body;
+        synchronized (eventBatch) {
+            // ids are renewed, so the batch is not discarded as a retry
+            body = eventBatch.next().clone();
+        }
+        final int instance = ThreadLocalRandom.current().nextInt(endpoints.size());
+        final String batchId = UUID.randomUUID().toString();
+        post(endpoints.get(instance), "/", body, batchId);
+        if (endpoints.size() > 1 && ThreadLocalRandom.current().nextDouble() < options.getDouble("retryRatio", 0)) {
+            // retry of SparkPost received by another instance
+            retriedBatches.increment();
+            post(endpoints.get((instance + 1) % endpoints.size()), "/", body, batchId);
+        }
+        return eventBatch.size();
+    }
+
+    private int relay() throws Exception {
+        post(endpoints.get(ThreadLocalRandom.current().nextInt(endpoints.size())), "/inbound", relayBatch, null);
+        return 1;
+    }
+
+    private void post(StubbedEndpoint endpoint, String path, byte[] body, String batchId) throws Exception {
+        // relay messages are not compressed, the endpoint rejects compressed bodies in '/inbound'
+        final String contentEncoding = options.getBoolean("compressWebhooks", false) && "/".equals(path) ? "gzip" : null;
+        if (contentEncoding != null) {
+            body = gzip(body);
+        }
+        if (webhookClient != null) {
+            final int status = webhookClient.post(path, body, contentEncoding);
+            if (status >= 300) {
+                throw new IllegalStateException(String.format("Webhook rejected with status [%s]", status));
+            }
+        } else {
+            // relay messages are processed by the event webhook too, it does not need the platform to convert the request
+            final WebServiceRequest request = mock(WebServiceRequest.class, withSettings().stubOnly());
+            when(request.getHeader("Authorization")).thenReturn(StubbedEndpoint.BASIC_AUTH);
+            when(request.getHeader(BATCH_ID_HEADER)).thenReturn(batchId);
+            when(request.getHeader("Content-Encoding")).thenReturn(contentEncoding);
+            when(request.getBody()).thenReturn(body);
+            endpoint.webhookProcessor(request);
+        }
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(os)) {
+            gzip.write(body);
+        }
+        return os.toByteArray();
+    }
+
+    private static ExecutorService schedule(ScheduledExecutorService scheduler, int threads, double rate, Operation operation, Task task) {
+        final ExecutorService workers = Executors.newFixedThreadPool(threads);
+        if (rate <= 0) {
+            return workers;
+        }
+        final long period = Math.max(1, (long) (1000000 / rate));
+        scheduler.scheduleAtFixedRate(() -> {
+            final long scheduled = System.nanoTime();
+            workers.submit(() -> operation.execute(task, scheduled));
+        }, 0, period, TimeUnit.MICROSECONDS);
+        return workers;
+    }
+
+    private interface Task {
+        /**
+         * Executes the operation and returns the number of events it contained
+         */
+        int execute() throws Exception;
+    }
+
+    /**
+     * Counters and latencies of a type of operation
+     */
+    private static class Operation {
+        private final String name;
+        private final LongAdder ok = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder events = new LongAdder();
+        private final Histogram latency = new Histogram();
+        private volatile String lastError;
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        void execute(Task task, long scheduled) {
+            try {
+                events.add(task.execute());
+                ok.increment();
+            } catch (Exception ex) {
+                failed.increment();
+                lastError = ex.getMessage();
+            } finally {
+                latency.record((System.nanoTime() - scheduled) / 1000);
+            }
+        }
+
+        String progress() {
+            return String.format("%s ok [%s] failed [%s] p99 [%.1fms]", name, ok.sum(), failed.sum(), latency.getPercentile(99) / 1000.0);
+        }
+
+        String report(double seconds) {
+            return String.format("%-8s ok [%s] failed [%s] rate [%.1f/s] events [%.1f/s] latency p50 [%.1fms] p99 [%.1fms] max [%.1fms]%s",
+                    name, ok.sum(), failed.sum(), ok.sum() / seconds, events.sum() / seconds,
+                    latency.getPercentile(50) / 1000.0, latency.getPercentile(99) / 1000.0, latency.getMax() / 1000.0,
+                    lastError != null ? String.format(" - last error [%s]", lastError) : "");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final LoadOptions options = new LoadOptions(args);
+        String apiUrl = options.getString("apiUrl", null);
+        MockSparkPostServer server = null;
+        if (apiUrl == null) {
+            server = new MockSparkPostServer(0,
+                    options.getLong("latency", 50),
+                    options.getLong("latencyJitter", 20),
+                    options.getDouble("throttleRatio", 0.01),
+                    options.getInt("retryAfter", 1));
+            server.start();
+            apiUrl = server.getUrl();
+            System.out.println(String.format("Mock SparkPost API listening on [%s]", apiUrl));
+        }
+        try {
+            new LoadDriver(options, apiUrl).run();
+        } finally {
+            if (server != null) {
+                System.out.println(String.format("Mock SparkPost API: %s", server));
+                server.stop();
+            }
+        }
+        System.exit(0);
+    }
+}
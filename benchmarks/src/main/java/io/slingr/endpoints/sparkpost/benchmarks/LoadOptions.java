@@ -0,0 +1,62 @@
+package io.slingr.endpoints.sparkpost.benchmarks;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Arguments of the load tools, in the format '--name=value'
+ */
+public class LoadOptions {
+    private static final String PROPERTY_PREFIX = "property.";
+
+    private final Map<String, String> values = new LinkedHashMap<>();
+
+    public LoadOptions(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException(String.format("Invalid argument [%s], the format is --name=value", arg));
+            }
+            values.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+    }
+
+    public String getString(String name, String defaultValue) {
+        final String value = values.get(name);
+        return StringUtils.isNotBlank(value) ? value.trim() : defaultValue;
+    }
+
+    public int getInt(String name, int defaultValue) {
+        final String value = getString(name, null);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    public long getLong(String name, long defaultValue) {
+        final String value = getString(name, null);
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+
+    public double getDouble(String name, double defaultValue) {
+        final String value = getString(name, null);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        final String value = getString(name, null);
+        return value != null ? "true".equalsIgnoreCase(value) : defaultValue;
+    }
+
+    /**
+     * Properties of the endpoint, given as '--property.name=value'
+     */
+    public Map<String, String> getProperties() {
+        final Map<String, String> properties = new LinkedHashMap<>();
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            if (value.getKey().startsWith(PROPERTY_PREFIX)) {
+                properties.put(value.getKey().substring(PROPERTY_PREFIX.length()), value.getValue());
+            }
+        }
+        return properties;
+    }
+}
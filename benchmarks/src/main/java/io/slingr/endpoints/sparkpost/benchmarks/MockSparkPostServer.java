@@ -0,0 +1,309 @@
+package io.slingr.endpoints.sparkpost.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local server that implements the parts of the SparkPost API used by the endpoint: transmissions,
+ * account, inbound domains, relay webhooks and the suppression list (always empty). Responses can be delayed and a ratio of the requests
+ * can be rejected with '429 Too Many Requests', so the endpoint can be load tested without SparkPost.
+ * Request bodies compressed with gzip are accepted.
+ *
+ * Run it with the main method and set the 'API URL' of the endpoint to the URL it prints.
+ */
+public class MockSparkPostServer {
+    private static final String API_PREFIX = "/api/v1/";
+    private static final int THREADS = 64;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latency;
+    private final long latencyJitter;
+    private final double throttleRatio;
+    private final int retryAfter;
+
+    private final Map<String, Json> inboundDomains = new ConcurrentHashMap<>();
+    private final Map<String, Json> relayWebhooks = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong(11668787484950529L);
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder transmissions = new LongAdder();
+    private final LongAdder recipients = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    /**
+     * @param port          port to listen on, zero to use any free port
+     * @param latency       time in milliseconds to wait before answering each request
+     * @param latencyJitter maximum random time in milliseconds added to the latency
+     * @param throttleRatio ratio (0 to 1) of the requests rejected with 429
+     * @param retryAfter    value in seconds of the 'Retry-After' header of rejected requests
+     */
+    public MockSparkPostServer(int port, long latency, long latencyJitter, double throttleRatio, int retryAfter) throws IOException {
+        this.latency = latency;
+        this.latencyJitter = latencyJitter;
+        this.throttleRatio = throttleRatio;
+        this.retryAfter = retryAfter;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+        this.executor = Executors.newFixedThreadPool(THREADS);
+        this.server.setExecutor(executor);
+        this.server.createContext("/", this::handle);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Base URL of the API, to be used as the 'API URL' of the endpoint
+     */
+    public String getUrl() {
+        return String.format("http://localhost:%s/", server.getAddress().getPort());
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    public long getTransmissions() {
+        return transmissions.sum();
+    }
+
+    public long getRecipients() {
+        return recipients.sum();
+    }
+
+    /**
+     * Bytes of the request bodies as they were received, before decompressing them
+     */
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("requests [%s], throttled [%s], transmissions [%s], recipients [%s], bytes received [%s]",
+                getRequests(), getThrottled(), getTransmissions(), getRecipients(), getBytesReceived());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.increment();
+            final byte[] received = read(exchange.getRequestBody());
+            bytesReceived.add(received.length);
+            final byte[] body = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+                    ? read(new GZIPInputStream(new ByteArrayInputStream(received))) : received;
+            delay();
+
+            if (StringUtils.isBlank(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                respond(exchange, 401, error("Unauthorized."));
+                return;
+            }
+            if (throttleRatio > 0 && ThreadLocalRandom.current().nextDouble() < throttleRatio) {
+                throttled.increment();
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+                respond(exchange, 429, error("Too many requests"));
+                return;
+            }
+
+            final String method = exchange.getRequestMethod();
+            final String path = StringUtils.removeStart(exchange.getRequestURI().getPath().replaceAll("/+", "/"), API_PREFIX);
+            final String resource = path.contains("/") ? path.substring(0, path.indexOf('/')) : path;
+            final String id = path.contains("/") ? path.substring(path.indexOf('/') + 1) : null;
+            switch (resource) {
+                case "transmissions":
+                    if ("POST".equals(method)) {
+                        respond(exchange, 200, transmission(body));
+                        return;
+                    }
+                    break;
+                case "account":
+                    if ("GET".equals(method)) {
+                        respond(exchange, 200, results(Json.map()
+                                .set("company_name", "Mock")
+                                .set("customer_id", 1337)
+                                .set("status", "active")));
+                        return;
+                    }
+                    break;
+                case "suppression-list":
+                    if ("GET".equals(method)) {
+                        respond(exchange, 200, Json.map().set("results", new ArrayList<>()).set("total_count", 0));
+                        return;
+                    }
+                    break;
+                case "inbound-domains":
+                    if (handleResource(exchange, method, id, body, inboundDomains, "domain")) {
+                        return;
+                    }
+                    break;
+                case "relay-webhooks":
+                    if (handleResource(exchange, method, id, body, relayWebhooks, null)) {
+                        return;
+                    }
+                    break;
+                default:
+            }
+            respond(exchange, 404, error(String.format("Resource [%s %s] not found", method, exchange.getRequestURI().getPath())));
+        } catch (Exception ex) {
+            respond(exchange, 500, error(String.format("Exception in mock server [%s]", ex.getMessage())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * List, create, retrieve and delete the items of a resource
+     *
+     * @param idField field of the item used as id, or null to generate the ids
+     */
+    private boolean handleResource(HttpExchange exchange, String method, String id, byte[] body, Map<String, Json> items, String idField) throws IOException {
+        if (StringUtils.isBlank(id)) {
+            if ("GET".equals(method)) {
+                respond(exchange, 200, Json.map().set("results", new ArrayList<>(items.values())));
+                return true;
+            } else if ("POST".equals(method)) {
+                final Json item = Json.parse(new String(body, StandardCharsets.UTF_8));
+                final String itemId = idField != null ? item.string(idField) : String.valueOf(ids.incrementAndGet());
+                if (idField == null) {
+                    item.set("id", itemId);
+                }
+                // like SparkPost, a domain can be registered once and used by one relay webhook
+                synchronized (items) {
+                    if (items.containsKey(itemId.toLowerCase()) || matchesDomain(items, item)) {
+                        respond(exchange, 409, error("Resource already exists"));
+                        return true;
+                    }
+                    items.put(itemId.toLowerCase(), item);
+                }
+                respond(exchange, 200, results(Json.map().set("id", itemId)));
+                return true;
+            }
+        } else if ("GET".equals(method) && items.containsKey(id.toLowerCase())) {
+            respond(exchange, 200, results(items.get(id.toLowerCase())));
+            return true;
+        } else if ("DELETE".equals(method) && items.remove(id.toLowerCase()) != null) {
+            respond(exchange, 204, null);
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean matchesDomain(Map<String, Json> items, Json item) {
+        final Json match = item.json("match");
+        if (match == null || match.string("domain") == null) {
+            return false;
+        }
+        for (Json existing : items.values()) {
+            final Json existingMatch = existing.json("match");
+            if (existingMatch != null && match.string("domain").equalsIgnoreCase(existingMatch.string("domain"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Json transmission(byte[] body) {
+        final Json transmission = Json.parse(new String(body, StandardCharsets.UTF_8));
+        int accepted = 1;
+        try {
+            accepted = Math.max(1, transmission.jsons("recipients").size());
+        } catch (Exception ex) {
+            // stored recipient list
+        }
+        transmissions.increment();
+        recipients.add(accepted);
+        return results(Json.map()
+                .set("total_rejected_recipients", 0)
+                .set("total_accepted_recipients", accepted)
+                .set("id", String.valueOf(ids.incrementAndGet())));
+    }
+
+    private void delay() throws InterruptedException {
+        final long wait = latency + (latencyJitter > 0 ? ThreadLocalRandom.current().nextLong(latencyJitter + 1) : 0);
+        if (wait > 0) {
+            TimeUnit.MILLISECONDS.sleep(wait);
+        }
+    }
+
+    private static Json results(Json results) {
+        return Json.map().set("results", results);
+    }
+
+    private static Json error(String message) {
+        final ArrayList<Json> errors = new ArrayList<>();
+        errors.add(Json.map().set("message", message));
+        return Json.map().set("errors", errors);
+    }
+
+    private static void respond(HttpExchange exchange, int status, Json body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        final byte[] content = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, content.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(content);
+        }
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            os.write(buffer, 0, read);
+        }
+        return os.toByteArray();
+    }
+
+    /**
+     * Arguments: --port=8089 --latency=50 --latencyJitter=20 --throttleRatio=0.01 --retryAfter=1
+     */
+    public static void main(String[] args) throws Exception {
+        final LoadOptions options = new LoadOptions(args);
+        final MockSparkPostServer server = new MockSparkPostServer(
+                options.getInt("port", 8089),
+                options.getLong("latency", 50),
+                options.getLong("latencyJitter", 20),
+                options.getDouble("throttleRatio", 0),
+                options.getInt("retryAfter", 1));
+        server.start();
+        System.out.println(String.format("Mock SparkPost API listening on [%s]", server.getUrl()));
+        while (!Thread.currentThread().isInterrupted()) {
+            TimeUnit.SECONDS.sleep(10);
+            System.out.println(server);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package io.slingr.endpoints.sparkpost.benchmarks;
+
+import io.slingr.endpoints.ws.exchange.WebServiceRequest;
+import io.slingr.endpoints.ws.exchange.WebServiceResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Processing of relay messages with large MIME bodies: extraction of the message id from the
+ * recipient, correlation with the function that sent the email and dispatch of the response or email
+ * events. With the offload of inbound attachments, the MIME content is parsed and the attachment is
+ * uploaded to the files service.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelayMessageBenchmark {
+    private static final int STORED_MESSAGES = 100;
+
+    @Param({"1", "10"})
+    public int messages;
+
+    @Param({"10240", "1048576"})
+    public int mimeSize;
+
+    @Param({"false", "true"})
+    public boolean offloadInboundAttachments;
+
+    private StubbedEndpoint endpoint;
+    private WebServiceRequest request;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        endpoint = new StubbedEndpoint(Collections.singletonMap("offloadInboundAttachments", String.valueOf(offloadInboundAttachments)));
+        final List<String> messageIds = new ArrayList<>();
+        for (int i = 0; i < STORED_MESSAGES * 2; i++) {
+            final String messageId = String.format("r%07d", i);
+            messageIds.add(messageId);
+            if (i % 2 == 0) {
+                // half of the messages are responses
+                endpoint.addMessage(messageId, "function-" + i);
+            }
+        }
+        request = mock(WebServiceRequest.class, withSettings().stubOnly());
+        when(request.getHeader("Authorization")).thenReturn(StubbedEndpoint.BASIC_AUTH);
+        when(request.getBody()).thenReturn(Fixtures.relayBatch(messages, mimeSize, messageIds));
+    }
+
+    @TearDown(Level.Trial)
+    public void check() {
+        if (endpoint.getSentEvents() == 0) {
+            throw new IllegalStateException("No events were sent by the endpoint");
+        }
+        if (offloadInboundAttachments && endpoint.getUploadedBytes() == 0) {
+            throw new IllegalStateException("No attachments were uploaded by the endpoint");
+        }
+    }
+
+    @Benchmark
+    public WebServiceResponse relayMessages() {
+        return endpoint.webhookProcessor(request);
+    }
+}
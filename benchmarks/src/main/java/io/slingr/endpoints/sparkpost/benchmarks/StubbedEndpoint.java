@@ -0,0 +1,236 @@
+package io.slingr.endpoints.sparkpost.benchmarks;
+
+import io.slingr.endpoints.services.AppLogs;
+import io.slingr.endpoints.services.Events;
+import io.slingr.endpoints.services.Files;
+import io.slingr.endpoints.services.HttpService;
+import io.slingr.endpoints.services.Properties;
+import io.slingr.endpoints.services.datastores.DataStore;
+import io.slingr.endpoints.sparkpost.InboundMessageOffloader;
+import io.slingr.endpoints.sparkpost.SparkPostEndpoint;
+import io.slingr.endpoints.utils.Base64Utils;
+import io.slingr.endpoints.utils.Json;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * SparkPost endpoint where the services of the platform are replaced by in-process stubs: data
+ * stores keep the documents in maps, events are counted, files are served from memory and requests
+ * to the SparkPost API return a fixed response. Uploaded files are read and discarded. Properties
+ * are injected as the platform does, so by default the endpoint is not started and no request
+ * leaves the process.
+ *
+ * Several endpoints can share the same data stores to run as instances of the same endpoint.
+ */
+public class StubbedEndpoint extends SparkPostEndpoint {
+    public static final String SENDER_EMAIL = "info@example.com";
+    public static final String WEBHOOK_USERNAME = "sparkpost";
+    public static final String WEBHOOK_PASSWORD = "secret";
+    public static final String BASIC_AUTH = "Basic " + Base64Utils.encodeBasicAuthorization(WEBHOOK_USERNAME, WEBHOOK_PASSWORD);
+
+    private final Map<String, Json> store;
+    private final Map<String, Object> fileContents = new ConcurrentHashMap<>();
+    private final LongAdder sentEvents = new LongAdder();
+    private final Map<String, LongAdder> correlatedEvents = new ConcurrentHashMap<>();
+    private final LongAdder transmissions = new LongAdder();
+    private final LongAdder uploadedBytes = new LongAdder();
+
+    private final Events events;
+    private final Files files;
+    private HttpService httpService;
+    private final Properties properties;
+
+    public StubbedEndpoint(Map<String, String> endpointProperties) {
+        this(endpointProperties, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * @param dataStores documents of the data stores by name, shared with the other instances
+     */
+    public StubbedEndpoint(Map<String, String> endpointProperties, Map<String, Map<String, Json>> dataStores) {
+        store = dataStores.computeIfAbsent("emails", name -> new ConcurrentHashMap<>());
+        events = mock(Events.class, withSettings().stubOnly());
+        doAnswer(invocation -> {
+            sentEvents.increment();
+            return null;
+        }).when(events).send(anyString(), any());
+        doAnswer(invocation -> {
+            sentEvents.increment();
+            correlatedEvents.computeIfAbsent(String.valueOf(invocation.getArguments()[2]), functionId -> new LongAdder()).increment();
+            return null;
+        }).when(events).send(anyString(), any(), anyString());
+
+        files = mock(Files.class, withSettings().stubOnly());
+        doAnswer(invocation -> fileContents.get(defaultFileId(invocation.getArguments()[0])))
+                .when(files).download(anyString(), anyBoolean());
+        doAnswer(invocation -> {
+            // streamed downloads return the decoded content
+            final Object content = fileContents.get(defaultFileId(invocation.getArguments()[0]));
+            return content != null ? new ByteArrayInputStream(Base64.getDecoder().decode(content.toString())) : null;
+        }).when(files).download(anyString());
+        doAnswer(invocation -> {
+            final InputStream is = (InputStream) invocation.getArguments()[1];
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                uploadedBytes.add(read);
+            }
+            return Json.map().set("fileId", "uploaded-" + uploadedBytes.sum());
+        }).when(files).upload(anyString(), any(InputStream.class), anyString());
+
+        final Json response = Json.map().set("results", Json.map()
+                .set("total_rejected_recipients", 0)
+                .set("total_accepted_recipients", 1)
+                .set("id", "11668787484950529"));
+        httpService = mock(HttpService.class, withSettings().stubOnly());
+        doAnswer(invocation -> {
+            transmissions.increment();
+            return response;
+        }).when(httpService).defaultPostRequest(any(Json.class));
+
+        properties = mock(Properties.class, withSettings().stubOnly());
+
+        setField("emails", dataStore(store));
+        setField("settings", dataStore(dataStores.computeIfAbsent("settings", name -> new ConcurrentHashMap<>())));
+        setField("webhookBatches", dataStore(dataStores.computeIfAbsent("webhookBatches", name -> new ConcurrentHashMap<>())));
+        setField("appLogger", mock(AppLogs.class, withSettings().stubOnly()));
+        setField("senderEmail", SENDER_EMAIL);
+        setField("sender", SENDER_EMAIL.substring(0, SENDER_EMAIL.indexOf("@")));
+        setField("domain", SENDER_EMAIL.substring(SENDER_EMAIL.indexOf("@") + 1));
+        setField("webhookUsername", WEBHOOK_USERNAME);
+        setField("webhookPassword", WEBHOOK_PASSWORD);
+        setField("basicAuth", BASIC_AUTH);
+        for (Map.Entry<String, String> property : endpointProperties.entrySet()) {
+            setField(property.getKey(), property.getValue());
+        }
+        // the endpoint is not started, so the components created on startup are set here
+        if ("true".equalsIgnoreCase(endpointProperties.get("offloadInboundAttachments"))) {
+            setField("inboundMessageOffloader", new InboundMessageOffloader(files));
+        }
+    }
+
+    @Override
+    public Events events() {
+        return events;
+    }
+
+    @Override
+    public Files files() {
+        return files;
+    }
+
+    @Override
+    public HttpService httpService() {
+        return httpService;
+    }
+
+    @Override
+    public Properties properties() {
+        return properties;
+    }
+
+    /**
+     * Replaces the stub of the HTTP service, for example to send the requests to a mock server
+     */
+    public void setHttpService(HttpService httpService) {
+        this.httpService = httpService;
+    }
+
+    /**
+     * Stores the correlation between the message and the function, as a previous send would do
+     */
+    public void addMessage(String messageId, String functionId) {
+        store.put(messageId, Json.map().set("_id", messageId).set("functionId", functionId));
+    }
+
+    /**
+     * Content returned by the files service for every file id that starts with the given id
+     */
+    public void addFile(String fileId, Object content) {
+        fileContents.put(fileId, content);
+    }
+
+    public long getSentEvents() {
+        return sentEvents.sum();
+    }
+
+    /**
+     * Number of events sent to the app as responses of the function
+     */
+    public long getCorrelatedEvents(String functionId) {
+        final LongAdder count = correlatedEvents.get(functionId);
+        return count != null ? count.sum() : 0;
+    }
+
+    public long getTransmissions() {
+        return transmissions.sum();
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes.sum();
+    }
+
+    /**
+     * File ids can have a suffix (separated by ':') to avoid the attachment cache of the endpoint
+     */
+    private static String defaultFileId(Object fileId) {
+        final String id = String.valueOf(fileId);
+        final int separator = id.indexOf(':');
+        return separator > 0 ? id.substring(0, separator) : id;
+    }
+
+    private static DataStore dataStore(Map<String, Json> documents) {
+        final DataStore dataStore = mock(DataStore.class, withSettings().stubOnly());
+        doAnswer(invocation -> documents.get(String.valueOf(invocation.getArguments()[0])))
+                .when(dataStore).findById(anyString());
+        doAnswer(invocation -> {
+            final Json document = (Json) invocation.getArguments()[0];
+            documents.put(document.string("_id"), document);
+            return document;
+        }).when(dataStore).save(any(Json.class));
+        doAnswer(invocation -> documents.remove(String.valueOf(invocation.getArguments()[0])) != null)
+                .when(dataStore).removeById(anyString());
+        doAnswer(invocation -> {
+            // documents with all the fields of the filter
+            final Json filter = (Json) invocation.getArguments()[0];
+            final List<Json> found = new ArrayList<>();
+            for (Json document : documents.values()) {
+                boolean matches = true;
+                for (String key : filter.keys()) {
+                    matches &= Objects.equals(String.valueOf(filter.object(key)), String.valueOf(document.object(key)));
+                }
+                if (matches) {
+                    found.add(document);
+                }
+            }
+            return found;
+        }).when(dataStore).find(any(Json.class));
+        return dataStore;
+    }
+
+    private void setField(String name, Object value) {
+        try {
+            final Field field = SparkPostEndpoint.class.getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(this, value);
+        } catch (NoSuchFieldException | IllegalAccessException ex) {
+            throw new IllegalStateException(String.format("Unable to set the field [%s] of the endpoint", name), ex);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package io.slingr.endpoints.sparkpost.benchmarks;
+
+import io.slingr.endpoints.utils.Json;
+import io.slingr.endpoints.ws.exchange.FunctionRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Sending of emails with attachments: completion of the sender, resolution of the files, storage of
+ * the message id and the request to the transmissions API. Files are either served from the
+ * attachment cache of the endpoint or downloaded on every send.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransmissionBenchmark {
+    private static final String FILE_ID = "590c9b5f8f49a60c2f3e0a2b";
+
+    @Param({"0", "1", "4"})
+    public int attachments;
+
+    @Param({"102400", "5242880"})
+    public int attachmentSize;
+
+    @Param({"true", "false"})
+    public boolean cachedFiles;
+
+    private StubbedEndpoint endpoint;
+    private FunctionRequest request;
+    private long sends = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        endpoint = new StubbedEndpoint(Collections.emptyMap());
+        endpoint.addFile(FILE_ID, Fixtures.attachment(attachmentSize));
+        request = mock(FunctionRequest.class, withSettings().stubOnly());
+        when(request.getFunctionId()).thenReturn("5a1d8c2b4f0e9b6a3c7d2e10");
+        // the endpoint modifies the parameters, so a new body is built on each call
+        doAnswer(invocation -> transmission()).when(request).getJsonParams();
+    }
+
+    @TearDown(Level.Trial)
+    public void check() {
+        if (endpoint.getTransmissions() == 0) {
+            throw new IllegalStateException("No transmissions were sent by the endpoint");
+        }
+    }
+
+    @Benchmark
+    public Json sendEmail() {
+        sends++;
+        return endpoint.sendEmail(request);
+    }
+
+    private Json transmission() {
+        final List<Json> files = new ArrayList<>();
+        for (int i = 0; i < attachments; i++) {
+            // a different file id on each send skips the attachment cache
+            final String fileId = cachedFiles ? FILE_ID + ":" + i : FILE_ID + ":" + i + "-" + sends;
+            files.add(Json.map()
+                    .set("name", "report-" + i + ".pdf")
+                    .set("type", "application/pdf")
+                    .set("fileId", fileId));
+        }
+        final Json content = Json.map()
+                .set("subject", "Your request was updated")
+                .set("text", "Hi, your request was updated. Reply to this email to add a comment.")
+                .set("html", "<p>Hi, your request was updated. Reply to this email to add a comment.</p>");
+        if (!files.isEmpty()) {
+            content.set("attachments", files);
+        }
+        final List<Json> recipients = new ArrayList<>();
+        recipients.add(Json.map().set("address", Json.map().set("email", "customer@example.org")));
+        return Json.map()
+                .set("content", content)
+                .set("recipients", recipients);
+    }
+}
@@ -0,0 +1,80 @@
+package io.slingr.endpoints.sparkpost.benchmarks;
+
+import io.slingr.endpoints.ws.exchange.WebServiceRequest;
+import io.slingr.endpoints.ws.exchange.WebServiceResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Processing of batches of the event webhook: parsing, deduplication, correlation with the stored
+ * message ids and dispatch of the service events. Every call renews the ids of the events, so they
+ * are processed as new events instead of a retried batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebhookBenchmark {
+    private static final int STORED_MESSAGES = 1000;
+
+    @Param({"1", "100", "1000", "10000"})
+    public int events;
+
+    @Param({"false", "true"})
+    public String groupServiceEvents;
+
+    private StubbedEndpoint endpoint;
+    private Fixtures.EventBatch batch;
+    private WebServiceRequest request;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        endpoint = new StubbedEndpoint(Collections.singletonMap("groupServiceEvents", groupServiceEvents));
+        final List<String> messageIds = new ArrayList<>();
+        for (int i = 0; i < STORED_MESSAGES * 2; i++) {
+            final String messageId = String.format("m%07d", i);
+            messageIds.add(messageId);
+            if (i % 2 == 0) {
+                // half of the events are correlated with a function
+                endpoint.addMessage(messageId, "function-" + i);
+            }
+        }
+        batch = Fixtures.eventBatch(events, messageIds);
+        request = mock(WebServiceRequest.class, withSettings().stubOnly());
+        when(request.getHeader("Authorization")).thenReturn(StubbedEndpoint.BASIC_AUTH);
+        // the body is rewritten in place on each call
+        when(request.getBody()).thenReturn(batch.next());
+    }
+
+    @TearDown(Level.Trial)
+    public void check() {
+        if (endpoint.getSentEvents() == 0) {
+            throw new IllegalStateException("No events were sent by the endpoint");
+        }
+    }
+
+    @Benchmark
+    public WebServiceResponse webhook() {
+        batch.next();
+        return endpoint.webhookProcessor(request);
+    }
+}
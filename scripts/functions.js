@@ -8,6 +8,14 @@ endpoint.sendEmail = function(options, callbackData, callbacks) {
     return endpoint._sendEmail(options, callbackData, callbacks);
 };
 
+endpoint.sendEmailBatch = function(options, callbackData, callbacks) {
+    if (Array.isArray(options)) {
+        options = {messages: options};
+    }
+    options = options || {};
+    return endpoint._sendEmailBatch(options, callbackData, callbacks);
+};
+
 endpoint.configureInboundDomains = function() {
     return endpoint._configureInboundDomains({});
 };
@@ -16,6 +24,10 @@ endpoint.removeInboundDomain = function(domain) {
     return endpoint._removeInboundDomain({domain:domain});
 };
 
+endpoint.getMetrics = function() {
+    return endpoint._getMetrics({});
+};
+
 endpoint.convertToText = function(value) {
     return endpoint._convertToText({value:value}).result;
 };
@@ -32,6 +44,22 @@ endpoint.extractHtmlResponse = function(value) {
     return endpoint._extractHtmlResponse({value:value}).result
 };
 
+endpoint.convertToTextBatch = function(values) {
+    return endpoint._convertToTextBatch({values:values}).results;
+};
+
+endpoint.convertToHtmlBatch = function(values) {
+    return endpoint._convertToHtmlBatch({values:values}).results;
+};
+
+endpoint.extractTextResponseBatch = function(values) {
+    return endpoint._extractTextResponseBatch({values:values}).results;
+};
+
+endpoint.extractHtmlResponseBatch = function(values) {
+    return endpoint._extractHtmlResponseBatch({values:values}).results;
+};
+
 ///////////////////////////////////
 // Public API - Generic Functions
 /////////////////////////////////
@@ -0,0 +1,89 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+
+import java.util.List;
+
+/**
+ * Helpers to inspect the errors returned by the SparkPost API
+ */
+public class ApiErrors {
+    public static final int CONFLICT = 409;
+    public static final int TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Builds the error of a response of the API with an error status. Like the errors of the platform
+     * HTTP service, the additional info has the 'status', the 'headers' and the 'body' of the response.
+     */
+    public static EndpointException fromResponse(String message, HttpResponse response, String body) {
+        final Json headers = Json.map();
+        for (Header header : response.getAllHeaders()) {
+            headers.set(header.getName(), header.getValue());
+        }
+        final Json additionalInfo = Json.map()
+                .set("status", response.getStatusLine().getStatusCode())
+                .set("headers", headers)
+                .setIfNotNull("body", body);
+        return EndpointException.permanent(ErrorCode.API, message, additionalInfo);
+    }
+
+    /**
+     * Returns the HTTP status code of the error, from the 'status' of the additional info, or -1 if it
+     * is not an error of a response
+     */
+    public static int getStatus(EndpointException ex) {
+        final Json info = ex.getAdditionalInfo();
+        final Object status = info != null ? info.object("status") : null;
+        if (status instanceof Number) {
+            return ((Number) status).intValue();
+        } else if (status != null && StringUtils.isNumeric(status.toString()) && StringUtils.isNotBlank(status.toString())) {
+            return Integer.parseInt(status.toString());
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value in milliseconds of the 'Retry-After' header of the error, or -1 if there is not one
+     */
+    public static long getRetryAfter(EndpointException ex) {
+        final Json info = ex.getAdditionalInfo();
+        final Json headers = info != null ? info.json("headers") : null;
+        if (headers != null) {
+            for (String header : headers.keys()) {
+                if ("Retry-After".equalsIgnoreCase(header)) {
+                    return parseRetryAfter(headers.object(header));
+                }
+            }
+        }
+        return -1;
+    }
+
+    public static boolean isThrottled(EndpointException ex) {
+        return getStatus(ex) == TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * True if the resource already exists
+     */
+    public static boolean isConflict(EndpointException ex) {
+        return getStatus(ex) == CONFLICT;
+    }
+
+    private static long parseRetryAfter(Object value) {
+        if (value instanceof List && !((List) value).isEmpty()) {
+            value = ((List) value).get(0);
+        }
+        if (value != null) {
+            final String seconds = value.toString().trim();
+            if (StringUtils.isNumeric(seconds) && StringUtils.isNotBlank(seconds)) {
+                return Long.parseLong(seconds) * 1000;
+            }
+        }
+        return -1;
+    }
+}
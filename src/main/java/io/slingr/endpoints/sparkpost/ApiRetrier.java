@@ -0,0 +1,137 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+import org.apache.commons.lang.ArrayUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Executes requests to the SparkPost API retrying the transient errors with exponential backoff and
+ * full jitter, so many requests failing at the same time do not retry at the same time. The delay is
+ * never shorter than the 'Retry-After' header of the error. Requests go through the circuit breaker,
+ * which rejects them right away while SparkPost is down.
+ *
+ * Requests that are not idempotent, like transmissions, are only retried when SparkPost did not
+ * process them: throttled (429) and gateway errors (502, 503 and 504). Internal errors and timeouts
+ * are retried only for idempotent requests.
+ */
+public class ApiRetrier {
+    private static final Logger logger = LoggerFactory.getLogger(ApiRetrier.class);
+
+    private static final int[] NOT_PROCESSED_STATUSES = {502, 503, 504};
+
+    private final int maxRetries;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final CircuitBreaker circuitBreaker;
+    private final Clock clock;
+
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * @param maxRetries     maximum number of retries of each request
+     * @param baseDelay      maximum delay in milliseconds of the first retry, it doubles on each retry
+     * @param maxDelay       maximum delay in milliseconds of any retry, longer 'Retry-After' are not waited
+     * @param circuitBreaker breaker of the requests to the API
+     */
+    public ApiRetrier(int maxRetries, long baseDelay, long maxDelay, CircuitBreaker circuitBreaker) {
+        this(maxRetries, baseDelay, maxDelay, circuitBreaker, Clock.SYSTEM);
+    }
+
+    ApiRetrier(int maxRetries, long baseDelay, long maxDelay, CircuitBreaker circuitBreaker, Clock clock) {
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.circuitBreaker = circuitBreaker;
+        this.clock = clock;
+    }
+
+    /**
+     * Executes the request, retrying it when the error is transient
+     *
+     * @param idempotent     if the request can be repeated without side effects
+     * @param retryThrottled if throttled requests are retried, false when the caller handles them
+     */
+    public <T> T call(Supplier<T> request, boolean idempotent, boolean retryThrottled) {
+        int attempt = 0;
+        while (true) {
+            if (!circuitBreaker.allow()) {
+                throw EndpointException.permanent(ErrorCode.API, String.format("SparkPost API is not available, request rejected for [%s] seconds",
+                        (circuitBreaker.getRemainingOpenTime() + 999) / 1000));
+            }
+            final RuntimeException error;
+            try {
+                final T response = request.get();
+                circuitBreaker.success();
+                return response;
+            } catch (RuntimeException ex) {
+                error = ex;
+            }
+            final int status = error instanceof EndpointException ? ApiErrors.getStatus((EndpointException) error) : -1;
+            final boolean unavailable = isUnavailable(error, status);
+            if (unavailable) {
+                circuitBreaker.failure();
+            } else {
+                circuitBreaker.success();
+            }
+            final boolean retry = status == ApiErrors.TOO_MANY_REQUESTS ? retryThrottled : unavailable && (idempotent || ArrayUtils.contains(NOT_PROCESSED_STATUSES, status));
+            if (!retry || attempt >= maxRetries) {
+                throw error;
+            }
+            attempt++;
+            final long retryAfter = error instanceof EndpointException ? ApiErrors.getRetryAfter((EndpointException) error) : -1;
+            if (retryAfter > maxDelay) {
+                throw error;
+            }
+            final long delay = Math.max(retryAfter, ThreadLocalRandom.current().nextLong(Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 20)) + 1));
+            retries.incrementAndGet();
+            logger.info(String.format("SparkPost API request failed with status [%s], retry [%s] after [%sms]: %s", status, attempt, delay, error.getMessage()));
+            try {
+                clock.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw error;
+            }
+        }
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("retries [%s], circuit %s", getRetries(), circuitBreaker);
+    }
+
+    /**
+     * True if the error is caused by SparkPost being down: server errors, timeouts and connection errors
+     */
+    private static boolean isUnavailable(RuntimeException error, int status) {
+        if (status >= 500) {
+            return true;
+        }
+        if (status >= 0) {
+            return false;
+        }
+        if (error instanceof EndpointException && ((EndpointException) error).getCode() == ErrorCode.TIMEOUT) {
+            return true;
+        }
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
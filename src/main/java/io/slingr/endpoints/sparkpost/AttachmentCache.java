@@ -0,0 +1,29 @@
+package io.slingr.endpoints.sparkpost;
+
+/**
+ * Cache of the base64 content of files used as attachments, keyed by file id. The least recently used
+ * files are evicted when the total size of the cached content exceeds the limit.
+ */
+public class AttachmentCache extends ByteBoundedLruCache<String, Object> {
+    /**
+     * @param maxBytes      maximum size of all the cached content
+     * @param maxEntryBytes maximum size of a file to be cached
+     */
+    public AttachmentCache(long maxBytes, long maxEntryBytes) {
+        super(maxBytes, maxEntryBytes, (fileId, data) -> sizeOf(data));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("files [%s], bytes [%s], hits [%s], misses [%s]", size(), getBytes(), getHits(), getMisses());
+    }
+
+    private static long sizeOf(Object data) {
+        if (data instanceof String) {
+            return ((String) data).length() * 2L;
+        } else if (data instanceof byte[]) {
+            return ((byte[]) data).length;
+        }
+        return data != null ? data.toString().length() * 2L : 0;
+    }
+}
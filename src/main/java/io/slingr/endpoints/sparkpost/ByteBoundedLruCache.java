@@ -0,0 +1,88 @@
+package io.slingr.endpoints.sparkpost;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * Cache limited by the size in bytes of its entries instead of their number. The least recently used
+ * entries are evicted when the total size exceeds the limit, and entries larger than the limit of a
+ * single entry are not cached.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
+public class ByteBoundedLruCache<K, V> {
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final ToLongBiFunction<K, V> sizer;
+    private long bytes = 0;
+
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxBytes      maximum size of all the entries
+     * @param maxEntryBytes maximum size of an entry to be cached
+     * @param sizer         size in bytes of an entry, including its key if it is significant
+     */
+    public ByteBoundedLruCache(long maxBytes, long maxEntryBytes, ToLongBiFunction<K, V> sizer) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.sizer = sizer;
+    }
+
+    public synchronized V get(K key) {
+        final V value = entries.get(key);
+        if (value != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return value;
+    }
+
+    public synchronized void put(K key, V value) {
+        if (value == null) {
+            return;
+        }
+        final long size = sizer.applyAsLong(key, value);
+        if (size > maxEntryBytes || size > maxBytes) {
+            return;
+        }
+        final V previous = entries.put(key, value);
+        if (previous != null) {
+            bytes -= sizer.applyAsLong(key, previous);
+        }
+        bytes += size;
+        while (bytes > maxBytes && !entries.isEmpty()) {
+            final Map.Entry<K, V> eldest = entries.entrySet().iterator().next();
+            bytes -= sizer.applyAsLong(eldest.getKey(), eldest.getValue());
+            entries.remove(eldest.getKey());
+        }
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("entries [%s], bytes [%s], hits [%s], misses [%s]", size(), getBytes(), getHits(), getMisses());
+    }
+}
@@ -0,0 +1,116 @@
+package io.slingr.endpoints.sparkpost;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops sending requests to SparkPost while it is failing. After a number of consecutive failures the
+ * circuit is opened and requests are rejected right away, so they do not tie up threads waiting for
+ * an API that is down. When the open period finishes one request is let through: if it works the
+ * circuit is closed again, otherwise it is opened for another period.
+ */
+public class CircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openPeriod;
+    private final Clock clock;
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt = 0;
+    private boolean probing = false;
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param failureThreshold consecutive failures that open the circuit
+     * @param openPeriod       time in milliseconds the circuit stays open before trying again
+     */
+    public CircuitBreaker(int failureThreshold, long openPeriod) {
+        this(failureThreshold, openPeriod, Clock.SYSTEM);
+    }
+
+    CircuitBreaker(int failureThreshold, long openPeriod, Clock clock) {
+        this.failureThreshold = failureThreshold;
+        this.openPeriod = openPeriod;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns true if the request can be sent. Every allowed request has to report its result with
+     * {@link #success()} or {@link #failure()}.
+     */
+    public synchronized boolean allow() {
+        if (state == State.OPEN && clock.millis() - openedAt >= openPeriod) {
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN && !probing) {
+            probing = true;
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * The request got a response from SparkPost, even if it was an error of the request
+     */
+    public synchronized void success() {
+        failures = 0;
+        probing = false;
+        if (state != State.CLOSED) {
+            state = State.CLOSED;
+            logger.info("SparkPost API circuit closed");
+        }
+    }
+
+    /**
+     * The request failed because SparkPost is not available
+     */
+    public synchronized void failure() {
+        failures++;
+        probing = false;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = clock.millis();
+            opened.incrementAndGet();
+            logger.info(String.format("SparkPost API circuit opened after [%s] consecutive failures, requests are rejected for [%sms]", failures, openPeriod));
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Milliseconds until the open circuit lets a request through, zero if it is not open
+     */
+    public synchronized long getRemainingOpenTime() {
+        return state == State.OPEN ? Math.max(0, openedAt + openPeriod - clock.millis()) : 0;
+    }
+
+    public long getOpened() {
+        return opened.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("state [%s], opened [%s], rejected [%s]", getState(), getOpened(), getRejected());
+    }
+}
@@ -0,0 +1,36 @@
+package io.slingr.endpoints.sparkpost;
+
+/**
+ * Source of time of the components that wait for or measure periods, tests replace it to control the
+ * time without waiting
+ */
+interface Clock {
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long nanos() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+    };
+
+    /**
+     * Current time in milliseconds, like {@link System#currentTimeMillis()}
+     */
+    long millis();
+
+    /**
+     * Time in nanoseconds to measure elapsed periods, like {@link System#nanoTime()}
+     */
+    long nanos();
+
+    void sleep(long millis) throws InterruptedException;
+}
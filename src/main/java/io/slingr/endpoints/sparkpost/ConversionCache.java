@@ -0,0 +1,49 @@
+package io.slingr.endpoints.sparkpost;
+
+import java.util.function.Function;
+
+/**
+ * Cache of the results of the conversions between HTML and text, keyed by the conversion and the
+ * SHA-256 hash of the value, so large values are not kept as keys. The least recently used results
+ * are evicted when the total size of the cached results exceeds the limit.
+ */
+public class ConversionCache extends ByteBoundedLruCache<String, String> {
+    /**
+     * @param maxBytes      maximum size of all the cached results
+     * @param maxEntryBytes maximum size of a result to be cached
+     */
+    public ConversionCache(long maxBytes, long maxEntryBytes) {
+        super(maxBytes, maxEntryBytes, (key, result) -> (key.length() + result.length()) * 2L);
+    }
+
+    /**
+     * Returns the result of the conversion of the value, from the cache or converting it
+     *
+     * @param conversion name of the conversion, results of different conversions are cached apart
+     */
+    public String convert(String conversion, String value, Function<String, String> converter) {
+        if (value == null || value.isEmpty()) {
+            return converter.apply(value);
+        }
+        final String key = key(conversion, value);
+        final String cached = get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final String result = converter.apply(value);
+        put(key, result);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("results [%s], bytes [%s], hits [%s], misses [%s]", size(), getBytes(), getHits(), getMisses());
+    }
+
+    /**
+     * The key is the name of the conversion and 32 hexadecimal characters of the SHA-256 hash of the value
+     */
+    private static String key(String conversion, String value) {
+        return conversion + ":" + Hashes.sha256Hex(value).substring(0, 32);
+    }
+}
@@ -0,0 +1,156 @@
+package io.slingr.endpoints.sparkpost;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache of the message id -> function id correlation kept in the 'emails' data store.
+ * Entries expire when the record expires in the data store, a TTL after it was saved, and the least
+ * recently used entries are evicted when the cache is full. Negative lookups (message ids without
+ * function id) are also cached, with a shorter TTL from the lookup. Expired entries are purged from
+ * time to time while entries are added.
+ */
+public class CorrelationCache {
+    private static final long PURGE_INTERVAL = 60 * 1000; // 1 minute
+
+    private final int maxEntries;
+    private final long ttl;
+    private final long negativeTtl;
+
+    private final LinkedHashMap<String, CachedValue> entries;
+    private long nextPurge = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CorrelationCache(int maxEntries, long ttl, long negativeTtl) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.entries = new LinkedHashMap<String, CachedValue>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedValue> eldest) {
+                if (size() > CorrelationCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached lookup for the message id or null when the id is not cached (or expired).
+     * A cached negative lookup is returned as a result with empty function id.
+     */
+    public synchronized Result get(String messageId) {
+        final CachedValue entry = entries.get(messageId);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(messageId);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new Result(entry.functionId);
+    }
+
+    /**
+     * Caches the function id for the message id, until the TTL of the record finishes
+     *
+     * @param date time in milliseconds when the record was saved, or will be saved, in the data store
+     */
+    public synchronized void put(String messageId, String functionId, long date) {
+        final long now = System.currentTimeMillis();
+        if (date + ttl > now) {
+            entries.put(messageId, new CachedValue(functionId, date + ttl));
+        }
+        purgeIfNeeded(now);
+    }
+
+    /**
+     * Caches a negative lookup for the message id
+     */
+    public synchronized void putMissing(String messageId) {
+        final long now = System.currentTimeMillis();
+        entries.put(messageId, new CachedValue(null, now + negativeTtl));
+        purgeIfNeeded(now);
+    }
+
+    public synchronized void remove(String messageId) {
+        entries.remove(messageId);
+    }
+
+    /**
+     * Removes expired entries
+     */
+    public synchronized void purge() {
+        final long now = System.currentTimeMillis();
+        nextPurge = now + PURGE_INTERVAL;
+        final Iterator<CachedValue> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAt < now) {
+                it.remove();
+            }
+        }
+    }
+
+    private void purgeIfNeeded(long now) {
+        if (now >= nextPurge) {
+            purge();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size [%s], hits [%s], misses [%s], evictions [%s]", size(), getHits(), getMisses(), getEvictions());
+    }
+
+    public static class Result {
+        private final String functionId;
+
+        Result(String functionId) {
+            this.functionId = functionId;
+        }
+
+        public String getFunctionId() {
+            return functionId;
+        }
+
+        public boolean isFound() {
+            return functionId != null;
+        }
+    }
+
+    private static class CachedValue {
+        private final String functionId;
+        private final long expiresAt;
+
+        CachedValue(String functionId, long expiresAt) {
+            this.functionId = functionId;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package io.slingr.endpoints.sparkpost;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Write-behind buffer of the message id -> function id correlation records. Sends add the record and
+ * continue without waiting for the data store; records are saved in batches by background threads
+ * every interval or as soon as a batch is full. Records are visible with {@link #get(String)} until
+ * they are saved, so a response that arrives before the save is still correlated.
+ *
+ * When the buffer is full the send that adds the record saves it itself, without the buffer, and fails
+ * if it can't be saved, so the buffer is bounded. Records that could not be saved stay in the buffer and
+ * are retried in the next flushes, up to a maximum number of attempts; then they are dropped and logged.
+ */
+public class CorrelationWriter {
+    private static final Logger logger = LoggerFactory.getLogger(CorrelationWriter.class);
+
+    private final BiConsumer<String, String> saver;
+    private final int batchSize;
+    private final int capacity;
+    private final int maxAttempts;
+    private final ScheduledExecutorService executor;
+
+    // records not saved yet, and records being saved
+    private final LinkedHashMap<String, PendingRecord> pending = new LinkedHashMap<>();
+    private final Map<String, PendingRecord> saving = new LinkedHashMap<>();
+    private final AtomicInteger scheduledFlushes = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    private final AtomicLong saved = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong direct = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param saver    saves the record (message id, function id) in the data store
+     * @param interval time in milliseconds between flushes of the buffer
+     * @param batchSize maximum number of records saved by each flush
+     * @param capacity maximum number of records in the buffer
+     * @param maxAttempts maximum number of attempts to save each record
+     * @param threads  number of threads that save batches in parallel
+     */
+    public CorrelationWriter(BiConsumer<String, String> saver, long interval, int batchSize, int capacity, int maxAttempts, int threads) {
+        this.saver = saver;
+        this.batchSize = batchSize;
+        this.capacity = capacity;
+        this.maxAttempts = maxAttempts;
+        this.executor = Executors.newScheduledThreadPool(threads, DaemonThreads.factory("sparkpost-correlation"));
+        this.executor.scheduleWithFixedDelay(this::flushAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds the record to the buffer. The record is saved right away if the writer was closed or the
+     * buffer is full, and then the exception of the data store is thrown to the caller.
+     */
+    public void add(String messageId, String functionId) {
+        final int size;
+        synchronized (this) {
+            if (!closed && size() < capacity) {
+                pending.put(messageId, new PendingRecord(messageId, functionId));
+                size = pending.size();
+            } else {
+                size = -1;
+            }
+        }
+        if (size < 0) {
+            // back pressure, the caller waits for the data store
+            direct.incrementAndGet();
+            saver.accept(messageId, functionId);
+            saved.incrementAndGet();
+            return;
+        }
+        if (size >= batchSize && scheduledFlushes.get() == 0) {
+            scheduledFlushes.incrementAndGet();
+            executor.execute(() -> {
+                scheduledFlushes.decrementAndGet();
+                flushAll();
+            });
+        }
+    }
+
+    /**
+     * Returns the function id of a record that was not saved yet, or null
+     */
+    public synchronized String get(String messageId) {
+        PendingRecord record = pending.get(messageId);
+        if (record == null) {
+            record = saving.get(messageId);
+        }
+        return record != null ? record.functionId : null;
+    }
+
+    /**
+     * Stops the background threads and saves the records in the buffer, waiting up to the timeout
+     */
+    public void close(long timeout) {
+        closed = true;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (size() > 0 && System.currentTimeMillis() < deadline && flush() > 0) {
+            // save the rest of the records
+        }
+        final int lost = size();
+        if (lost > 0) {
+            logger.warn(String.format("[%s] correlation records could not be saved before stopping", lost));
+        }
+    }
+
+    public synchronized int size() {
+        return pending.size() + saving.size();
+    }
+
+    public long getSaved() {
+        return saved.get();
+    }
+
+    /**
+     * Failed attempts to save a record, the records are retried
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Records in the buffer that failed to be saved at least once
+     */
+    public synchronized int getRetrying() {
+        int retrying = 0;
+        for (PendingRecord record : pending.values()) {
+            if (record.attempts > 0) {
+                retrying++;
+            }
+        }
+        for (PendingRecord record : saving.values()) {
+            if (record.attempts > 0) {
+                retrying++;
+            }
+        }
+        return retrying;
+    }
+
+    /**
+     * Records saved by the sends because the buffer was full or the writer was closed
+     */
+    public long getDirect() {
+        return direct.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Records dropped after failing all the attempts to save them
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("buffered [%s], retrying [%s], saved [%s], failed [%s], dropped [%s], direct [%s], batches [%s]",
+                size(), getRetrying(), getSaved(), getFailed(), getDropped(), getDirect(), getBatches());
+    }
+
+    void flushAll() {
+        try {
+            while (flush() >= batchSize) {
+                // the buffer has more records, failed records wait for the next flush
+            }
+        } catch (Exception ex) {
+            logger.warn(String.format("Exception when saving correlation records: %s", ex.getMessage()), ex);
+        }
+    }
+
+    /**
+     * Saves one batch of records, returns the number of records saved
+     */
+    private int flush() {
+        final List<PendingRecord> batch = new ArrayList<>();
+        synchronized (this) {
+            final Iterator<PendingRecord> it = pending.values().iterator();
+            while (it.hasNext() && batch.size() < batchSize) {
+                final PendingRecord record = it.next();
+                it.remove();
+                saving.put(record.messageId, record);
+                batch.add(record);
+            }
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        batches.incrementAndGet();
+        int savedRecords = 0;
+        for (PendingRecord record : batch) {
+            boolean done = false;
+            try {
+                saver.accept(record.messageId, record.functionId);
+                saved.incrementAndGet();
+                savedRecords++;
+                done = true;
+            } catch (Exception ex) {
+                failed.incrementAndGet();
+                if (++record.attempts >= maxAttempts) {
+                    dropped.incrementAndGet();
+                    done = true;
+                    logger.warn(String.format("Correlation record of message [%s] dropped after [%s] attempts, responses and events of the message won't be correlated: %s",
+                            record.messageId, record.attempts, ex.getMessage()));
+                } else if (record.attempts == 1) {
+                    logger.warn(String.format("Correlation record of message [%s] could not be saved, it will be retried: %s", record.messageId, ex.getMessage()));
+                }
+            } finally {
+                synchronized (this) {
+                    saving.remove(record.messageId);
+                    if (!done && !pending.containsKey(record.messageId)) {
+                        // retried in a next flush, after the records added meanwhile
+                        pending.put(record.messageId, record);
+                    }
+                }
+            }
+        }
+        return savedRecords;
+    }
+
+    private static class PendingRecord {
+        private final String messageId;
+        private final String functionId;
+        private int attempts = 0;
+
+        PendingRecord(String messageId, String functionId) {
+            this.messageId = messageId;
+            this.functionId = functionId;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package io.slingr.endpoints.sparkpost;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads of the background pools of the endpoint, which must not keep the process alive
+ */
+public class DaemonThreads {
+    private DaemonThreads() {
+    }
+
+    /**
+     * Returns a factory of daemon threads named with the name and a sequence number, like 'name-1'
+     */
+    public static ThreadFactory factory(String name) {
+        final AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            final Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
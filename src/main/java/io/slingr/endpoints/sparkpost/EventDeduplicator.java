@@ -0,0 +1,99 @@
+package io.slingr.endpoints.sparkpost;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time windowed set of the ids of the processed webhook events, used to drop the events of batches
+ * retried by SparkPost. Ids are kept as 64 bits hashes in two generations: when the current generation
+ * is older than the window or it is full, it becomes the previous one and the old previous one is
+ * discarded, so an id is remembered between one and two windows. Tables are kept at most half full,
+ * so each id takes about 16 bytes.
+ *
+ * Ids of events that could not be dispatched have to be forgotten with {@link #forget(String)}, so
+ * they are processed when SparkPost retries the batch.
+ */
+public class EventDeduplicator {
+    private final long window;
+    private final int maxEntries;
+    private final Clock clock;
+
+    private LongSet current;
+    private LongSet previous;
+    private long currentStart;
+
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * @param window     minimum time in milliseconds an id is remembered
+     * @param maxEntries maximum number of ids per generation
+     */
+    public EventDeduplicator(long window, int maxEntries) {
+        this(window, maxEntries, Clock.SYSTEM);
+    }
+
+    EventDeduplicator(long window, int maxEntries, Clock clock) {
+        this.window = window;
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+        this.current = new LongSet();
+        this.previous = new LongSet();
+        this.currentStart = clock.millis();
+    }
+
+    /**
+     * Registers the event id and returns true if it was already registered
+     */
+    public synchronized boolean isDuplicate(String eventId) {
+        final long now = clock.millis();
+        if (now - currentStart > window || current.size() >= maxEntries) {
+            previous = current;
+            current = new LongSet();
+            currentStart = now;
+        }
+        final long hash = hash(eventId);
+        if (current.contains(hash) || previous.contains(hash)) {
+            duplicates.incrementAndGet();
+            return true;
+        }
+        current.add(hash);
+        return false;
+    }
+
+    /**
+     * Removes the event id, so the event is not discarded when it is received again
+     */
+    public synchronized void forget(String eventId) {
+        final long hash = hash(eventId);
+        current.remove(hash);
+        previous.remove(hash);
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    public synchronized int size() {
+        return current.size() + previous.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ids [%s], duplicates [%s]", size(), getDuplicates());
+    }
+
+    /**
+     * SparkPost event ids are numbers, other ids are hashed with 64 bits FNV-1a
+     */
+    private static long hash(String eventId) {
+        if (eventId.length() <= 18) {
+            boolean numeric = true;
+            for (int i = 0; i < eventId.length() && numeric; i++) {
+                numeric = Character.isDigit(eventId.charAt(i));
+            }
+            if (numeric && !eventId.isEmpty()) {
+                return Long.parseLong(eventId);
+            }
+        }
+        return LongSet.hash(eventId);
+    }
+}
@@ -0,0 +1,55 @@
+package io.slingr.endpoints.sparkpost;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decoding of webhook bodies compressed with gzip. A body is compressed when the 'Content-Encoding'
+ * header says so or when the raw content starts with the gzip magic number, which a JSON body never
+ * does.
+ */
+public class GzipBodies {
+    private static final int BUFFER_SIZE = 8192;
+
+    private GzipBodies() {
+    }
+
+    public static boolean isCompressed(Object contentEncoding, Object body) {
+        if (!(body instanceof byte[])) {
+            return false;
+        }
+        final byte[] bytes = (byte[]) body;
+        if (contentEncoding != null && StringUtils.containsIgnoreCase(contentEncoding.toString(), "gzip")) {
+            return true;
+        }
+        return bytes.length >= 2 && bytes[0] == (byte) 0x1f && bytes[1] == (byte) 0x8b;
+    }
+
+    /**
+     * Decompresses the body, failing as soon as the decompressed content is larger than the limit. The
+     * size declared in the gzip trailer is not used, the buffer grows from a small size as content is read.
+     *
+     * @param maxSize maximum size in bytes of the decompressed content
+     */
+    public static byte[] decompress(byte[] body, long maxSize) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream((int) Math.min(maxSize, Math.max(BUFFER_SIZE, body.length * 2L)));
+        try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(body), BUFFER_SIZE)) {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0;
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                total += read;
+                if (total > maxSize) {
+                    throw new IOException(String.format("Decompressed body is larger than [%s] bytes", maxSize));
+                }
+                os.write(buffer, 0, read);
+            }
+        }
+        return os.toByteArray();
+    }
+}
@@ -0,0 +1,104 @@
+package io.slingr.endpoints.sparkpost;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Request body compressed with gzip while it is written, so the compressed content is never kept in
+ * memory. The bytes written before and after the compression are added to the given counters.
+ */
+public class GzipEntity extends HttpEntityWrapper {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final AtomicLong uncompressedBytes;
+    private final AtomicLong compressedBytes;
+
+    /**
+     * @param entity            body to compress
+     * @param uncompressedBytes counter of the bytes of the body
+     * @param compressedBytes   counter of the bytes sent
+     */
+    public GzipEntity(HttpEntity entity, AtomicLong uncompressedBytes, AtomicLong compressedBytes) {
+        super(entity);
+        this.uncompressedBytes = uncompressedBytes;
+        this.compressedBytes = compressedBytes;
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        return new BasicHeader(HTTP.CONTENT_ENCODING, "gzip");
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isChunked() {
+        return true;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Returns the compressed content from a buffer, the body is sent with {@link #writeTo(OutputStream)}
+     * instead. The content read this way is not added to the counters.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new GzipEntity(wrappedEntity, new AtomicLong(), new AtomicLong()).writeTo(os);
+        return new ByteArrayInputStream(os.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException {
+        // the gzip stream is finished but the request stream is closed by the client
+        final GZIPOutputStream gzip = new GZIPOutputStream(new CountingOutputStream(os, compressedBytes), BUFFER_SIZE);
+        wrappedEntity.writeTo(new CountingOutputStream(gzip, uncompressedBytes));
+        gzip.finish();
+        os.flush();
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final AtomicLong counter;
+
+        CountingOutputStream(OutputStream out, AtomicLong counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.addAndGet(len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package io.slingr.endpoints.sparkpost;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashes used to build ids and fingerprints from content
+ */
+public class Hashes {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private Hashes() {
+    }
+
+    /**
+     * Returns the 64 hexadecimal characters of the SHA-256 hash of the UTF-8 bytes of the value
+     */
+    public static String sha256Hex(String value) {
+        final byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+        final char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
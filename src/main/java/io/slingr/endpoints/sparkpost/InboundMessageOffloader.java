@@ -0,0 +1,130 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.services.Files;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps big inbound emails out of the events. The MIME content of the relay message is parsed as a
+ * stream and each attachment is uploaded to the files service while it is decoded. The attachments
+ * are replaced by references to the files in 'content.attachments', and the MIME content by the
+ * reference in 'content.email_rfc822_file'.
+ *
+ * Emails without attachments and with a small MIME content are kept as they are. If an upload fails,
+ * the files already uploaded for the email are deleted.
+ */
+public class InboundMessageOffloader {
+    private static final Logger logger = LoggerFactory.getLogger(InboundMessageOffloader.class);
+
+    /**
+     * Maximum size of the MIME content kept in the event when the email does not have attachments
+     */
+    public static final int MAX_INLINE_SIZE = 256 * 1024;
+
+    private static final String RAW_MESSAGE_NAME = "message.eml";
+    private static final String RAW_MESSAGE_TYPE = "message/rfc822";
+
+    private final Files files;
+
+    public InboundMessageOffloader(Files files) {
+        this.files = files;
+    }
+
+    /**
+     * Returns the payload of the event with the attachments and the MIME content replaced by files
+     */
+    public Json offload(WebhookEvent event) throws IOException {
+        if (!event.isRelayMessage() || !event.hasRawMessage()) {
+            return event.toJson();
+        }
+        final List<Json> attachments = new ArrayList<>();
+        try {
+            MimeParser.parse(event.openRawMessage(), (headers, content) -> {
+                if (headers.isAttachment() || !headers.getMimeType().startsWith("text/")) {
+                    attachments.add(upload(headers, content, attachments.size() + 1));
+                }
+            });
+            if (attachments.isEmpty() && event.getRawMessageSize() <= MAX_INLINE_SIZE) {
+                return event.toJson();
+            }
+
+            final Json payload = event.toJsonWithoutRawMessage();
+            final Json content = WebhookEvent.relayContent(payload);
+            content.set("email_rfc822_file", upload(RAW_MESSAGE_NAME, RAW_MESSAGE_TYPE, event.openRawMessage()));
+            content.set("attachments", attachments);
+            return payload;
+        } catch (IOException | RuntimeException ex) {
+            // the event is not sent, so nobody would use the files uploaded before the error
+            delete(attachments);
+            throw ex;
+        }
+    }
+
+    private void delete(List<Json> uploaded) {
+        for (Json file : uploaded) {
+            try {
+                files.delete(file.string("fileId"));
+            } catch (Exception ex) {
+                logger.info(String.format("Exception when try to delete the file [%s]: %s", file.string("fileId"), ex.getMessage()));
+            }
+        }
+    }
+
+    private Json upload(MimeHeaders headers, InputStream content, int index) {
+        final String filename = headers.getFilename();
+        final String name = StringUtils.isNotBlank(filename) ? filename : String.format("attachment-%s", index);
+        final Json file = upload(name, headers.getMimeType(), content);
+        final String contentId = headers.get("Content-ID");
+        if (StringUtils.isNotBlank(contentId)) {
+            file.set("contentId", StringUtils.removeEnd(StringUtils.removeStart(contentId.trim(), "<"), ">"));
+        }
+        return file;
+    }
+
+    private Json upload(String name, String type, InputStream content) {
+        final CountingInputStream is = new CountingInputStream(content);
+        final Json uploaded = files.upload(name, is, type);
+        if (uploaded == null || StringUtils.isBlank(uploaded.string("fileId"))) {
+            throw new IllegalStateException(String.format("File [%s] was not uploaded", name));
+        }
+        return Json.map()
+                .set("fileId", uploaded.string("fileId"))
+                .set("name", name)
+                .set("type", type)
+                .set("size", is.count);
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
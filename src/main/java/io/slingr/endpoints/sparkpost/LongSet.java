@@ -0,0 +1,133 @@
+package io.slingr.endpoints.sparkpost;
+
+/**
+ * Open addressing set of longs, used to keep big sets of hashes in little memory. It is not thread safe.
+ */
+class LongSet {
+    private static final long EMPTY = 0;
+
+    private long[] table = new long[1024];
+    private int size = 0;
+    private boolean containsEmpty = false;
+
+    boolean contains(long value) {
+        if (value == EMPTY) {
+            return containsEmpty;
+        }
+        final int mask = table.length - 1;
+        int i = mix(value) & mask;
+        while (table[i] != EMPTY) {
+            if (table[i] == value) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    void add(long value) {
+        if (value == EMPTY) {
+            if (!containsEmpty) {
+                containsEmpty = true;
+                size++;
+            }
+            return;
+        }
+        if ((size + 1) * 2 > table.length) {
+            resize();
+        }
+        if (insert(table, value)) {
+            size++;
+        }
+    }
+
+    boolean remove(long value) {
+        if (value == EMPTY) {
+            if (containsEmpty) {
+                containsEmpty = false;
+                size--;
+                return true;
+            }
+            return false;
+        }
+        final int mask = table.length - 1;
+        int i = mix(value) & mask;
+        while (table[i] != EMPTY) {
+            if (table[i] == value) {
+                // move back the next values of the run that can take the free slot, so lookups don't stop early
+                int free = i;
+                int j = (i + 1) & mask;
+                while (table[j] != EMPTY) {
+                    final int home = mix(table[j]) & mask;
+                    if (((j - home) & mask) >= ((j - free) & mask)) {
+                        table[free] = table[j];
+                        free = j;
+                    }
+                    j = (j + 1) & mask;
+                }
+                table[free] = EMPTY;
+                size--;
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    void addAll(LongSet other) {
+        if (other.containsEmpty) {
+            add(EMPTY);
+        }
+        for (long value : other.table) {
+            if (value != EMPTY) {
+                add(value);
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void resize() {
+        final long[] newTable = new long[table.length * 2];
+        for (long value : table) {
+            if (value != EMPTY) {
+                insert(newTable, value);
+            }
+        }
+        table = newTable;
+    }
+
+    private static boolean insert(long[] table, long value) {
+        final int mask = table.length - 1;
+        int i = mix(value) & mask;
+        while (table[i] != EMPTY) {
+            if (table[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        return true;
+    }
+
+    /**
+     * 64 bits FNV-1a hash of the string
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static int mix(long value) {
+        value ^= (value >>> 33);
+        value *= 0xff51afd7ed558ccdL;
+        value ^= (value >>> 33);
+        return (int) value;
+    }
+}
@@ -0,0 +1,152 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.utils.Json;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Registry of counters, latency histograms and gauges of the endpoint. Latencies are recorded in
+ * microseconds and exported in seconds.
+ */
+public class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final String prefix;
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> latencies = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> distributions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Supplier<Number>> gauges = new ConcurrentHashMap<>();
+
+    public Metrics(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long value) {
+        counters.computeIfAbsent(name, n -> new LongAdder()).add(value);
+    }
+
+    /**
+     * Records a value that is not a latency, like the size of a batch
+     */
+    public void record(String name, long value) {
+        distributions.computeIfAbsent(name, n -> new Histogram()).record(value);
+    }
+
+    public void gauge(String name, Supplier<Number> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Executes the call recording its latency, also when it fails
+     */
+    public <T> T time(String name, Supplier<T> call) {
+        final long start = System.nanoTime();
+        try {
+            return call.get();
+        } finally {
+            recordLatency(name, start);
+        }
+    }
+
+    public void time(String name, Runnable call) {
+        final long start = System.nanoTime();
+        try {
+            call.run();
+        } finally {
+            recordLatency(name, start);
+        }
+    }
+
+    /**
+     * Records the time elapsed since the start, taken from {@link System#nanoTime()}
+     */
+    public void recordLatency(String name, long start) {
+        latencies.computeIfAbsent(name, n -> new Histogram()).record((System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * Metrics in the Prometheus text format
+     */
+    public String toPrometheus() {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+            final String name = prefix + counter.getKey() + "_total";
+            sb.append("# TYPE ").append(name).append(" counter\n");
+            sb.append(name).append(' ').append(counter.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> latency : new TreeMap<>(latencies).entrySet()) {
+            appendSummary(sb, prefix + latency.getKey() + "_seconds", latency.getValue(), 1e6);
+        }
+        for (Map.Entry<String, Histogram> distribution : new TreeMap<>(distributions).entrySet()) {
+            appendSummary(sb, prefix + distribution.getKey(), distribution.getValue(), 1);
+        }
+        for (Map.Entry<String, Supplier<Number>> gauge : new TreeMap<>(gauges).entrySet()) {
+            final String name = prefix + gauge.getKey();
+            sb.append("# TYPE ").append(name).append(" gauge\n");
+            sb.append(name).append(' ').append(gaugeValue(gauge.getValue())).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public Json toJson() {
+        final Json counterValues = Json.map();
+        for (Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+            counterValues.set(counter.getKey(), counter.getValue().sum());
+        }
+        final Json latencyValues = Json.map();
+        for (Map.Entry<String, Histogram> latency : new TreeMap<>(latencies).entrySet()) {
+            latencyValues.set(latency.getKey(), histogramJson(latency.getValue(), 1000));
+        }
+        final Json distributionValues = Json.map();
+        for (Map.Entry<String, Histogram> distribution : new TreeMap<>(distributions).entrySet()) {
+            distributionValues.set(distribution.getKey(), histogramJson(distribution.getValue(), 1));
+        }
+        final Json gaugeValues = Json.map();
+        for (Map.Entry<String, Supplier<Number>> gauge : new TreeMap<>(gauges).entrySet()) {
+            gaugeValues.set(gauge.getKey(), gaugeValue(gauge.getValue()));
+        }
+        return Json.map()
+                .set("counters", counterValues)
+                .set("latenciesMillis", latencyValues)
+                .set("distributions", distributionValues)
+                .set("gauges", gaugeValues);
+    }
+
+    private static void appendSummary(StringBuilder sb, String name, Histogram histogram, double divisor) {
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : QUANTILES) {
+            sb.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.getPercentile(quantile * 100) / divisor).append('\n');
+        }
+        sb.append(name).append("_sum ").append(histogram.getSum() / divisor).append('\n');
+        sb.append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    private static Json histogramJson(Histogram histogram, double divisor) {
+        return Json.map()
+                .set("count", histogram.getCount())
+                .set("mean", histogram.getMean() / divisor)
+                .set("p50", histogram.getPercentile(50) / divisor)
+                .set("p90", histogram.getPercentile(90) / divisor)
+                .set("p99", histogram.getPercentile(99) / divisor)
+                .set("max", histogram.getMax() / divisor);
+    }
+
+    private static Number gaugeValue(Supplier<Number> supplier) {
+        try {
+            final Number value = supplier.get();
+            return value != null ? value : 0;
+        } catch (Exception ex) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Headers of a MIME message or part, in the order they appear
+ */
+public class MimeHeaders {
+    private static final Pattern ENCODED_WORD = Pattern.compile("=\\?([^?\\s]+)\\?([bBqQ])\\?([^?\\s]*)\\?=");
+    private static final Pattern ENCODED_WORDS_SEPARATOR = Pattern.compile("(\\?=)\\s+(=\\?)");
+
+    private final List<String[]> headers = new ArrayList<>();
+
+    void add(String name, String value) {
+        headers.add(new String[]{name.trim(), value.trim()});
+    }
+
+    public boolean isEmpty() {
+        return headers.isEmpty();
+    }
+
+    /**
+     * Returns the first value of the header, with encoded words (RFC 2047) decoded
+     */
+    public String get(String name) {
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase(name)) {
+                return decode(header[1]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Mime type in lower case, 'text/plain' when there is not a content type
+     */
+    public String getMimeType() {
+        final String contentType = get("Content-Type");
+        if (StringUtils.isBlank(contentType)) {
+            return "text/plain";
+        }
+        final int separator = contentType.indexOf(';');
+        return (separator >= 0 ? contentType.substring(0, separator) : contentType).trim().toLowerCase();
+    }
+
+    public boolean isMultipart() {
+        return getMimeType().startsWith("multipart/");
+    }
+
+    public String getBoundary() {
+        return getParameter("Content-Type", "boundary");
+    }
+
+    public Charset getCharset() {
+        final String charset = getParameter("Content-Type", "charset");
+        try {
+            return StringUtils.isNotBlank(charset) ? Charset.forName(charset) : StandardCharsets.UTF_8;
+        } catch (Exception ex) {
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    public String getTransferEncoding() {
+        final String encoding = get("Content-Transfer-Encoding");
+        return encoding != null ? encoding.trim().toLowerCase() : "7bit";
+    }
+
+    public String getFilename() {
+        final String filename = getParameter("Content-Disposition", "filename");
+        return filename != null ? filename : getParameter("Content-Type", "name");
+    }
+
+    /**
+     * Parts with an attachment disposition or a file name are attachments, even inline images
+     */
+    public boolean isAttachment() {
+        final String disposition = get("Content-Disposition");
+        return (disposition != null && disposition.trim().toLowerCase().startsWith("attachment")) || getFilename() != null;
+    }
+
+    /**
+     * Headers by name, keeping the first value of repeated headers
+     */
+    public Json toJson() {
+        final Json json = Json.map();
+        for (String[] header : headers) {
+            if (!json.contains(header[0])) {
+                json.set(header[0], decode(header[1]));
+            }
+        }
+        return json;
+    }
+
+    /**
+     * Returns a parameter of a structured header like 'Content-Type: text/plain; charset="utf-8"',
+     * including parameters encoded as in RFC 2231 ('filename*=utf-8''na%C3%AFve.txt')
+     */
+    public String getParameter(String header, String parameter) {
+        final String value = get(header);
+        if (value == null) {
+            return null;
+        }
+        String encoded = null;
+        for (String part : splitParameters(value)) {
+            final int equals = part.indexOf('=');
+            if (equals <= 0) {
+                continue;
+            }
+            final String name = part.substring(0, equals).trim().toLowerCase();
+            String parameterValue = part.substring(equals + 1).trim();
+            if (parameterValue.length() >= 2 && parameterValue.startsWith("\"") && parameterValue.endsWith("\"")) {
+                parameterValue = parameterValue.substring(1, parameterValue.length() - 1).replace("\\\"", "\"");
+            }
+            if (name.equals(parameter.toLowerCase())) {
+                return parameterValue;
+            } else if (name.equals(parameter.toLowerCase() + "*") && encoded == null) {
+                encoded = decodeExtendedValue(parameterValue);
+            }
+        }
+        return encoded;
+    }
+
+    private static List<String> splitParameters(String value) {
+        final List<String> parts = new ArrayList<>();
+        final StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' && (i == 0 || value.charAt(i - 1) != '\\')) {
+                quoted = !quoted;
+            }
+            if (c == ';' && !quoted) {
+                parts.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        parts.add(current.toString());
+        return parts;
+    }
+
+    private static String decodeExtendedValue(String value) {
+        final int first = value.indexOf('\'');
+        final int second = first >= 0 ? value.indexOf('\'', first + 1) : -1;
+        if (second < 0) {
+            return value;
+        }
+        try {
+            final String charset = StringUtils.defaultIfEmpty(value.substring(0, first), "UTF-8");
+            return URLDecoder.decode(value.substring(second + 1).replace("+", "%2B"), charset);
+        } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+            return value.substring(second + 1);
+        }
+    }
+
+    /**
+     * Decodes the encoded words (RFC 2047) of a header value
+     */
+    static String decode(String value) {
+        if (value == null || !value.contains("=?")) {
+            return value;
+        }
+        final Matcher matcher = ENCODED_WORD.matcher(ENCODED_WORDS_SEPARATOR.matcher(value).replaceAll("$1$2"));
+        final StringBuffer sb = new StringBuffer();
+        while (matcher.find()) {
+            String decoded;
+            try {
+                final Charset charset = Charset.forName(matcher.group(1));
+                final String text = matcher.group(3);
+                if ("b".equalsIgnoreCase(matcher.group(2))) {
+                    decoded = new String(Base64.getMimeDecoder().decode(text), charset);
+                } else {
+                    decoded = new String(decodeQ(text), charset);
+                }
+            } catch (Exception ex) {
+                decoded = matcher.group();
+            }
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(decoded));
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+
+    private static byte[] decodeQ(String text) {
+        final byte[] bytes = new byte[text.length()];
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '_') {
+                bytes[length++] = ' ';
+            } else if (c == '=' && i + 2 < text.length()) {
+                bytes[length++] = (byte) Integer.parseInt(text.substring(i + 1, i + 3), 16);
+                i += 2;
+            } else {
+                bytes[length++] = (byte) c;
+            }
+        }
+        final byte[] result = new byte[length];
+        System.arraycopy(bytes, 0, result, 0, length);
+        return result;
+    }
+}
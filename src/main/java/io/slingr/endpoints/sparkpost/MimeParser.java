@@ -0,0 +1,403 @@
+package io.slingr.endpoints.sparkpost;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Streaming parser of MIME messages. The message is read once and each leaf part is given to the
+ * handler with its content already decoded (base64 or quoted-printable), so attachments never have to
+ * be kept in memory. Lines are read in segments of bounded size, so long lines do not need memory
+ * either.
+ */
+public class MimeParser {
+    private static final int SEGMENT_SIZE = 8192;
+    private static final int MAX_HEADERS_SIZE = 64 * 1024;
+    private static final int MAX_DEPTH = 10;
+
+    public interface PartHandler {
+        /**
+         * Called for each part that is not a multipart. The content is only available during the call,
+         * the rest of it is skipped when the call returns.
+         */
+        void part(MimeHeaders headers, InputStream content) throws IOException;
+    }
+
+    /**
+     * Parses the message calling the handler for each part and returns the headers of the message
+     */
+    public static MimeHeaders parse(InputStream is, PartHandler handler) throws IOException {
+        final LineReader reader = new LineReader(is);
+        final MimeHeaders headers = readHeaders(reader);
+        parseBody(reader, headers, handler, 0);
+        return headers;
+    }
+
+    private static void parseBody(LineReader reader, MimeHeaders headers, PartHandler handler, int depth) throws IOException {
+        final String boundary = headers.isMultipart() ? headers.getBoundary() : null;
+        if (boundary == null || boundary.isEmpty() || depth >= MAX_DEPTH) {
+            handler.part(headers, decode(reader, headers.getTransferEncoding()));
+            skip(reader);
+            return;
+        }
+        final byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+
+        // skip the preamble
+        Segment segment;
+        do {
+            segment = reader.next();
+            if (segment == null) {
+                return;
+            }
+        } while (segment.delimiter(delimiter) == Segment.NONE);
+        if (segment.delimiter(delimiter) == Segment.CLOSE) {
+            return;
+        }
+
+        PartInputStream part;
+        do {
+            part = new PartInputStream(reader, delimiter);
+            final LineReader partReader = new LineReader(part);
+            parseBody(partReader, readHeaders(partReader), handler, depth + 1);
+            skip(part);
+        } while (!part.isLast());
+        // the epilogue is skipped by the parent
+    }
+
+    private static MimeHeaders readHeaders(LineReader reader) throws IOException {
+        final MimeHeaders headers = new MimeHeaders();
+        final StringBuilder current = new StringBuilder();
+        int size = 0;
+        Segment segment;
+        while ((segment = reader.next()) != null && !(segment.lineStart && segment.contentLength() == 0 && segment.terminated)) {
+            size += segment.length;
+            if (size > MAX_HEADERS_SIZE) {
+                continue;
+            }
+            final String line = new String(segment.data, 0, segment.contentLength(), StandardCharsets.UTF_8);
+            if (segment.lineStart && !line.isEmpty() && (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+                // folded header
+                current.append(' ').append(line.trim());
+            } else {
+                if (!segment.lineStart) {
+                    current.append(line);
+                    continue;
+                }
+                addHeader(headers, current);
+                current.setLength(0);
+                current.append(line);
+            }
+        }
+        addHeader(headers, current);
+        return headers;
+    }
+
+    private static void addHeader(MimeHeaders headers, StringBuilder line) {
+        final int colon = line.indexOf(":");
+        if (colon > 0) {
+            headers.add(line.substring(0, colon), line.substring(colon + 1));
+        }
+    }
+
+    private static InputStream decode(InputStream content, String transferEncoding) {
+        switch (transferEncoding) {
+            case "base64":
+                return Base64.getMimeDecoder().wrap(content);
+            case "quoted-printable":
+                return new QuotedPrintableInputStream(content);
+            default:
+                return content;
+        }
+    }
+
+    private static void skip(InputStream is) throws IOException {
+        final byte[] buffer = new byte[SEGMENT_SIZE];
+        while (is.read(buffer) != -1) {
+            // discard
+        }
+    }
+
+    /**
+     * Segment of a line: the whole line, or a piece of it when the line is longer than the buffer
+     */
+    private static class Segment {
+        static final int NONE = 0;
+        static final int DELIMITER = 1;
+        static final int CLOSE = 2;
+
+        final byte[] data;
+        final int length;
+        final boolean lineStart;
+        final boolean terminated;
+
+        Segment(byte[] data, int length, boolean lineStart, boolean terminated) {
+            this.data = data;
+            this.length = length;
+            this.lineStart = lineStart;
+            this.terminated = terminated;
+        }
+
+        /**
+         * Length without the line terminator (LF or CRLF)
+         */
+        int contentLength() {
+            int end = length;
+            if (terminated && end > 0 && data[end - 1] == '\n') {
+                end--;
+                if (end > 0 && data[end - 1] == '\r') {
+                    end--;
+                }
+            }
+            return end;
+        }
+
+        int delimiter(byte[] delimiter) {
+            if (!lineStart || (!terminated && length >= SEGMENT_SIZE)) {
+                return NONE;
+            }
+            int end = contentLength();
+            while (end > 0 && (data[end - 1] == ' ' || data[end - 1] == '\t')) {
+                end--;
+            }
+            if (end < delimiter.length) {
+                return NONE;
+            }
+            for (int i = 0; i < delimiter.length; i++) {
+                if (data[i] != delimiter[i]) {
+                    return NONE;
+                }
+            }
+            if (end == delimiter.length) {
+                return DELIMITER;
+            }
+            if (end == delimiter.length + 2 && data[delimiter.length] == '-' && data[delimiter.length + 1] == '-') {
+                return CLOSE;
+            }
+            return NONE;
+        }
+    }
+
+    /**
+     * Reads the stream by segments of lines, and also as a plain stream for the content of leaf parts
+     */
+    private static class LineReader extends InputStream {
+        private final InputStream is;
+        private final byte[] buffer = new byte[SEGMENT_SIZE];
+        private final byte[] data = new byte[SEGMENT_SIZE];
+        private int position = 0;
+        private int limit = 0;
+        private boolean lineStart = true;
+
+        LineReader(InputStream is) {
+            this.is = is;
+        }
+
+        /**
+         * Returns the next segment, or null at the end of the stream. The data of the segment is only
+         * valid until the next call.
+         */
+        Segment next() throws IOException {
+            int length = 0;
+            boolean terminated = false;
+            while (length < SEGMENT_SIZE && !terminated) {
+                if (position >= limit && !fill()) {
+                    break;
+                }
+                final byte b = buffer[position++];
+                data[length++] = b;
+                terminated = b == '\n';
+            }
+            if (length == 0) {
+                return null;
+            }
+            final Segment segment = new Segment(data, length, lineStart, terminated);
+            lineStart = terminated;
+            return segment;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position >= limit && !fill()) {
+                return -1;
+            }
+            final byte b = buffer[position++];
+            lineStart = b == '\n';
+            return b & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= limit && !fill()) {
+                return -1;
+            }
+            final int read = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, read);
+            position += read;
+            lineStart = b[off + read - 1] == '\n';
+            return read;
+        }
+
+        private boolean fill() throws IOException {
+            final int read = is.read(buffer, 0, buffer.length);
+            if (read <= 0) {
+                return false;
+            }
+            position = 0;
+            limit = read;
+            return true;
+        }
+    }
+
+    /**
+     * Content of a part of a multipart, which ends at the next delimiter. The line break before the
+     * delimiter belongs to the delimiter, so it is held until the next line is read.
+     */
+    private static class PartInputStream extends InputStream {
+        private final LineReader reader;
+        private final byte[] delimiter;
+        private byte[] current = new byte[0];
+        private int position = 0;
+        private int currentLength = 0;
+        private byte[] pendingTerminator = new byte[0];
+        private boolean ended = false;
+        private boolean last = false;
+
+        PartInputStream(LineReader reader, byte[] delimiter) {
+            this.reader = reader;
+            this.delimiter = delimiter;
+        }
+
+        /**
+         * True if the part ended with the close delimiter or the end of the stream
+         */
+        boolean isLast() {
+            return last;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!available(1)) {
+                return -1;
+            }
+            return current[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!available(len)) {
+                return -1;
+            }
+            final int read = Math.min(len, currentLength - position);
+            System.arraycopy(current, position, b, off, read);
+            position += read;
+            return read;
+        }
+
+        private boolean available(int len) throws IOException {
+            while (position >= currentLength) {
+                if (ended) {
+                    return false;
+                }
+                final Segment segment = reader.next();
+                if (segment == null) {
+                    // missing close delimiter
+                    ended = true;
+                    last = true;
+                    setCurrent(pendingTerminator, pendingTerminator.length, null, 0);
+                    continue;
+                }
+                final int delimiterType = segment.delimiter(delimiter);
+                if (delimiterType != Segment.NONE) {
+                    ended = true;
+                    last = delimiterType == Segment.CLOSE;
+                    return false;
+                }
+                final int contentLength = segment.contentLength();
+                setCurrent(pendingTerminator, pendingTerminator.length, segment.data, contentLength);
+                pendingTerminator = new byte[segment.length - contentLength];
+                System.arraycopy(segment.data, contentLength, pendingTerminator, 0, pendingTerminator.length);
+            }
+            return true;
+        }
+
+        private void setCurrent(byte[] first, int firstLength, byte[] second, int secondLength) {
+            current = new byte[firstLength + secondLength];
+            System.arraycopy(first, 0, current, 0, firstLength);
+            if (second != null) {
+                System.arraycopy(second, 0, current, firstLength, secondLength);
+            }
+            currentLength = current.length;
+            position = 0;
+        }
+    }
+
+    /**
+     * Decoder of the quoted-printable transfer encoding
+     */
+    private static class QuotedPrintableInputStream extends InputStream {
+        private final PushbackInputStream is;
+
+        QuotedPrintableInputStream(InputStream is) {
+            this.is = new PushbackInputStream(is, 2);
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (true) {
+                final int c = is.read();
+                if (c != '=') {
+                    return c;
+                }
+                final int first = is.read();
+                if (first == '\r' || first == '\n') {
+                    // soft line break
+                    if (first == '\r') {
+                        final int second = is.read();
+                        if (second != '\n' && second != -1) {
+                            is.unread(second);
+                        }
+                    }
+                    continue;
+                }
+                final int second = first != -1 ? is.read() : -1;
+                final int high = Character.digit(first, 16);
+                final int low = Character.digit(second, 16);
+                if (high < 0 || low < 0) {
+                    // invalid escape, kept as it is
+                    if (second != -1) {
+                        is.unread(second);
+                    }
+                    if (first != -1) {
+                        is.unread(first);
+                    }
+                    return c;
+                }
+                return (high << 4) | low;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = 0;
+            while (count < len) {
+                final int c = read();
+                if (c == -1) {
+                    return count > 0 ? count : -1;
+                }
+                b[off + count++] = (byte) c;
+                if (is.available() == 0 && c == '\n') {
+                    break;
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package io.slingr.endpoints.sparkpost;
+
+/**
+ * Token bucket limiting the requests per second sent to SparkPost. When SparkPost throttles the
+ * requests the bucket is paused for the 'Retry-After' period and the rate is halved, then it recovers
+ * gradually up to the configured rate.
+ */
+public class RateLimiter {
+    private static final double MIN_RATE = 0.5;
+    private static final double RECOVERY_FACTOR = 0.05;
+
+    private final double maxRate;
+    private final Clock clock;
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private long pausedUntil;
+
+    /**
+     * @param maxRate requests per second, zero or negative means unlimited (only paused when throttled)
+     */
+    public RateLimiter(double maxRate) {
+        this(maxRate, Clock.SYSTEM);
+    }
+
+    RateLimiter(double maxRate, Clock clock) {
+        this.maxRate = maxRate;
+        this.clock = clock;
+        this.rate = maxRate;
+        this.tokens = maxRate;
+        this.lastRefill = clock.nanos();
+    }
+
+    /**
+     * Blocks until a request can be sent. Returns the time waited in milliseconds.
+     */
+    public long acquire() throws InterruptedException {
+        final long start = clock.millis();
+        while (true) {
+            final long wait;
+            synchronized (this) {
+                final long now = clock.millis();
+                if (pausedUntil > now) {
+                    wait = pausedUntil - now;
+                } else if (maxRate <= 0) {
+                    return now - start;
+                } else {
+                    refill();
+                    if (tokens >= 1) {
+                        tokens -= 1;
+                        if (rate < maxRate) {
+                            rate = Math.min(maxRate, rate + maxRate * RECOVERY_FACTOR);
+                        }
+                        return now - start;
+                    }
+                    wait = (long) Math.ceil((1 - tokens) * 1000 / rate);
+                }
+            }
+            clock.sleep(Math.max(1, wait));
+        }
+    }
+
+    /**
+     * Pauses the bucket after SparkPost answered with a 429 status code
+     */
+    public synchronized void throttled(long retryAfterMillis) {
+        pausedUntil = Math.max(pausedUntil, clock.millis() + retryAfterMillis);
+        if (maxRate > 0) {
+            rate = Math.max(MIN_RATE, rate / 2);
+            tokens = 0;
+        }
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    private void refill() {
+        final long now = clock.nanos();
+        tokens = Math.min(Math.max(1, rate), tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,125 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.utils.EmailUtils;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Extracts the reply of the user from a relay message, discarding the quoted thread, so apps do not
+ * need to call back the endpoint to do it. The text, HTML and headers parsed by SparkPost are used
+ * when present, otherwise they are taken from the MIME content of the message, which is parsed once.
+ */
+public class ReplyExtractor {
+    private static final Logger logger = LoggerFactory.getLogger(ReplyExtractor.class);
+
+    /**
+     * Maximum size of the text and HTML bodies read from the MIME content
+     */
+    private static final int MAX_BODY_SIZE = 1024 * 1024;
+
+    /**
+     * Returns the reply with the fields 'text', 'html' and 'headers', or null if the relay message
+     * does not have content
+     */
+    public static Json extract(Json relayMessage) {
+        final Json content = relayMessage != null ? relayMessage.json("content") : null;
+        if (content == null) {
+            return null;
+        }
+        String text = content.string("text");
+        String html = content.string("html");
+        Json headers = parseHeaders(content);
+
+        if ((text == null && html == null) || headers == null) {
+            final MimeContent mime = parseMime(content);
+            if (mime != null) {
+                text = text != null ? text : mime.text;
+                html = html != null ? html : mime.html;
+                headers = headers != null ? headers : mime.headers.toJson();
+            }
+        }
+
+        return Json.map()
+                .setIfNotNull("text", text != null ? EmailUtils.parseTextBody(null, text) : null)
+                .setIfNotNull("html", html != null ? EmailUtils.parseHtmlBody(null, html) : null)
+                .set("headers", headers != null ? headers : Json.map());
+    }
+
+    /**
+     * SparkPost sends the headers as a list of single field maps, repeated headers keep the first value
+     */
+    private static Json parseHeaders(Json content) {
+        if (!content.contains("headers")) {
+            return null;
+        }
+        final List<Json> list = content.jsons("headers");
+        if (list == null) {
+            return null;
+        }
+        final Json headers = Json.map();
+        for (Json header : list) {
+            for (String name : header.keys()) {
+                if (!headers.contains(name)) {
+                    headers.set(name, header.string(name));
+                }
+            }
+        }
+        return headers;
+    }
+
+    private static MimeContent parseMime(Json content) {
+        final String rfc822 = content.string("email_rfc822");
+        if (StringUtils.isBlank(rfc822)) {
+            return null;
+        }
+        try {
+            final boolean base64 = Boolean.TRUE.equals(content.bool("email_rfc822_is_base64"));
+            InputStream is = new ByteArrayInputStream(rfc822.getBytes(base64 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8));
+            if (base64) {
+                is = Base64.getMimeDecoder().wrap(is);
+            }
+            final MimeContent mime = new MimeContent();
+            mime.headers = MimeParser.parse(is, (headers, part) -> {
+                if (headers.isAttachment()) {
+                    return;
+                }
+                final String mimeType = headers.getMimeType();
+                if (mime.text == null && "text/plain".equals(mimeType)) {
+                    mime.text = read(part, headers);
+                } else if (mime.html == null && "text/html".equals(mimeType)) {
+                    mime.html = read(part, headers);
+                }
+            });
+            return mime;
+        } catch (IOException | IllegalArgumentException ex) {
+            logger.info(String.format("Unable to parse the MIME content of the relay message [%s]", ex.getMessage()));
+            return null;
+        }
+    }
+
+    private static String read(InputStream is, MimeHeaders headers) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while (os.size() < MAX_BODY_SIZE && (read = is.read(buffer)) != -1) {
+            os.write(buffer, 0, Math.min(read, MAX_BODY_SIZE - os.size()));
+        }
+        return new String(os.toByteArray(), headers.getCharset());
+    }
+
+    private static class MimeContent {
+        private MimeHeaders headers;
+        private String text;
+        private String html;
+    }
+}
@@ -0,0 +1,151 @@
+package io.slingr.endpoints.sparkpost;
+
+import org.apache.commons.lang.StringUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Message ids that carry the function id signed with HMAC-SHA256, so the correlation can be
+ * verified locally without storing it.
+ *
+ * The id has the format '[prefix][payload]-[signature]' where payload and signature are lowercase
+ * base32, which survives mail servers that change the case of the address. The prefix indicates if
+ * the payload is the function id as hex bytes ('h') or as UTF-8 text ('s').
+ */
+public class SignedMessageIds {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final char[] ALPHABET = "abcdefghijklmnopqrstuvwxyz234567".toCharArray();
+    private static final int SIGNATURE_LENGTH = 8; // bytes
+    private static final char SEPARATOR = '-';
+    private static final char HEX_PREFIX = 'h';
+    private static final char TEXT_PREFIX = 's';
+
+    private final SecretKeySpec key;
+
+    public SignedMessageIds(String secret) {
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+    }
+
+    /**
+     * Generates the message id for the function id
+     */
+    public String encode(String functionId) {
+        final boolean hex = isHex(functionId);
+        final byte[] payload = hex ? hexToBytes(functionId) : functionId.getBytes(StandardCharsets.UTF_8);
+        final char prefix = hex ? HEX_PREFIX : TEXT_PREFIX;
+        return prefix + base32(payload) + SEPARATOR + base32(sign(prefix, payload));
+    }
+
+    /**
+     * Returns the function id of a signed message id, or null if the id is not signed or the
+     * signature is not valid
+     */
+    public String decode(String messageId) {
+        if (StringUtils.isBlank(messageId) || messageId.length() < 3) {
+            return null;
+        }
+        final String id = messageId.toLowerCase();
+        final char prefix = id.charAt(0);
+        final int separator = id.indexOf(SEPARATOR);
+        if ((prefix != HEX_PREFIX && prefix != TEXT_PREFIX) || separator < 2) {
+            return null;
+        }
+        final byte[] payload = unbase32(id.substring(1, separator));
+        final byte[] signature = unbase32(id.substring(separator + 1));
+        if (payload == null || signature == null || !MessageDigest.isEqual(signature, sign(prefix, payload))) {
+            return null;
+        }
+        return prefix == HEX_PREFIX ? bytesToHex(payload) : new String(payload, StandardCharsets.UTF_8);
+    }
+
+    private byte[] sign(char prefix, byte[] payload) {
+        try {
+            final Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            mac.update((byte) prefix);
+            return Arrays.copyOf(mac.doFinal(payload), SIGNATURE_LENGTH);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Error when try to sign the message id", ex);
+        }
+    }
+
+    private static boolean isHex(String value) {
+        if (value.isEmpty() || value.length() % 2 != 0) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] hexToBytes(String value) {
+        final byte[] bytes = new byte[value.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(value.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String bytesToHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static String base32(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder((bytes.length * 8 + 4) / 5);
+        int buffer = 0;
+        int bits = 0;
+        for (byte b : bytes) {
+            buffer = (buffer << 8) | (b & 0xff);
+            bits += 8;
+            while (bits >= 5) {
+                sb.append(ALPHABET[(buffer >> (bits - 5)) & 0x1f]);
+                bits -= 5;
+            }
+        }
+        if (bits > 0) {
+            sb.append(ALPHABET[(buffer << (5 - bits)) & 0x1f]);
+        }
+        return sb.toString();
+    }
+
+    private static byte[] unbase32(String value) {
+        if (value.isEmpty()) {
+            return null;
+        }
+        final ByteArrayOutputStream os = new ByteArrayOutputStream(value.length() * 5 / 8);
+        int buffer = 0;
+        int bits = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            final int v;
+            if (c >= 'a' && c <= 'z') {
+                v = c - 'a';
+            } else if (c >= '2' && c <= '7') {
+                v = c - '2' + 26;
+            } else {
+                return null;
+            }
+            buffer = (buffer << 5) | v;
+            bits += 5;
+            if (bits >= 8) {
+                os.write((buffer >> (bits - 8)) & 0xff);
+                bits -= 8;
+            }
+        }
+        return os.toByteArray();
+    }
+}
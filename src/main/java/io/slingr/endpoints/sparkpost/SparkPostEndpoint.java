@@ -19,8 +19,29 @@ import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * SparkPost endpoint
@@ -32,12 +53,56 @@ public class SparkPostEndpoint extends HttpEndpoint {
     private static final Logger logger = LoggerFactory.getLogger(SparkPostEndpoint.class);
 
     private static final String SPARKPOST_API_URL = "https://api.sparkpost.com/";
+    private static final List<String> LOCAL_HOSTS = Arrays.asList("localhost", "127.0.0.1", "[::1]");
 
     private static final String EVENT_SERVICE = "serviceEvent";
     private static final String EVENT_RESPONSE = "responseArrived";
     private static final String EVENT_EMAIL = "emailArrived";
 
     private static final int WAITING_RESPONSE_PERIOD = 15 * 24 * 60 * 60 * 1000; // 15 days
+    private static final int CORRELATION_CACHE_SIZE = 20000;
+    private static final long CORRELATION_CACHE_NEGATIVE_TTL = 10 * 60 * 1000; // 10 minutes
+    private static final int DEFAULT_WEBHOOK_WORKERS = 2;
+    private static final int DEFAULT_WEBHOOK_QUEUE_SIZE = 200;
+    private static final long WEBHOOK_QUEUE_SHUTDOWN_TIMEOUT = 30 * 1000; // 30 seconds
+    private static final int MAX_SIGNED_MESSAGE_ID_LENGTH = 40;
+    private static final int MAX_BATCH_RECIPIENTS = 1000;
+    private static final char BATCH_MESSAGE_ID_SEPARATOR = '.';
+    private static final long MAX_COALESCE_WINDOW = 5000; // 5 seconds
+    private static final int FILE_DOWNLOAD_THREADS = 4;
+    private static final long ATTACHMENT_CACHE_SIZE = 32 * 1024 * 1024; // 32 MB
+    private static final long ATTACHMENT_CACHE_MAX_FILE_SIZE = 8 * 1024 * 1024; // 8 MB
+    private static final long EVENT_DEDUPLICATION_WINDOW = 8 * 60 * 60 * 1000; // 8 hours
+    private static final int EVENT_DEDUPLICATION_SIZE = 500000;
+    private static final int MAX_GROUPED_EVENTS = 500;
+    private static final int API_THREADS = 4;
+    private static final int CONVERSION_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final long CONVERSION_CACHE_SIZE = 16 * 1024 * 1024; // 16 MB
+    private static final long CONVERSION_CACHE_MAX_RESULT_SIZE = 1024 * 1024; // 1 MB
+    private static final int MAX_CONVERSION_BATCH = 1000;
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 4096; // 4 KB
+    private static final long MAX_WEBHOOK_BODY_SIZE = 8 * 1024 * 1024; // 8 MB
+    private static final String INBOUND_DOMAINS_STATE_ID = "inboundDomains";
+    private static final int INBOUND_DOMAINS_STATE_TTL = 24 * 60 * 60 * 1000; // 1 day
+    private static final long SUPPRESSION_LIST_REFRESH_PERIOD = 6 * 60 * 60 * 1000; // 6 hours
+    private static final int TEMPLATE_PROMOTION_THRESHOLD = 3;
+    private static final int TEMPLATE_PROMOTION_ENTRIES = 10000;
+    private static final int MAX_STORED_TEMPLATES = 1000;
+    private static final long CORRELATION_FLUSH_INTERVAL = 200; // 200 milliseconds
+    private static final int CORRELATION_FLUSH_BATCH = 100;
+    private static final int CORRELATION_BUFFER_SIZE = 10000;
+    private static final int CORRELATION_MAX_ATTEMPTS = 150; // about 30 seconds of flushes
+    private static final int CORRELATION_WRITER_THREADS = 2;
+    private static final long CORRELATION_WRITER_SHUTDOWN_TIMEOUT = 10 * 1000; // 10 seconds
+    private static final int API_MAX_RETRIES = 3;
+    private static final long API_RETRY_BASE_DELAY = 250; // 250 milliseconds
+    private static final long API_RETRY_MAX_DELAY = 10 * 1000; // 10 seconds
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+    private static final long CIRCUIT_OPEN_PERIOD = 30 * 1000; // 30 seconds
+    private static final String WEBHOOK_BATCH_ID_HEADER = "X-MessageSystems-Batch-ID";
+    private static final long CORRELATION_MISS_RETRY_DELAY = 1000; // 1 second
+    private static final long CORRELATION_RECENT_EVENT_PERIOD = 10 * 1000; // 10 seconds
+    private static final long DELAYED_EVENTS_SHUTDOWN_TIMEOUT = 5 * 1000; // 5 seconds
 
     @ApplicationLogger
     private AppLogs appLogger;
@@ -45,9 +110,18 @@ public class SparkPostEndpoint extends HttpEndpoint {
     @EndpointDataStore
     private DataStore emails;
 
+    @EndpointDataStore
+    private DataStore settings;
+
+    @EndpointDataStore
+    private DataStore webhookBatches;
+
     @EndpointProperty
     private String apiKey;
 
+    @EndpointProperty
+    private String apiUrl;
+
     @EndpointProperty
     private String senderName;
 
@@ -63,20 +137,133 @@ public class SparkPostEndpoint extends HttpEndpoint {
     @EndpointProperty
     private String webhookPassword;
 
+    @EndpointProperty
+    private String asyncWebhooks;
+
+    @EndpointProperty
+    private String webhookWorkers;
+
+    @EndpointProperty
+    private String webhookQueueSize;
+
+    @EndpointProperty
+    private String signedMessageIds;
+
+    @EndpointProperty
+    private String messageIdSecret;
+
+    @EndpointProperty
+    private String transmissionsRateLimit;
+
+    @EndpointProperty
+    private String coalesceWindow;
+
+    @EndpointProperty
+    private String streamAttachments;
+
+    @EndpointProperty
+    private String groupServiceEvents;
+
+    @EndpointProperty
+    private String extractReplies;
+
+    @EndpointProperty
+    private String offloadInboundAttachments;
+
+    @EndpointProperty
+    private String localSuppressionList;
+
+    @EndpointProperty
+    private String storedTemplates;
+
+    @EndpointProperty
+    private String writeBehindCorrelation;
+
+    @EndpointProperty
+    private String resilientApiCalls;
+
+    @EndpointProperty
+    private String compressTransmissions;
+
+    @EndpointProperty
+    private String compressionThreshold;
+
+    @EndpointProperty
+    private String sharedBatchRegistry;
+
     private String sender;
     private String domain;
     private String basicAuth;
 
+    private final CorrelationCache correlationCache = new CorrelationCache(CORRELATION_CACHE_SIZE, WAITING_RESPONSE_PERIOD, CORRELATION_CACHE_NEGATIVE_TTL);
+    private WebhookQueue webhookQueue;
+    private SignedMessageIds signedIds;
+    private InboundMessageOffloader inboundMessageOffloader;
+    private TransmissionSender transmissionSender = new TransmissionSender(new RateLimiter(0), 0);
+    private final AttachmentCache attachmentCache = new AttachmentCache(ATTACHMENT_CACHE_SIZE, ATTACHMENT_CACHE_MAX_FILE_SIZE);
+    private final ConversionCache conversionCache = new ConversionCache(CONVERSION_CACHE_SIZE, CONVERSION_CACHE_MAX_RESULT_SIZE);
+    private StreamingTransmissionClient transmissionClient;
+    private boolean streamingFiles = false;
+    private SuppressionList suppressionList;
+    private TemplatePromoter templatePromoter;
+    private CorrelationWriter correlationWriter;
+    private ApiRetrier apiRetrier;
+    private WebhookBatchRegistry webhookBatchRegistry;
+    private final Metrics metrics = new Metrics("sparkpost_");
+    private final EventDeduplicator eventDeduplicator = new EventDeduplicator(EVENT_DEDUPLICATION_WINDOW, EVENT_DEDUPLICATION_SIZE);
+    private final ExecutorService filesExecutor = Executors.newFixedThreadPool(FILE_DOWNLOAD_THREADS, DaemonThreads.factory("sparkpost-files"));
+    private final ExecutorService apiExecutor = Executors.newFixedThreadPool(API_THREADS, DaemonThreads.factory("sparkpost-api"));
+    private final ExecutorService conversionExecutor = Executors.newFixedThreadPool(CONVERSION_THREADS, DaemonThreads.factory("sparkpost-conversions"));
+    private final ScheduledExecutorService delayedEventsExecutor = Executors.newSingleThreadScheduledExecutor(DaemonThreads.factory("sparkpost-delayed-events"));
+    private final Object inboundDomainsLock = new Object();
 
     @Override
     public String getApiUri() {
-        return SPARKPOST_API_URL;
+        final String uri = configuredApiUri();
+        return uri != null ? uri : SPARKPOST_API_URL;
+    }
+
+    /**
+     * Returns the API URL of the configuration, or null if it is empty or not valid. The API key is sent to
+     * this URL, so it has to use HTTPS; plain HTTP is only allowed for local servers, like the mock API.
+     */
+    private String configuredApiUri(){
+        if(StringUtils.isBlank(apiUrl)){
+            return null;
+        }
+        final String url = StringUtils.removeEnd(apiUrl.trim(), "/") + "/";
+        try {
+            final URI uri = new URI(url);
+            final String host = uri.getHost();
+            if(StringUtils.isBlank(host) || uri.getUserInfo() != null || uri.getQuery() != null || uri.getFragment() != null){
+                return null;
+            }
+            if("https".equalsIgnoreCase(uri.getScheme())){
+                return url;
+            }
+            if("http".equalsIgnoreCase(uri.getScheme()) && LOCAL_HOSTS.contains(host.toLowerCase())){
+                return url;
+            }
+        } catch (URISyntaxException ex) {
+            // not valid
+        }
+        return null;
     }
 
     @Override
     public void endpointStarted() {
         httpService().setupDefaultHeader("Authorization", apiKey);
 
+        if(StringUtils.isNotBlank(apiUrl) && configuredApiUri() == null){
+            appLogger.error(String.format("Invalid API URL [%s], it must use https (http is only allowed for localhost). Using [%s] instead", apiUrl, SPARKPOST_API_URL));
+        }
+
+        if("true".equalsIgnoreCase(resilientApiCalls)){
+            apiRetrier = new ApiRetrier(API_MAX_RETRIES, API_RETRY_BASE_DELAY, API_RETRY_MAX_DELAY,
+                    new CircuitBreaker(CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_PERIOD));
+            logger.info("Retries and circuit breaker of API calls enabled");
+        }
+
         if(StringUtils.isBlank(senderEmail)){
             appLogger.error(String.format("Invalid email domain from send email [%s]", senderEmail));
         } else {
@@ -90,15 +277,145 @@ public class SparkPostEndpoint extends HttpEndpoint {
         }
         basicAuth = "Basic "+authToken;
 
+        if(!"false".equalsIgnoreCase(sharedBatchRegistry)){
+            // retries of webhook batches can arrive to any instance of the endpoint, enabled unless it is turned off
+            webhookBatchRegistry = new WebhookBatchRegistry(webhookBatches, EVENT_DEDUPLICATION_WINDOW);
+            logger.info("Shared registry of webhook batches enabled");
+        }
+
+        if("true".equalsIgnoreCase(asyncWebhooks)){
+            final int workers = parseInteger(webhookWorkers, DEFAULT_WEBHOOK_WORKERS);
+            final int queueSize = parseInteger(webhookQueueSize, DEFAULT_WEBHOOK_QUEUE_SIZE);
+            webhookQueue = new WebhookQueue(workers, queueSize);
+            logger.info(String.format("Asynchronous webhooks enabled - workers [%s], queue size [%s]", workers, queueSize));
+        }
+
+        if("true".equalsIgnoreCase(signedMessageIds)){
+            if(StringUtils.isBlank(messageIdSecret)){
+                appLogger.error("Signed message ids are enabled but the message id secret is empty, message ids will be stored");
+            } else {
+                signedIds = new SignedMessageIds(messageIdSecret);
+                logger.info("Signed message ids enabled");
+            }
+        }
+
+        final int rateLimit = parseInteger(transmissionsRateLimit, 0);
+        final long window = Math.min(parseInteger(coalesceWindow, 0), MAX_COALESCE_WINDOW);
+        transmissionSender = new TransmissionSender(new RateLimiter(rateLimit), window);
+        logger.info(String.format("Transmissions rate limit [%s], coalesce window [%sms]", rateLimit > 0 ? rateLimit : "-", window));
+
+        streamingFiles = "true".equalsIgnoreCase(streamAttachments);
+        final int threshold = "true".equalsIgnoreCase(compressTransmissions) ? parseInteger(compressionThreshold, DEFAULT_COMPRESSION_THRESHOLD) : 0;
+        if(streamingFiles || threshold > 0){
+            transmissionClient = new StreamingTransmissionClient(getApiUri(), apiKey, threshold);
+            logger.info(String.format("Transmissions client enabled - streaming of attachments [%s], compression threshold [%s]", streamingFiles, threshold > 0 ? threshold : "-"));
+        }
+
+        if("true".equalsIgnoreCase(offloadInboundAttachments)){
+            inboundMessageOffloader = new InboundMessageOffloader(files());
+            logger.info("Offload of inbound attachments enabled");
+        }
+
+        if("true".equalsIgnoreCase(localSuppressionList)){
+            suppressionList = new SuppressionList(SUPPRESSION_LIST_REFRESH_PERIOD);
+            refreshSuppressionList();
+        }
+
+        if("true".equalsIgnoreCase(storedTemplates)){
+            templatePromoter = new TemplatePromoter(TEMPLATE_PROMOTION_THRESHOLD, TEMPLATE_PROMOTION_ENTRIES, MAX_STORED_TEMPLATES,
+                    template -> metrics.time("template_request", () -> callApi(() -> httpService().defaultPostRequest(Json.map()
+                            .set("path", "api/v1/templates")
+                            .set("body", template)
+                    ), true)), apiExecutor);
+            logger.info("Stored templates enabled");
+        }
+
+        if("true".equalsIgnoreCase(writeBehindCorrelation)){
+            correlationWriter = new CorrelationWriter(this::storeMessageId, CORRELATION_FLUSH_INTERVAL, CORRELATION_FLUSH_BATCH,
+                    CORRELATION_BUFFER_SIZE, CORRELATION_MAX_ATTEMPTS, CORRELATION_WRITER_THREADS);
+            logger.info("Write-behind of correlation records enabled");
+        }
+
+        registerGauges();
+
         if (StringUtils.isBlank(domain) || !domain.contains(".")) {
             appLogger.error(String.format("Invalid email domain from send email [%s]", senderEmail));
         } else {
-            try {
-                configureInboundDomains();
-            } catch (EndpointException ex){
-                appLogger.error(ex.getMessage(), ex);
+            // inbound domains are checked in background, so they do not delay the startup
+            apiExecutor.submit(() -> {
+                try {
+                    reconcileInboundDomains(false);
+                } catch (EndpointException ex){
+                    appLogger.error(ex.getMessage(), ex);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void endpointStopped(String cause) {
+        if(webhookQueue != null){
+            webhookQueue.shutdown(WEBHOOK_QUEUE_SHUTDOWN_TIMEOUT);
+            logger.info(String.format("Webhook queue stopped - %s", webhookQueue));
+        }
+        // events waiting for the records of other instances are checked before stopping the correlation writer
+        delayedEventsExecutor.shutdown();
+        try {
+            if(!delayedEventsExecutor.awaitTermination(DELAYED_EVENTS_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)){
+                logger.info("Delayed events not sent before the timeout");
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if(correlationWriter != null){
+            // after the webhook queue, so events still queued can find the pending records
+            correlationWriter.close(CORRELATION_WRITER_SHUTDOWN_TIMEOUT);
+            logger.info(String.format("Correlation writer stopped - %s", correlationWriter));
         }
+        filesExecutor.shutdownNow();
+        apiExecutor.shutdownNow();
+        conversionExecutor.shutdownNow();
+        if(transmissionClient != null){
+            transmissionClient.close();
+        }
+    }
+
+    private void registerGauges() {
+        metrics.gauge("correlation_cache_size", correlationCache::size);
+        metrics.gauge("correlation_cache_hits", correlationCache::getHits);
+        metrics.gauge("correlation_cache_misses", correlationCache::getMisses);
+        metrics.gauge("attachment_cache_bytes", attachmentCache::getBytes);
+        metrics.gauge("attachment_cache_hits", attachmentCache::getHits);
+        metrics.gauge("attachment_cache_misses", attachmentCache::getMisses);
+        metrics.gauge("conversion_cache_bytes", conversionCache::getBytes);
+        metrics.gauge("conversion_cache_hits", conversionCache::getHits);
+        metrics.gauge("conversion_cache_misses", conversionCache::getMisses);
+        metrics.gauge("transmission_bytes_uncompressed", () -> transmissionClient != null ? transmissionClient.getUncompressedBytes() : 0);
+        metrics.gauge("transmission_bytes_compressed", () -> transmissionClient != null ? transmissionClient.getCompressedBytes() : 0);
+        metrics.gauge("transmissions_sent", () -> transmissionSender.getSent());
+        metrics.gauge("transmissions_throttled", () -> transmissionSender.getThrottled());
+        metrics.gauge("transmissions_coalesced", () -> transmissionSender.getCoalesced());
+        metrics.gauge("transmissions_queue_time_max_ms", () -> transmissionSender.getMaxQueueTime());
+        metrics.gauge("transmissions_rate", () -> transmissionSender.getRateLimiter().getRate());
+        metrics.gauge("webhook_queue_depth", () -> webhookQueue != null ? webhookQueue.getDepth() : 0);
+        metrics.gauge("webhook_queue_rejected", () -> webhookQueue != null ? webhookQueue.getRejected() : 0);
+        metrics.gauge("webhook_queue_lag_ms", () -> webhookQueue != null ? webhookQueue.getLastLag() : 0);
+        metrics.gauge("webhook_queue_lag_max_ms", () -> webhookQueue != null ? webhookQueue.getMaxLag() : 0);
+        metrics.gauge("events_duplicated", eventDeduplicator::getDuplicates);
+        metrics.gauge("webhook_batches_duplicated", () -> webhookBatchRegistry != null ? webhookBatchRegistry.getDuplicates() : 0);
+        metrics.gauge("suppression_list_entries", () -> suppressionList != null ? suppressionList.size() : 0);
+        metrics.gauge("templates_registered", () -> templatePromoter != null ? templatePromoter.getRegistered() : 0);
+        metrics.gauge("correlation_buffer_size", () -> correlationWriter != null ? correlationWriter.size() : 0);
+        metrics.gauge("correlation_buffer_saved", () -> correlationWriter != null ? correlationWriter.getSaved() : 0);
+        metrics.gauge("correlation_buffer_failed", () -> correlationWriter != null ? correlationWriter.getFailed() : 0);
+        metrics.gauge("correlation_buffer_retrying", () -> correlationWriter != null ? correlationWriter.getRetrying() : 0);
+        metrics.gauge("correlation_buffer_dropped", () -> correlationWriter != null ? correlationWriter.getDropped() : 0);
+        metrics.gauge("correlation_buffer_direct", () -> correlationWriter != null ? correlationWriter.getDirect() : 0);
+        metrics.gauge("correlation_buffer_batches", () -> correlationWriter != null ? correlationWriter.getBatches() : 0);
+        metrics.gauge("api_retries", () -> apiRetrier != null ? apiRetrier.getRetries() : 0);
+        metrics.gauge("api_circuit_state", () -> apiRetrier != null ? apiRetrier.getCircuitBreaker().getState().ordinal() : 0);
+        metrics.gauge("api_circuit_opened", () -> apiRetrier != null ? apiRetrier.getCircuitBreaker().getOpened() : 0);
+        metrics.gauge("api_circuit_rejected", () -> apiRetrier != null ? apiRetrier.getCircuitBreaker().getRejected() : 0);
     }
 
     @EndpointFunction(name = "_post")
@@ -111,15 +428,25 @@ public class SparkPostEndpoint extends HttpEndpoint {
             if(body != null){
                 body = completeTransmissionFrom(body, null);
             }
+            final List<String> suppressed = removeSuppressedRecipients(body);
             if(body != null){
                 body.remove("__message_id");
                 body = completeTransmissionFiles(body);
+                promoteContent(body, null);
             }
             jsonBody.setIfNotNull("body", body);
+
+            if(body != null && transmissionClient != null && !jsonBody.contains("params")){
+                final Json transmission = body;
+                return addSuppressedRecipients(transmissionSender.send(() -> sendTransmissionRequest(path, transmission)), suppressed);
+            }
+
+            // continue with the default processor
+            return addSuppressedRecipients(transmissionSender.send(() -> metrics.time("transmission_request", () -> callTransmissionApi(() -> defaultPostRequest(request)))), suppressed);
         }
 
         // continue with the default processor
-        return defaultPostRequest(request);
+        return callApi(() -> defaultPostRequest(request), false);
     }
 
     @EndpointWebService(path = "/")
@@ -130,80 +457,335 @@ public class SparkPostEndpoint extends HttpEndpoint {
             logger.info(String.format("Event with invalid auth [%s]", auth));
             return HttpService.defaultWebhookResponse("Unauthorized", 401);
         } else {
-            // process events
-            final Json events = HttpService.defaultWebhookConverter(request);
-            final List<Json> eventList = events.jsons("body");
+            final Object body;
+            try {
+                body = webhookBody(request);
+            } catch (IOException ex){
+                logger.info(String.format("Events with invalid compressed body [%s]", ex.getMessage()));
+                return HttpService.defaultWebhookResponse("Invalid body", 400);
+            }
+            if(body == request.getBody()){
+                // process events, an empty batch is sent to the app as it arrives
+                final Json events = HttpService.defaultWebhookConverter(request);
+                return processWebhook("events", webhookBatchId(request), () -> processEvents(events));
+            }
+            // the default converter can't read compressed bodies, the events are parsed from the decompressed body
+            final Json envelope = webhookEnvelope(request);
+            final List<WebhookEvent> eventList = WebhookEventParser.parse(body);
             if(eventList != null && !eventList.isEmpty()){
-                for (Json e : eventList) {
-                    if(e.contains("msys") && e.json("msys").contains("relay_message")){
-                        sendEmailEvent(Json.map().set("body", e));
-                    } else {
-                        final List<String> ids = new ArrayList<>();
-                        if(e.contains("msys")){
-                            final Json msys = e.json("msys");
-                            for (String mk : msys.keys()) {
-                                final Json ev = msys.json(mk);
-                                if(ev != null && ev.isNotEmpty()){
-                                    checkIdValue(ids, ev, "msg_from");
-                                    checkIdValue(ids, ev, "friendly_from");
-                                    checkIdValue(ids, ev, "raw_rcpt_to");
-                                    checkIdValue(ids, ev, "rcpt_to");
-                                    checkIdValue(ids, ev, "mailfrom");
-                                }
-                            }
-                        }
+                metrics.increment("webhook_batches");
+                metrics.record("webhook_batch_size", eventList.size());
+                return processWebhook("events", webhookBatchId(request), () -> processEvents(eventList, envelope));
+            }
+            final Json events = decompressedWebhookJson(envelope, (byte[]) body);
+            return processWebhook("events", webhookBatchId(request), () -> processEvents(events));
+        }
+    }
 
-                        events.set("body", e);
-
-                        boolean sent = false;
-                        if(!ids.isEmpty()){
-                            for (String id : ids) {
-                                // find function id
-                                final Json message = emails.findById(id);
-                                if(message != null && message.contains("functionId")){
-                                    final String functionId = message.string("functionId");
-                                    if(StringUtils.isNotBlank(functionId)){
-                                        // send service as response
-
-                                        events().send(EVENT_SERVICE, events, functionId);
-                                        sent = true;
-                                        break;
-                                    }
-                                }
-                            }
-                        }
-                        if(!sent) {
-                            events().send(EVENT_SERVICE, events);
-                        }
-                    }
+    /**
+     * Returns the body of the webhook, decompressed if it was sent with gzip. It has to be called after
+     * the authentication of the webhook is checked.
+     */
+    private Object webhookBody(WebServiceRequest request) throws IOException {
+        final Object body = request.getBody();
+        if(!GzipBodies.isCompressed(requestHeader(request, "Content-Encoding"), body)){
+            return body;
+        }
+        final long start = System.nanoTime();
+        final byte[] decompressed = GzipBodies.decompress((byte[]) body, MAX_WEBHOOK_BODY_SIZE);
+        metrics.recordLatency("webhook_decompression", start);
+        metrics.add("webhook_compressed_bytes", ((byte[]) body).length);
+        metrics.add("webhook_decompressed_bytes", decompressed.length);
+        return decompressed;
+    }
+
+    /**
+     * Converts a decompressed body that the event parser could not read, like the default converter
+     */
+    private static Json decompressedWebhookJson(Json envelope, byte[] body){
+        final String content = new String(body, StandardCharsets.UTF_8);
+        try {
+            return copyEnvelope(envelope).set("body", Json.parse(content));
+        } catch (Exception ex){
+            return copyEnvelope(envelope).set("body", content);
+        }
+    }
+
+    /**
+     * Fields of the request converted by the default converter, without the body. It is used for
+     * compressed bodies, which are decompressed and parsed apart.
+     */
+    private static Json webhookEnvelope(WebServiceRequest request){
+        try {
+            final Json converted = HttpService.defaultWebhookConverter(request);
+            return converted != null ? copyEnvelope(converted) : Json.map();
+        } catch (Exception ex){
+            logger.info(String.format("Exception when try to convert the webhook request [%s]", ex.getMessage()));
+            return Json.map();
+        }
+    }
+
+    /**
+     * Returns a copy of the webhook request without the body, each event of the batch is sent in a copy
+     * with the event in the body like the default converter does
+     */
+    private static Json copyEnvelope(Json envelope){
+        final Json copy = Json.map();
+        if(envelope != null){
+            for (String key : envelope.keys()) {
+                if(!"body".equals(key)){
+                    copy.set(key, envelope.object(key));
                 }
-            } else {
-                events().send(EVENT_SERVICE, events);
             }
+        }
+        return copy;
+    }
+
+    /**
+     * Runs the webhook processing inline or, when asynchronous webhooks are enabled, enqueues it and
+     * acknowledges the webhook at once
+     */
+    private WebServiceResponse processWebhook(String name, String batchId, Runnable processor){
+        final String registeredBatchId = StringUtils.isNotBlank(batchId) ? name + ":" + batchId : null;
+        if(webhookBatchRegistry != null && webhookBatchRegistry.isDuplicate(registeredBatchId)){
+            // batch retried by SparkPost, it was received by this or another instance
+            logger.info(String.format("Duplicated webhook batch [%s] discarded - %s", registeredBatchId, webhookBatchRegistry));
             return HttpService.defaultWebhookResponse();
         }
+        final Runnable task = () -> {
+            try {
+                processor.run();
+            } catch (RuntimeException ex){
+                // the retry of SparkPost has to be processed
+                unregisterWebhookBatch(registeredBatchId);
+                throw ex;
+            }
+        };
+        if(webhookQueue == null){
+            task.run();
+        } else if(webhookQueue.isShutdown()){
+            unregisterWebhookBatch(registeredBatchId);
+            return HttpService.defaultWebhookResponse("Service Unavailable", 503);
+        } else if(!webhookQueue.submit(name, task)){
+            unregisterWebhookBatch(registeredBatchId);
+            return HttpService.defaultWebhookResponse("Too Many Requests", 429);
+        } else if (properties().isDebug()) {
+            logger.info(String.format("Webhook [%s] enqueued - %s", name, webhookQueue));
+        }
+        return HttpService.defaultWebhookResponse();
+    }
+
+    private void unregisterWebhookBatch(String registeredBatchId){
+        if(webhookBatchRegistry != null && registeredBatchId != null){
+            webhookBatchRegistry.unregister(registeredBatchId);
+        }
+    }
+
+    /**
+     * Id of the batch sent by SparkPost, the same id is used when the batch is retried
+     */
+    private String webhookBatchId(WebServiceRequest request){
+        final Object batchId = requestHeader(request, WEBHOOK_BATCH_ID_HEADER);
+        return batchId != null ? StringUtils.trimToNull(batchId.toString()) : null;
+    }
+
+    private static Object requestHeader(WebServiceRequest request, String name){
+        final Object value = request.getHeader(name);
+        return value != null ? value : request.getHeader(name.toLowerCase());
+    }
+
+    private void processEvents(Json events){
+        final List<Json> eventList = events.jsons("body");
+        metrics.increment("webhook_batches");
+        metrics.record("webhook_batch_size", eventList != null ? eventList.size() : 0);
+        if(eventList != null && !eventList.isEmpty()){
+            processEvents(WebhookEventParser.fromJson(eventList), copyEnvelope(events));
+        } else {
+            sendEvent(EVENT_SERVICE, events);
+        }
     }
 
-    private void checkIdValue(List<String> ids, Json ev, String key) {
+    private void processEvents(List<WebhookEvent> eventList, Json envelope){
+        processEvents(eventList, envelope, true);
+    }
+
+    /**
+     * Sends the events to the app. With write-behind of correlation records, recent events that are not
+     * correlated in the first attempt are checked again later on another thread, see {@link #isDelayedCorrelation(WebhookEvent)}.
+     *
+     * @param envelope     fields of the webhook request sent with each event
+     * @param firstAttempt false when the events are checked again, they were already deduplicated
+     */
+    private void processEvents(List<WebhookEvent> eventList, Json envelope, boolean firstAttempt){
+        final boolean groupedEvents = "true".equalsIgnoreCase(groupServiceEvents);
+        final Map<String, List<WebhookEvent>> correlatedGroups = new LinkedHashMap<>();
+        final Map<String, List<WebhookEvent>> uncorrelatedGroups = new LinkedHashMap<>();
+        final List<WebhookEvent> delayedEvents = new ArrayList<>();
+        final long batchStart = System.currentTimeMillis();
+        // ids registered by the deduplicator of the events not sent yet
+        final Set<String> undispatched = new LinkedHashSet<>();
         try {
-            final String txt = ev.string(key);
-            if (StringUtils.isNotBlank(txt) && txt.contains("@") && txt.contains("+")) {
-                final String id = txt.substring(txt.indexOf("+") + 1, txt.indexOf("@"));
-                if (StringUtils.isNotBlank(id) && !ids.contains(id)) {
-                    ids.add(id);
+            for (WebhookEvent e : eventList) {
+                final String eventId = StringUtils.trimToNull(e.getEventId());
+                if(firstAttempt && eventId != null && eventDeduplicator.isDuplicate(eventId)){
+                    // batch retried by SparkPost
+                    if (properties().isDebug()) {
+                        logger.info(String.format("Duplicated event [%s] discarded - %s", eventId, eventDeduplicator));
+                    }
+                    continue;
+                }
+                if(eventId != null){
+                    undispatched.add(eventId);
+                }
+                if(e.isRelayMessage()){
+                    sendEmailEvent(Json.map().set("body", relayMessagePayload(e)));
+                    undispatched.remove(eventId);
+                } else {
+                    if(firstAttempt && suppressionList != null && suppressionList.update(e)){
+                        metrics.increment("suppressions_received");
+                    }
+                    String functionId = null;
+                    for (String id : e.getIds()) {
+                        // find function id
+                        functionId = findFunctionId(id);
+                        if(StringUtils.isNotBlank(functionId)){
+                            break;
+                        }
+                    }
+                    if(StringUtils.isBlank(functionId) && firstAttempt && isDelayedCorrelation(e)){
+                        delayedEvents.add(e);
+                        continue;
+                    }
+                    metrics.increment(StringUtils.isNotBlank(functionId) ? "events_correlated" : "events_uncorrelated");
+                    if(groupedEvents){
+                        final String key = StringUtils.isNotBlank(functionId) ? functionId : StringUtils.defaultString(e.getEventName());
+                        final Map<String, List<WebhookEvent>> groups = StringUtils.isNotBlank(functionId) ? correlatedGroups : uncorrelatedGroups;
+                        if(!groups.containsKey(key)){
+                            groups.put(key, new ArrayList<>());
+                        }
+                        groups.get(key).add(e);
+                    } else if(StringUtils.isNotBlank(functionId)){
+                        // send service as response
+                        sendEvent(EVENT_SERVICE, copyEnvelope(envelope).set("body", e.toJson()), functionId);
+                        undispatched.remove(eventId);
+                    } else {
+                        sendEvent(EVENT_SERVICE, copyEnvelope(envelope).set("body", e.toJson()));
+                        undispatched.remove(eventId);
+                    }
                 }
             }
-        } catch (Exception ex){
-            logger.info(String.format("Exception when try to extract the id from [%s]", key), ex);
+
+            // grouped events: one event per function id and one event per type of event (delivery, bounce, open...) for the other ones
+            for (Map.Entry<String, List<WebhookEvent>> group : correlatedGroups.entrySet()) {
+                sendGroupedEvents(group.getValue(), group.getKey(), envelope, undispatched);
+            }
+            for (List<WebhookEvent> group : uncorrelatedGroups.values()) {
+                sendGroupedEvents(group, null, envelope, undispatched);
+            }
+
+            if(!delayedEvents.isEmpty()){
+                scheduleDelayedEvents(delayedEvents, envelope, batchStart + CORRELATION_MISS_RETRY_DELAY - System.currentTimeMillis());
+                for (WebhookEvent e : delayedEvents) {
+                    undispatched.remove(StringUtils.trimToNull(e.getEventId()));
+                }
+            }
+        } catch (RuntimeException ex){
+            // events not sent are processed when SparkPost retries the batch
+            for (String eventId : undispatched) {
+                eventDeduplicator.forget(eventId);
+            }
+            throw ex;
+        }
+    }
+
+    private void sendGroupedEvents(List<WebhookEvent> groupEvents, String functionId, Json envelope, Set<String> undispatched){
+        for (int from = 0; from < groupEvents.size(); from += MAX_GROUPED_EVENTS) {
+            final List<WebhookEvent> chunk = groupEvents.subList(from, Math.min(from + MAX_GROUPED_EVENTS, groupEvents.size()));
+            final List<Json> bodies = new ArrayList<>();
+            for (WebhookEvent e : chunk) {
+                bodies.add(e.toJson());
+            }
+            final Json event = copyEnvelope(envelope)
+                    .set("grouped", true)
+                    .set("count", chunk.size())
+                    .set("body", bodies);
+            if(functionId != null){
+                sendEvent(EVENT_SERVICE, event, functionId);
+            } else {
+                sendEvent(EVENT_SERVICE, event);
+            }
+            for (WebhookEvent e : chunk) {
+                undispatched.remove(StringUtils.trimToNull(e.getEventId()));
+            }
         }
     }
 
     @EndpointWebService(path = "/inbound")
     public WebServiceResponse inboundDomainProcessor(WebServiceRequest request){
-        final Json email = HttpService.defaultWebhookConverter(request);
+        final Object body;
+        try {
+            // relay webhooks are not authenticated, compressed bodies are expanded up to the same limit of events
+            body = webhookBody(request);
+        } catch (IOException ex){
+            logger.info(String.format("Inbound emails with invalid compressed body [%s]", ex.getMessage()));
+            return HttpService.defaultWebhookResponse("Invalid body", 400);
+        }
+        if(body == request.getBody()){
+            final Json email = HttpService.defaultWebhookConverter(request);
+            return processWebhook("inbound", webhookBatchId(request), () -> processInboundEmails(email));
+        }
+        // the default converter can't read compressed bodies, the emails are parsed from the decompressed body
+        final Json envelope = webhookEnvelope(request);
+        final List<WebhookEvent> eventList = WebhookEventParser.parse(body);
+        if(eventList != null && !eventList.isEmpty()){
+            metrics.increment("inbound_batches");
+            metrics.record("inbound_batch_size", eventList.size());
+            return processWebhook("inbound", webhookBatchId(request), () -> {
+                for (WebhookEvent e : eventList) {
+                    sendEmailEvent(copyEnvelope(envelope).set("body", relayMessagePayload(e)));
+                }
+            });
+        }
+        final Json email = decompressedWebhookJson(envelope, (byte[]) body);
+        return processWebhook("inbound", webhookBatchId(request), () -> processInboundEmails(email));
+    }
+
+    /**
+     * Returns the payload of a relay message, with the attachments uploaded to files when the offload
+     * of inbound attachments is enabled
+     */
+    private Json relayMessagePayload(WebhookEvent event){
+        if(inboundMessageOffloader == null || !event.isRelayMessage()){
+            return event.toJson();
+        }
+        final long start = System.nanoTime();
+        try {
+            final Json payload = inboundMessageOffloader.offload(event);
+            final Json content = WebhookEvent.relayContent(payload);
+            if(content != null && content.contains("email_rfc822_file")){
+                metrics.increment("inbound_offloaded");
+                metrics.add("inbound_attachments", content.jsons("attachments").size());
+            }
+            return payload;
+        } catch (Exception ex) {
+            appLogger.error(String.format("Attachments of the inbound email could not be uploaded, the email is sent in the event [%s]", ex.getMessage()), ex);
+            return event.toJson();
+        } finally {
+            metrics.recordLatency("inbound_offload", start);
+        }
+    }
 
+    private void processInboundEmails(Json email){
         final List<Json> emails = email.jsons("body");
-        if(emails != null && !emails.isEmpty()){
+        metrics.increment("inbound_batches");
+        metrics.record("inbound_batch_size", emails != null ? emails.size() : 1);
+        if(emails != null && !emails.isEmpty() && inboundMessageOffloader != null){
+            // each email is sent with the other fields of the request, with the attachments uploaded to files
+            final Json envelope = copyEnvelope(email);
+            for (WebhookEvent e : WebhookEventParser.fromJson(emails)) {
+                sendEmailEvent(copyEnvelope(envelope).set("body", relayMessagePayload(e)));
+            }
+        } else if(emails != null && !emails.isEmpty()){
             for (Json e : emails) {
                 email.set("body", e);
                 sendEmailEvent(email);
@@ -211,7 +793,16 @@ public class SparkPostEndpoint extends HttpEndpoint {
         } else {
             sendEmailEvent(email);
         }
-        return HttpService.defaultWebhookResponse();
+    }
+
+    private void sendEvent(String event, Json data){
+        metrics.increment("events_sent");
+        metrics.time("event_send", () -> events().send(event, data));
+    }
+
+    private void sendEvent(String event, Json data, String functionId){
+        metrics.increment("events_sent");
+        metrics.time("event_send", () -> events().send(event, data, functionId));
     }
 
     private void sendEmailEvent(Json email){
@@ -220,35 +811,138 @@ public class SparkPostEndpoint extends HttpEndpoint {
         }
         boolean response = false;
         if(email.contains("body") && email.json("body").contains("msys") && email.json("body").json("msys").contains("relay_message")){
-            final String recipient = email.json("body").json("msys").json("relay_message").string("rcpt_to");
-            if(StringUtils.isNotBlank(recipient) && recipient.contains("+") && recipient.contains("@") && recipient.indexOf("+") < recipient.indexOf("@")){
-                final String messageId = recipient.substring(recipient.indexOf("+")+1, recipient.indexOf("@"));
-
-                if(StringUtils.isNotBlank(messageId)) {
-                    // find function id
-                    final Json message = emails.findById(messageId);
-                    if(message != null && message.contains("functionId")){
-                        final String functionId = message.string("functionId");
-                        if(StringUtils.isNotBlank(functionId)){
-                            // send email as response
-
-                            events().send(EVENT_RESPONSE, email, functionId);
-                            response = true;
-                        }
-                    }
+            final Json relayMessage = email.json("body").json("msys").json("relay_message");
+            if("true".equalsIgnoreCase(extractReplies)){
+                // the email could be reused for the next message of the batch
+                final Json reply = metrics.time("reply_extraction", () -> ReplyExtractor.extract(relayMessage));
+                if(reply != null){
+                    email.set("reply", reply);
+                } else {
+                    email.remove("reply");
+                }
+            }
+            final String recipient = relayMessage.string("rcpt_to");
+            final String messageId = WebhookEventParser.extractId(recipient);
+            if(StringUtils.isNotBlank(messageId)) {
+                // find function id
+                final String functionId = findFunctionId(messageId);
+                if(StringUtils.isNotBlank(functionId)){
+                    // send email as response
+
+                    sendEvent(EVENT_RESPONSE, email, functionId);
+                    response = true;
                 }
             }
         }
 
         if(!response) {
             // send the email event
-            events().send(EVENT_EMAIL, email);
+            sendEvent(EVENT_EMAIL, email);
+        }
+    }
+
+    /**
+     * Returns the function id related to the message id. Recipients of a batch share the message id of
+     * the transmission, but ids set by the app can also contain the separator, so the whole id is looked
+     * up first.
+     */
+    private String findFunctionId(String recipientMessageId){
+        final String functionId = lookupFunctionId(recipientMessageId);
+        final int separator = recipientMessageId.indexOf(BATCH_MESSAGE_ID_SEPARATOR);
+        if(StringUtils.isBlank(functionId) && separator > 0){
+            return lookupFunctionId(recipientMessageId.substring(0, separator));
+        }
+        return functionId;
+    }
+
+    /**
+     * Returns the function id related to the message id, checking the in-memory cache and the records
+     * not saved yet before the data store
+     */
+    private String lookupFunctionId(String messageId){
+        if(signedIds != null){
+            final String functionId = signedIds.decode(messageId);
+            if(functionId != null){
+                return functionId;
+            }
+        }
+        final CorrelationCache.Result cached = correlationCache.get(messageId);
+        if(cached != null){
+            return cached.getFunctionId();
+        }
+        String functionId = correlationWriter != null ? correlationWriter.get(messageId) : null;
+        if(functionId != null){
+            metrics.increment("correlation_buffer_hits");
+            return functionId;
+        }
+        final Json message = metrics.time("store_find", () -> emails.findById(messageId));
+        long date = 0;
+        if(message != null && message.contains("functionId")){
+            functionId = message.string("functionId");
+            date = message.contains("date") ? message.longInteger("date") : 0;
+        }
+        if(StringUtils.isBlank(functionId) && correlationWriter != null){
+            // the record could have been added while the data store was queried
+            functionId = correlationWriter.get(messageId);
+            date = System.currentTimeMillis();
+        }
+        if(StringUtils.isNotBlank(functionId)){
+            // records saved without date are not cached, it is not known when they expire
+            if(date > 0){
+                correlationCache.put(messageId, functionId, date);
+            }
+        } else if(correlationWriter == null){
+            // with write-behind the record could be saved later by another instance, misses are not cached
+            correlationCache.putMissing(messageId);
+        }
+        if (properties().isDebug()) {
+            logger.info(String.format("Correlation cache - %s", correlationCache));
+        }
+        return functionId;
+    }
+
+    /**
+     * With write-behind of correlation records, an email sent by another instance could not be saved yet
+     * when its first events arrive. Recent events that were not correlated are checked again after the
+     * records of the other instances were saved.
+     */
+    private boolean isDelayedCorrelation(WebhookEvent e){
+        return correlationWriter != null && !e.getIds().isEmpty() && e.getTimestamp() > 0
+                && System.currentTimeMillis() - e.getTimestamp() <= CORRELATION_RECENT_EVENT_PERIOD;
+    }
+
+    /**
+     * Checks the events again after the delay, without holding the thread that processes the webhook.
+     * Events that can't be sent are forgotten by the deduplicator, so they are processed if SparkPost
+     * retries the batch.
+     */
+    private void scheduleDelayedEvents(List<WebhookEvent> delayedEvents, Json envelope, long delay){
+        metrics.add("correlation_delayed_lookups", delayedEvents.size());
+        final Runnable task = () -> {
+            try {
+                processEvents(delayedEvents, envelope, false);
+            } catch (Exception ex){
+                logger.info(String.format("Exception when try to send [%s] delayed events: %s", delayedEvents.size(), ex.getMessage()));
+            }
+        };
+        try {
+            delayedEventsExecutor.schedule(task, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex){
+            // the endpoint is stopping
+            task.run();
         }
     }
 
     @EndpointFunction(name = "_sendEmail")
     public Json sendEmail(FunctionRequest request){
-        String messageId = generateMessageId();
+        metrics.increment("emails_sent");
+        return metrics.time("send_email", () -> processSendEmail(request));
+    }
+
+    private Json processSendEmail(FunctionRequest request){
+        final String signedMessageId = generateSignedMessageId(request.getFunctionId());
+        final String generatedMessageId = signedMessageId != null ? signedMessageId : generateMessageId();
+        String messageId = generatedMessageId;
 
         Json body = request.getJsonParams();
         if(body != null){
@@ -258,170 +952,654 @@ public class SparkPostEndpoint extends HttpEndpoint {
             body.remove("__message_id");
             messageId = StringUtils.isNotBlank(newMessageId) ? newMessageId : messageId;
         }
+        final List<String> suppressed = removeSuppressedRecipients(body);
         if(body != null){
             body = completeTransmissionFiles(body);
+            promoteContent(body, messageId);
+        }
+
+        // save on store the function and message ids (signed message ids already contain the function id)
+        if(!messageId.equals(signedMessageId)) {
+            saveMessageId(messageId, request.getFunctionId());
+        }
+
+        if(body != null && transmissionSender.isCoalescing() && messageId.equals(generatedMessageId)){
+            final List<Json> recipients = getRecipients(body);
+            if(recipients != null && !recipients.isEmpty()){
+                return addSuppressedRecipients(sendCoalescedEmail(body, recipients, messageId), suppressed);
+            }
+        }
+
+        // continue with the default processor
+        return addSuppressedRecipients(postTransmission(body), suppressed);
+    }
+
+    @EndpointFunction(name = "_sendEmailBatch")
+    public Json sendEmailBatch(FunctionRequest request){
+        metrics.increment("email_batches_sent");
+        return metrics.time("send_email_batch", () -> processSendEmailBatch(request));
+    }
+
+    private Json processSendEmailBatch(FunctionRequest request){
+        final Json params = request.getJsonParams();
+        if(params == null || params.isEmpty()){
+            throw EndpointException.permanent(ErrorCode.ARGUMENT, "Empty batch of emails");
+        }
+        final List<Json> messages = params.contains("messages") ? params.jsons("messages") : Collections.singletonList(params);
+        if(messages == null || messages.isEmpty()){
+            throw EndpointException.permanent(ErrorCode.ARGUMENT, "Empty list of messages");
+        }
+
+        // group recipients of messages with the same content, moving the message data to each recipient
+        final Map<String, Json> transmissions = new LinkedHashMap<>();
+        final Map<String, List<Json>> transmissionRecipients = new LinkedHashMap<>();
+        final List<String> suppressed = new ArrayList<>();
+        for (Json message : messages) {
+            List<Json> recipients = message.jsons("recipients");
+            if(recipients == null || recipients.isEmpty()){
+                throw EndpointException.permanent(ErrorCode.ARGUMENT, "Message without recipients");
+            }
+            if(suppressionList != null){
+                recipients = filterSuppressedRecipients(recipients, isTransactional(message), suppressed);
+                if(recipients.isEmpty()){
+                    continue;
+                }
+            }
+            final Json transmission = Json.map()
+                    .setIfNotNull("content", message.json("content"))
+                    .setIfNotNull("options", message.json("options"))
+                    .setIfNotNull("campaign_id", message.string("campaign_id"))
+                    .setIfNotNull("description", message.string("description"))
+                    .setIfNotNull("return_path", message.string("return_path"));
+            final String key = transmission.toString();
+            if(!transmissions.containsKey(key)){
+                transmissions.put(key, transmission);
+                transmissionRecipients.put(key, new ArrayList<>());
+            }
+            for (Json recipient : recipients) {
+                recipient.set("substitution_data", mergeJson(recipient.json("substitution_data"), message.json("substitution_data")));
+                recipient.set("metadata", mergeJson(recipient.json("metadata"), message.json("metadata")));
+                transmissionRecipients.get(key).add(recipient);
+            }
+        }
+
+        if(transmissions.isEmpty()){
+            throw EndpointException.permanent(ErrorCode.ARGUMENT, String.format("All the recipients are in the suppression list %s", suppressed));
+        }
+
+        final List<Json> results = new ArrayList<>();
+        final List<Json> messageIds = new ArrayList<>();
+        for (Map.Entry<String, Json> entry : transmissions.entrySet()) {
+            final List<Json> recipients = transmissionRecipients.get(entry.getKey());
+            for (int from = 0; from < recipients.size(); from += MAX_BATCH_RECIPIENTS) {
+                final List<Json> chunk = recipients.subList(from, Math.min(from + MAX_BATCH_RECIPIENTS, recipients.size()));
+                final Json body = Json.parse(entry.getValue().toString());
+                results.add(sendTransmissionBatch(request.getFunctionId(), body, chunk, messageIds));
+            }
+        }
+        return addSuppressedRecipients(Json.map()
+                .set("results", results)
+                .set("messages", messageIds), suppressed);
+    }
+
+    /**
+     * Sends one transmission for the recipients. Each recipient gets its own message id (the message id
+     * of the transmission plus the index of the recipient) in the metadata and in the Reply-To address.
+     */
+    private Json sendTransmissionBatch(String functionId, Json body, List<Json> recipients, List<Json> messageIds){
+        final String signedMessageId = generateSignedMessageId(functionId);
+        final String messageId = signedMessageId != null ? signedMessageId : generateMessageId();
+
+        body = completeTransmissionFrom(body, null);
+        body.remove("__message_id");
+        setRecipientsReplyTo(body);
+
+        for (int i = 0; i < recipients.size(); i++) {
+            final Json recipient = recipients.get(i);
+            final String recipientMessageId = messageId + BATCH_MESSAGE_ID_SEPARATOR + Integer.toString(i, Character.MAX_RADIX);
+            setRecipientMessageId(recipient, recipientMessageId);
+
+            messageIds.add(Json.map()
+                    .set("address", recipientAddress(recipient))
+                    .set("messageId", recipientMessageId)
+            );
+        }
+        body.set("recipients", recipients);
+        body = completeTransmissionFiles(body);
+        promoteContent(body, null);
+
+        if(!messageId.equals(signedMessageId)) {
+            saveMessageId(messageId, functionId);
+        }
+
+        return postTransmission(body);
+    }
+
+    /**
+     * Sends the email in a transmission shared with other sends of the same content that arrive within
+     * the coalesce window. The message id is moved from the sender address to the recipients.
+     */
+    private Json sendCoalescedEmail(Json body, List<Json> recipients, String messageId){
+        body.remove("recipients");
+        setRecipientsReplyTo(body);
+        for (Json recipient : recipients) {
+            recipient.set("substitution_data", mergeJson(recipient.json("substitution_data"), body.json("substitution_data")));
+            recipient.set("metadata", mergeJson(recipient.json("metadata"), body.json("metadata")));
+            setRecipientMessageId(recipient, messageId);
+        }
+        body.remove("substitution_data");
+        body.remove("metadata");
+        return transmissionSender.sendCoalesced(body.toString(), body, recipients, transmission -> sendTransmissionRequest("api/v1/transmissions", transmission));
+    }
+
+    private Json postTransmission(Json body){
+        return transmissionSender.send(() -> sendTransmissionRequest("api/v1/transmissions", body));
+    }
+
+    /**
+     * Sends the transmission, streaming the content of the files if the body contains file placeholders
+     * and compressing it if it is large enough
+     */
+    private Json sendTransmissionRequest(String path, Json body){
+        if(transmissionClient != null){
+            final String json = body.toString();
+            if(StreamingJsonEntity.containsPlaceholders(json) || transmissionClient.isCompressed(json)){
+                return metrics.time("transmission_request", () -> callTransmissionApi(() -> transmissionClient.post(path, json, fileId -> metrics.time("file_download", () -> files().download(fileId)))));
+            }
+        }
+        return metrics.time("transmission_request", () -> callTransmissionApi(() -> httpService().defaultPostRequest(Json.map()
+                .set("path", path)
+                .set("body", body)
+        )));
+    }
+
+    /**
+     * Executes the request to the SparkPost API, retrying transient errors if resilient calls are enabled.
+     * Requests that are not idempotent are only retried when SparkPost did not process them.
+     */
+    private <T> T callApi(Supplier<T> request, boolean idempotent){
+        return apiRetrier != null ? apiRetrier.call(request, idempotent, true) : request.get();
+    }
+
+    /**
+     * Transmissions are not idempotent and throttled ones are retried by the transmission sender, which also
+     * slows down the next transmissions
+     */
+    private <T> T callTransmissionApi(Supplier<T> request){
+        return apiRetrier != null ? apiRetrier.call(request, false, false) : request.get();
+    }
+
+    /**
+     * Removes any code from the sender address and sets a Reply-To address that takes the message id
+     * from the substitution data of each recipient
+     */
+    private void setRecipientsReplyTo(Json body){
+        final Json content = body.json("content");
+        if(content != null && !content.contains("push") && content.json("from") != null){
+            final Json from = content.json("from");
+            final String email = from.string("email");
+            if(StringUtils.isNotBlank(email) && email.contains("@")){
+                String account = email.substring(0, email.indexOf("@"));
+                account = account.contains("+") ? account.substring(0, account.indexOf("+")) : account;
+                final String emailDomain = email.substring(email.indexOf("@")+1);
+                from.set("email", generateSenderAddress(account, null, emailDomain));
+                content.set("from", from);
+                content.set("reply_to", generateSenderAddress(account, "{{"+WebhookEvent.MESSAGE_ID_METADATA+"}}", emailDomain));
+                body.set("content", content);
+            }
+        }
+    }
+
+    private void setRecipientMessageId(Json recipient, String messageId){
+        recipient.set("metadata", mergeJson(recipient.json("metadata"), null).set(WebhookEvent.MESSAGE_ID_METADATA, messageId));
+        recipient.set("substitution_data", mergeJson(recipient.json("substitution_data"), null).set(WebhookEvent.MESSAGE_ID_METADATA, messageId));
+    }
+
+    private List<Json> getRecipients(Json body){
+        try {
+            return body.jsons("recipients");
+        } catch (Exception ex){
+            // stored recipient list
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the inline content by a stored template when the same content was sent enough times. The
+     * message id is moved from the sender address to the recipients, like in batches, so sends of the
+     * same content share the template.
+     *
+     * @param messageId message id included in the sender address, or null if the recipients already have it
+     */
+    private void promoteContent(Json body, String messageId){
+        if(templatePromoter == null){
+            return;
+        }
+        final List<Json> recipients = getRecipients(body);
+        final Json content = body.json("content");
+        if(recipients == null || recipients.isEmpty() || content == null){
+            return;
+        }
+        Json templateContent = content;
+        if(messageId != null){
+            final Json probe = Json.map().set("content", content.cloneJson());
+            setRecipientsReplyTo(probe);
+            templateContent = probe.json("content");
+        }
+        final String templateId = templatePromoter.getTemplateId(templateContent);
+        if(templateId != null){
+            if(messageId != null){
+                for (Json recipient : recipients) {
+                    setRecipientMessageId(recipient, messageId);
+                }
+                body.set("recipients", recipients);
+            }
+            body.set("content", Json.map().set("template_id", templateId));
+            metrics.increment("transmissions_templated");
+        }
+    }
+
+    private String recipientAddress(Json recipient){
+        final Object address = recipient.object("address");
+        return address instanceof Json ? ((Json) address).string("email") : address != null ? address.toString() : null;
+    }
+
+    private boolean isTransactional(Json body){
+        final Json options = body.json("options");
+        return options != null && Boolean.TRUE.equals(options.bool("transactional"));
+    }
+
+    /**
+     * Removes the recipients in the local suppression list from the transmission. Returns the addresses
+     * removed, and fails if all the recipients are suppressed, so the transmission is not sent.
+     */
+    private List<String> removeSuppressedRecipients(Json body){
+        if(suppressionList == null || body == null){
+            return Collections.emptyList();
         }
+        final List<Json> recipients = getRecipients(body);
+        if(recipients == null || recipients.isEmpty()){
+            return Collections.emptyList();
+        }
+        final List<String> suppressed = new ArrayList<>();
+        final List<Json> allowed = filterSuppressedRecipients(recipients, isTransactional(body), suppressed);
+        if(allowed.isEmpty()){
+            throw EndpointException.permanent(ErrorCode.ARGUMENT, String.format("All the recipients are in the suppression list %s", suppressed));
+        }
+        if(!suppressed.isEmpty()){
+            body.set("recipients", allowed);
+        }
+        return suppressed;
+    }
+
+    /**
+     * Returns the recipients that are not in the local suppression list, adding the other ones to suppressed
+     */
+    private List<Json> filterSuppressedRecipients(List<Json> recipients, boolean transactional, List<String> suppressed){
+        if(suppressionList.needsRefresh()){
+            refreshSuppressionList();
+        }
+        final List<Json> allowed = new ArrayList<>();
+        for (Json recipient : recipients) {
+            final String address = recipientAddress(recipient);
+            if(address != null && suppressionList.isSuppressed(address, transactional)){
+                suppressed.add(address);
+                metrics.increment("recipients_suppressed");
+            } else {
+                allowed.add(recipient);
+            }
+        }
+        return allowed;
+    }
 
-        // save on store the function and message ids
-        if(StringUtils.isNotBlank(messageId) && StringUtils.isNotBlank(request.getFunctionId())) {
+    private Json addSuppressedRecipients(Json response, List<String> suppressed){
+        if(response != null && !suppressed.isEmpty()){
+            // the response of coalesced transmissions is shared by all the sends
+            return response.cloneJson().set("suppressedRecipients", suppressed);
+        }
+        return response;
+    }
+
+    /**
+     * Loads the suppression list of the account in background
+     */
+    private void refreshSuppressionList(){
+        apiExecutor.submit(() -> {
             try {
-                emails.save(Json.map()
-                        .set("_id", messageId)
-                        .set("functionId", request.getFunctionId())
-                        .set(Parameter.DATA_STORE_TTL, WAITING_RESPONSE_PERIOD)
-                );
+                if(suppressionList.refresh(path -> metrics.time("suppression_list_request", () -> callApi(() -> httpService().defaultGetRequest(Json.map().set("path", path)), true)))){
+                    logger.info(String.format("Suppression list loaded - %s", suppressionList));
+                }
+            } catch (Exception ex){
+                appLogger.error(String.format("Error when try to load the suppression list [%s]", ex.getMessage()), ex);
+            }
+        });
+    }
+
+    private Json mergeJson(Json target, Json source){
+        if(target == null){
+            target = Json.map();
+        }
+        if(source != null){
+            for (String key : source.keys()) {
+                if(!target.contains(key)){
+                    target.set(key, source.object(key));
+                }
+            }
+        }
+        return target;
+    }
+
+    private void saveMessageId(String messageId, String functionId){
+        if(StringUtils.isNotBlank(messageId) && StringUtils.isNotBlank(functionId)) {
+            try {
+                if(correlationWriter != null){
+                    // saved in background, the record is found in the writer until then (saved here if the buffer is full)
+                    correlationWriter.add(messageId, functionId);
+                } else {
+                    storeMessageId(messageId, functionId);
+                }
+                correlationCache.put(messageId, functionId, System.currentTimeMillis());
             } catch (Exception ex){
                 throw EndpointException.permanent(ErrorCode.CLIENT, "Error when try to save message id");
             }
         }
+    }
 
-        // continue with the default processor
-        return httpService().defaultPostRequest(Json.map()
-                .set("path", "api/v1/transmissions")
-                .set("body", body)
-        );
+    private void storeMessageId(String messageId, String functionId){
+        metrics.time("store_save", () -> emails.save(Json.map()
+                .set("_id", messageId)
+                .set("functionId", functionId)
+                .set("date", System.currentTimeMillis())
+                .set(Parameter.DATA_STORE_TTL, WAITING_RESPONSE_PERIOD)
+        ));
+    }
+
+    @EndpointWebService(path = "/metrics")
+    public WebServiceResponse metricsProcessor(WebServiceRequest request){
+        final Object auth = request.getHeader("Authorization");
+        if(!basicAuth.equals(auth)){
+            logger.info(String.format("Metrics request with invalid auth [%s]", auth));
+            return HttpService.defaultWebhookResponse("Unauthorized", 401);
+        }
+        return HttpService.defaultWebhookResponse(metrics.toPrometheus(), 200);
+    }
+
+    @EndpointFunction(name = "_getMetrics")
+    public Json getMetrics(FunctionRequest request){
+        return metrics.toJson();
     }
 
     @EndpointFunction(name = "_convertToText")
     public Json convertToText(FunctionRequest request){
-        final String result = EmailUtils.convertToTextBody(request.getJsonParams().string("value"));
-        return Json.map().set("result", result);
+        return convert(request, "text", EmailUtils::convertToTextBody);
     }
 
     @EndpointFunction(name = "_convertToHtml")
     public Json convertToHtml(FunctionRequest request){
-        final String result = EmailUtils.convertToHtml(request.getJsonParams().string("value"));
-        return Json.map().set("result", result);
+        return convert(request, "html", EmailUtils::convertToHtml);
     }
 
     @EndpointFunction(name = "_extractTextResponse")
     public Json extractTextResponse(FunctionRequest request){
-        final String result = EmailUtils.parseTextBody(null, request.getJsonParams().string("value"));
-        return Json.map().set("result", result);
+        return convert(request, "text_response", value -> EmailUtils.parseTextBody(null, value));
     }
 
     @EndpointFunction(name = "_extractHtmlResponse")
     public Json extractHtmlResponse(FunctionRequest request){
-        final String result = EmailUtils.parseHtmlBody(null, request.getJsonParams().string("value"));
+        return convert(request, "html_response", value -> EmailUtils.parseHtmlBody(null, value));
+    }
+
+    @EndpointFunction(name = "_convertToTextBatch")
+    public Json convertToTextBatch(FunctionRequest request){
+        return convertBatch(request, "text", EmailUtils::convertToTextBody);
+    }
+
+    @EndpointFunction(name = "_convertToHtmlBatch")
+    public Json convertToHtmlBatch(FunctionRequest request){
+        return convertBatch(request, "html", EmailUtils::convertToHtml);
+    }
+
+    @EndpointFunction(name = "_extractTextResponseBatch")
+    public Json extractTextResponseBatch(FunctionRequest request){
+        return convertBatch(request, "text_response", value -> EmailUtils.parseTextBody(null, value));
+    }
+
+    @EndpointFunction(name = "_extractHtmlResponseBatch")
+    public Json extractHtmlResponseBatch(FunctionRequest request){
+        return convertBatch(request, "html_response", value -> EmailUtils.parseHtmlBody(null, value));
+    }
+
+    private Json convert(FunctionRequest request, String conversion, Function<String, String> converter){
+        final String result = conversionCache.convert(conversion, request.getJsonParams().string("value"), converter);
         return Json.map().set("result", result);
     }
 
+    /**
+     * Converts the values in parallel, in the same order. Repeated values are converted once and the
+     * results are shared with the single conversions through the cache.
+     */
+    private Json convertBatch(FunctionRequest request, String conversion, Function<String, String> converter){
+        final List<Object> values = request.getJsonParams().objects("values");
+        if(values == null){
+            throw EndpointException.permanent(ErrorCode.ARGUMENT, "Empty list of values");
+        }
+        if(values.size() > MAX_CONVERSION_BATCH){
+            throw EndpointException.permanent(ErrorCode.ARGUMENT, String.format("Too many values [%s], the maximum is [%s]", values.size(), MAX_CONVERSION_BATCH));
+        }
+        return metrics.time("convert_batch", () -> {
+            final Map<String, Future<String>> conversions = new HashMap<>();
+            for (Object value : values) {
+                final String text = value != null ? value.toString() : null;
+                if(text != null && !conversions.containsKey(text)){
+                    conversions.put(text, conversionExecutor.submit(() -> conversionCache.convert(conversion, text, converter)));
+                }
+            }
+            final List<Object> results = new ArrayList<>();
+            for (Object value : values) {
+                results.add(value != null ? await(conversions.get(value.toString()), "conversion") : null);
+            }
+            metrics.add("conversions", values.size());
+            return Json.map().set("results", results);
+        });
+    }
+
     @EndpointFunction(name = "_configureInboundDomains")
     public void configureInboundDomains() throws EndpointException {
-        // check configuration
-        try {
-            Json response = httpService().defaultGetRequest(Json.map().set("path", "api/v1/account"));
-            if(!"active".equalsIgnoreCase(response.json("results") != null ? response.json("results").string("status") : null)){
-                throw EndpointException.permanent(ErrorCode.API, "SlackPost account is not active");
-            } else {
+        reconcileInboundDomains(true);
+    }
+
+    /**
+     * Registers the inbound domains and relay webhooks that are missing in SparkPost. Calls that do
+     * not depend on each other are done in parallel. When the reconciliation is not forced and the
+     * last reconciled state matches the current configuration, the API is not called at all.
+     */
+    private void reconcileInboundDomains(boolean force) throws EndpointException {
+        synchronized (inboundDomainsLock) {
+            try {
+                final List<String> iDomains = parseInboundDomains();
+                final String fingerprint = inboundDomainsFingerprint(iDomains);
+                if(!force && fingerprint.equals(findInboundDomainsFingerprint())){
+                    logger.info(String.format("Inbound domains %s already configured, skipping the reconciliation", iDomains));
+                    return;
+                }
+                logger.info(String.format("Domains to properties [%s]", iDomains));
+
+                // independent requests are sent in parallel
+                final Future<Json> accountRequest = apiExecutor.submit(() -> callApi(() -> httpService().defaultGetRequest(Json.map().set("path", "api/v1/account")), true));
+                final Future<Json> domainsRequest = apiExecutor.submit(() -> callApi(() -> httpService().defaultGetRequest(Json.map().set("path", "api/v1/inbound-domains")), true));
+                final Future<Json> relayWebhooksRequest = apiExecutor.submit(() -> callApi(() -> httpService().defaultGetRequest(Json.map().set("path", "api/v1/relay-webhooks")), true));
+
+                // check configuration
+                final Json account = await(accountRequest, "account");
+                if(!"active".equalsIgnoreCase(account.json("results") != null ? account.json("results").string("status") : null)){
+                    throw EndpointException.permanent(ErrorCode.API, "SlackPost account is not active");
+                }
                 logger.info("SlackPost account is active");
 
-                if(StringUtils.isBlank(inboundDomains)){
-                    throw EndpointException.permanent(ErrorCode.API, String.format("There is not configured domains on 'Inbound Domains' field [%s]", inboundDomains));
-                } else {
-                    final List<String> iDomains = new ArrayList<>();
-                    if(inboundDomains.contains(",")){
-                        // list of inbound domains
-                        final String[] parts = inboundDomains.split(",");
-                        for (String part : parts) {
-                            if(StringUtils.isNotBlank(part)){
-                                iDomains.add(part.trim().toLowerCase());
-                            }
+                // check domains
+                final Set<String> registeredDomains = new HashSet<>();
+                final List<Json> domains = await(domainsRequest, "inbound domains").jsons("results");
+                if(domains != null) {
+                    for (Json registeredDomain : domains) {
+                        if(StringUtils.isNotBlank(registeredDomain.string("domain"))){
+                            registeredDomains.add(registeredDomain.string("domain").toLowerCase());
                         }
-                    } else {
-                        iDomains.add(inboundDomains.trim().toLowerCase());
                     }
+                }
 
-                    if(iDomains.isEmpty()){
-                        throw EndpointException.permanent(ErrorCode.API, String.format("Empty Inbound Domains list [%s]", inboundDomains));
-                    } else {
-                        logger.info(String.format("Domains to properties [%s]", iDomains));
-
-                        // check domains
-                        final List<String> noRegisteredDomains = new ArrayList<>();
-                        response = httpService().defaultGetRequest(Json.map().set("path", "api/v1/inbound-domains"));
-                        final List<Json> registeredDomains = response.jsons("results");
-                        if(registeredDomains != null && !registeredDomains.isEmpty()) {
-                            for (String domain : iDomains) {
-                                boolean registerDomain = true;
-                                for (Json registeredDomain : registeredDomains) {
-                                    if(domain.equalsIgnoreCase(registeredDomain.string("domain"))){
-                                        registerDomain = false;
-                                        logger.info(String.format("Inbound domain [%s] already registered", domain));
-                                        break;
-                                    }
-                                }
-                                if(registerDomain){
-                                    noRegisteredDomains.add(domain);
-                                }
-                            }
-                        } else {
-                            noRegisteredDomains.addAll(iDomains);
-                        }
-
-                        // register domains
-                        for (String domainToRegister : noRegisteredDomains) {
-                            logger.info(String.format("Registering domain [%s]", domainToRegister));
-                            httpService().defaultPostRequest(Json.map()
-                                    .set("path", "api/v1/inbound-domains")
-                                    .set("body", Json.map()
-                                            .set("domain", domainToRegister)
-                                    )
-                            );
-                            appLogger.info(String.format("Domain [%s] registered as Inbound Domain on SparkPost", domainToRegister));
-                            logger.info(String.format("Inbound Domain [%s] registered", domainToRegister));
+                // check relay webhooks
+                final Map<String, String> registeredRelayWebhooks = new HashMap<>();
+                final List<Json> relayWebhooks = await(relayWebhooksRequest, "relay webhooks").jsons("results");
+                if(relayWebhooks != null) {
+                    for (Json registeredRelayWebhook : relayWebhooks) {
+                        final Json match = registeredRelayWebhook.json("match");
+                        if(match != null && StringUtils.isNotBlank(match.string("domain"))){
+                            registeredRelayWebhooks.put(match.string("domain").toLowerCase(), registeredRelayWebhook.string("id"));
                         }
+                    }
+                }
 
-                        // check relay webhooks
-                        final List<String> noRegisteredRelayWebhooks = new ArrayList<>();
-                        response = httpService().defaultGetRequest(Json.map().set("path", "api/v1/relay-webhooks"));
-                        List<Json> registeredRelayWebhooks = response.jsons("results");
-                        if(registeredRelayWebhooks != null && !registeredRelayWebhooks.isEmpty()) {
-                            for (String domain : iDomains) {
-                                boolean registerRelayWebhook = true;
-                                for (Json registeredRelayWebhook : registeredRelayWebhooks) {
-                                    Json match = registeredRelayWebhook.json("match");
-                                    if(match != null && domain.equalsIgnoreCase(match.string("domain"))){
-                                        registerRelayWebhook = false;
-                                        logger.info(String.format("Relay webhook [%s] already registered - id [%s]", domain, registeredRelayWebhook.string("id")));
-                                        break;
-                                    }
-                                }
-                                if(registerRelayWebhook){
-                                    noRegisteredRelayWebhooks.add(domain);
-                                }
+                // register missing domains and relay webhooks, the relay webhook needs the domain
+                final Map<String, Future<?>> registrations = new LinkedHashMap<>();
+                for (String domain : iDomains) {
+                    final boolean registerDomain = !registeredDomains.contains(domain);
+                    final boolean registerRelayWebhook = !registeredRelayWebhooks.containsKey(domain);
+                    if(!registerDomain){
+                        logger.info(String.format("Inbound domain [%s] already registered", domain));
+                    }
+                    if(!registerRelayWebhook){
+                        logger.info(String.format("Relay webhook [%s] already registered - id [%s]", domain, registeredRelayWebhooks.get(domain)));
+                    }
+                    if(registerDomain || registerRelayWebhook){
+                        registrations.put(domain, apiExecutor.submit(() -> {
+                            if(registerDomain){
+                                registerInboundDomain(domain);
                             }
-                        } else {
-                            noRegisteredRelayWebhooks.addAll(iDomains);
-                        }
-
-                        // register relay webhooks
-                        for (String relayWebhookToRegister : noRegisteredRelayWebhooks) {
-                            logger.info(String.format("Registering relay webhook [%s]", relayWebhookToRegister));
-                            response = httpService().defaultPostRequest(Json.map()
-                                    .set("path", "api/v1/relay-webhooks")
-                                    .set("body", Json.map()
-                                            .set("name", "Replies Webhook")
-                                            .set("target", properties().getWebServicesUri()+"/inbound")
-                                            .set("match", Json.map()
-                                                    .set("protocol", "SMTP")
-                                                    .set("domain", relayWebhookToRegister)
-                                            )
-                                    )
-                            );
-                            appLogger.info(String.format("Domain [%s] registered as Relay Webhook on SparkPost", relayWebhookToRegister));
-                            logger.info(String.format("Relay Webhook [%s] registered for domain [%s]",
-                                    response.json("results") != null ? response.json("results").string("id") : "-", relayWebhookToRegister));
-                        }
+                            if(registerRelayWebhook){
+                                registerRelayWebhook(domain);
+                            }
+                        }));
                     }
                 }
+                for (Map.Entry<String, Future<?>> registration : registrations.entrySet()) {
+                    await(registration.getValue(), String.format("domain [%s]", registration.getKey()));
+                }
+
+                saveInboundDomainsFingerprint(fingerprint, iDomains);
+            } catch (EndpointException rex){
+                logger.info(String.format("Exception when try to check SparkPost domain configuration [%s]: %s", rex.getMessage(), rex.getJson(false)));
+                throw rex;
+            } catch (Exception ex){
+                logger.info(String.format("Exception when try to check SparkPost domain configuration [%s]", ex.getMessage()));
+                throw EndpointException.permanent(ErrorCode.CLIENT, String.format("Exception when try to check SparkPost configuration [%s]", ex.getMessage()), ex);
+            }
+        }
+    }
+
+    private List<String> parseInboundDomains() {
+        if(StringUtils.isBlank(inboundDomains)){
+            throw EndpointException.permanent(ErrorCode.API, String.format("There is not configured domains on 'Inbound Domains' field [%s]", inboundDomains));
+        }
+        // list of inbound domains
+        final Set<String> iDomains = new LinkedHashSet<>();
+        for (String part : inboundDomains.split(",")) {
+            if(StringUtils.isNotBlank(part)){
+                iDomains.add(part.trim().toLowerCase());
+            }
+        }
+        if(iDomains.isEmpty()){
+            throw EndpointException.permanent(ErrorCode.API, String.format("Empty Inbound Domains list [%s]", inboundDomains));
+        }
+        return new ArrayList<>(iDomains);
+    }
+
+    private void registerInboundDomain(String domain) {
+        logger.info(String.format("Registering domain [%s]", domain));
+        try {
+            callApi(() -> httpService().defaultPostRequest(Json.map()
+                    .set("path", "api/v1/inbound-domains")
+                    .set("body", Json.map()
+                            .set("domain", domain)
+                    )
+            ), false);
+        } catch (EndpointException ex){
+            if(!ApiErrors.isConflict(ex)){
+                throw ex;
             }
-        } catch (EndpointException rex){
-            logger.info(String.format("Exception when try to check SparkPost domain configuration [%s]: %s", rex.getMessage(), rex.getJson(false)));
-            throw rex;
+            // registered at the same time by another instance
+            logger.info(String.format("Inbound domain [%s] already registered", domain));
+            return;
+        }
+        appLogger.info(String.format("Domain [%s] registered as Inbound Domain on SparkPost", domain));
+        logger.info(String.format("Inbound Domain [%s] registered", domain));
+    }
+
+    private void registerRelayWebhook(String domain) {
+        logger.info(String.format("Registering relay webhook [%s]", domain));
+        final Json response;
+        try {
+            response = callApi(() -> httpService().defaultPostRequest(Json.map()
+                    .set("path", "api/v1/relay-webhooks")
+                    .set("body", Json.map()
+                            .set("name", "Replies Webhook")
+                            .set("target", relayWebhookTarget())
+                            .set("match", Json.map()
+                                    .set("protocol", "SMTP")
+                                    .set("domain", domain)
+                            )
+                    )
+            ), false);
+        } catch (EndpointException ex){
+            if(!ApiErrors.isConflict(ex)){
+                throw ex;
+            }
+            // registered at the same time by another instance
+            logger.info(String.format("Relay webhook [%s] already registered", domain));
+            return;
+        }
+        appLogger.info(String.format("Domain [%s] registered as Relay Webhook on SparkPost", domain));
+        logger.info(String.format("Relay Webhook [%s] registered for domain [%s]",
+                response != null && response.json("results") != null ? response.json("results").string("id") : "-", domain));
+    }
+
+    private String relayWebhookTarget() {
+        return properties().getWebServicesUri()+"/inbound";
+    }
+
+    /**
+     * Hash of everything that affects the reconciliation of inbound domains: the account, the
+     * webhook target and the domains
+     */
+    private String inboundDomainsFingerprint(List<String> iDomains) {
+        final List<String> sortedDomains = new ArrayList<>(iDomains);
+        Collections.sort(sortedDomains);
+        return Hashes.sha256Hex(String.format("%s|%s|%s|%s", getApiUri(), apiKey, relayWebhookTarget(), StringUtils.join(sortedDomains, ",")));
+    }
+
+    private String findInboundDomainsFingerprint() {
+        try {
+            final Json state = settings.findById(INBOUND_DOMAINS_STATE_ID);
+            return state != null ? state.string("fingerprint") : null;
         } catch (Exception ex){
-            logger.info(String.format("Exception when try to check SparkPost domain configuration [%s]", ex.getMessage()));
-            throw EndpointException.permanent(ErrorCode.CLIENT, String.format("Exception when try to check SparkPost configuration [%s]", ex.getMessage()), ex);
+            logger.info(String.format("Exception when try to read the state of the inbound domains [%s]", ex.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Saves the state of the last reconciliation, an empty fingerprint forces the next one
+     */
+    private void saveInboundDomainsFingerprint(String fingerprint, List<String> iDomains) {
+        try {
+            settings.save(Json.map()
+                    .set("_id", INBOUND_DOMAINS_STATE_ID)
+                    .set("fingerprint", StringUtils.defaultString(fingerprint))
+                    .set("domains", iDomains)
+                    .set("date", System.currentTimeMillis())
+                    .set(Parameter.DATA_STORE_TTL, INBOUND_DOMAINS_STATE_TTL)
+            );
+        } catch (Exception ex){
+            logger.info(String.format("Exception when try to save the state of the inbound domains [%s]", ex.getMessage()));
         }
     }
 
@@ -439,7 +1617,7 @@ public class SparkPostEndpoint extends HttpEndpoint {
 
         // relay webhooks
         logger.info(String.format("Removing relay webhooks with domain [%s]", domain));
-        Json response = httpService().defaultGetRequest(Json.map().set("path", "api/v1/relay-webhooks"), request.getFunctionId());
+        Json response = callApi(() -> httpService().defaultGetRequest(Json.map().set("path", "api/v1/relay-webhooks"), request.getFunctionId()), true);
         List<Json> registeredRelayWebhooks = response.jsons("results");
         if(registeredRelayWebhooks != null && !registeredRelayWebhooks.isEmpty()) {
             for (Json registeredRelayWebhook : registeredRelayWebhooks) {
@@ -447,7 +1625,7 @@ public class SparkPostEndpoint extends HttpEndpoint {
                 if(StringUtils.isNotBlank(id)) {
                     Json match = registeredRelayWebhook.json("match");
                     if (match != null && domain.equalsIgnoreCase(match.string("domain"))) {
-                        httpService().defaultDeleteRequest(Json.map().set("path", String.format("/api/v1/relay-webhooks/%s", id)));
+                        callApi(() -> httpService().defaultDeleteRequest(Json.map().set("path", String.format("/api/v1/relay-webhooks/%s", id))), true);
                         appLogger.info(String.format("Relay webhook [%s] deleted", id));
                     }
                 }
@@ -456,16 +1634,20 @@ public class SparkPostEndpoint extends HttpEndpoint {
 
         // inbound endpoints
         logger.info(String.format("Removing inbound domains for [%s]", domain));
-        response = httpService().defaultGetRequest(Json.map().set("path", "api/v1/inbound-domains"), request.getFunctionId());
+        response = callApi(() -> httpService().defaultGetRequest(Json.map().set("path", "api/v1/inbound-domains"), request.getFunctionId()), true);
         final List<Json> registeredDomains = response.jsons("results");
         if(registeredDomains != null && !registeredDomains.isEmpty()) {
             for (Json registeredDomain : registeredDomains) {
                 if(domain.equalsIgnoreCase(registeredDomain.string("domain"))){
-                    httpService().defaultDeleteRequest(Json.map().set("path", String.format("/api/v1/inbound-domains/%s", domain)));
+                    final String path = String.format("/api/v1/inbound-domains/%s", domain);
+                    callApi(() -> httpService().defaultDeleteRequest(Json.map().set("path", path)), true);
                     logger.info(String.format("Inbound domain [%s] deleted", domain));
                 }
             }
         }
+
+        // the domain could still be in the settings, so the next startup has to check them again
+        saveInboundDomainsFingerprint(null, Collections.emptyList());
     }
 
     private Json completeTransmissionFrom(Json body, String messageId) {
@@ -527,30 +1709,100 @@ public class SparkPostEndpoint extends HttpEndpoint {
     private Json completeTransmissionFiles(Json body) {
         final Json content = body.json("content");
         if(content != null){
-            completeListFiles(content, "attachments");
-            completeListFiles(content, "inline_images");
+            final Map<String, Object> downloads = new LinkedHashMap<>();
+            final List<Json> attachments = listFiles(content, "attachments", downloads);
+            final List<Json> inlineImages = listFiles(content, "inline_images", downloads);
+            if(!downloads.isEmpty()){
+                downloadFiles(downloads);
+                completeListFiles(content, "attachments", attachments, downloads);
+                completeListFiles(content, "inline_images", inlineImages, downloads);
+            }
             body.set("content", content);
         }
         return body;
     }
 
-    private void completeListFiles(Json content, String property) {
+    private List<Json> listFiles(Json content, String property, Map<String, Object> downloads) {
         if(content.contains(property)){
-            boolean modified = false;
             final List<Json> files = content.jsons(property);
             for (Json file : files) {
                 if(file.contains("fileId") && !file.contains("data")){
-                    file.set("data", files().download(file.string("fileId"), true));
-                    modified = true;
+                    downloads.put(file.string("fileId"), null);
+                } else {
+                    file.remove("fileId");
                 }
-                file.remove("fileId");
             }
-            if(modified) {
-                content.set(property, files);
+            return files;
+        }
+        return null;
+    }
+
+    private void completeListFiles(Json content, String property, List<Json> files, Map<String, Object> downloads) {
+        if(files != null){
+            for (Json file : files) {
+                if(file.contains("fileId")){
+                    file.set("data", downloads.get(file.string("fileId")));
+                    file.remove("fileId");
+                }
+            }
+            content.set(property, files);
+        }
+    }
+
+    /**
+     * Resolves the content of the files, from the cache or downloading the missing ones in parallel
+     */
+    private void downloadFiles(Map<String, Object> downloads) {
+        final Map<String, Future<Object>> pending = new LinkedHashMap<>();
+        for (String fileId : downloads.keySet()) {
+            final Object data = attachmentCache.get(fileId);
+            if(data != null){
+                downloads.put(fileId, data);
+            } else {
+                pending.put(fileId, null);
+            }
+        }
+        if(streamingFiles){
+            // the content is encoded while the transmission is sent
+            for (String fileId : pending.keySet()) {
+                downloads.put(fileId, StreamingJsonEntity.placeholder(fileId));
+            }
+        } else if(pending.size() == 1){
+            final String fileId = pending.keySet().iterator().next();
+            downloads.put(fileId, downloadFile(fileId));
+        } else if(!pending.isEmpty()){
+            for (String fileId : pending.keySet()) {
+                pending.put(fileId, filesExecutor.submit(() -> downloadFile(fileId)));
+            }
+            for (Map.Entry<String, Future<Object>> download : pending.entrySet()) {
+                downloads.put(download.getKey(), await(download.getValue(), String.format("file [%s]", download.getKey())));
             }
         }
     }
 
+    /**
+     * Waits for the result of a task, rethrowing its exception
+     */
+    private static <T> T await(Future<T> future, String description) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw EndpointException.permanent(ErrorCode.CLIENT, String.format("Interrupted while waiting for %s", description), ex);
+        } catch (ExecutionException ex){
+            if(ex.getCause() instanceof RuntimeException){
+                throw (RuntimeException) ex.getCause();
+            }
+            throw EndpointException.permanent(ErrorCode.CLIENT, String.format("Exception when try to get %s", description), ex.getCause());
+        }
+    }
+
+    private Object downloadFile(String fileId) {
+        final Object data = metrics.time("file_download", () -> files().download(fileId, true));
+        attachmentCache.put(fileId, data);
+        return data;
+    }
+
     private String generateSenderAddress(){
         return generateSenderAddress(null);
     }
@@ -568,6 +1820,32 @@ public class SparkPostEndpoint extends HttpEndpoint {
         }
     }
 
+    private int parseInteger(String value, int defaultValue){
+        if(StringUtils.isNotBlank(value)){
+            try {
+                final int number = Integer.parseInt(value.trim());
+                if(number > 0){
+                    return number;
+                }
+            } catch (NumberFormatException ex){
+                logger.info(String.format("Invalid number [%s], using default [%s]", value, defaultValue));
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Returns a message id that contains the signed function id, or null if signed message ids are
+     * disabled or the id would be too long for the address
+     */
+    private String generateSignedMessageId(String functionId){
+        if(signedIds == null || StringUtils.isBlank(functionId)){
+            return null;
+        }
+        final String messageId = signedIds.encode(functionId);
+        return messageId.length() <= MAX_SIGNED_MESSAGE_ID_LENGTH ? messageId : null;
+    }
+
     private String generateMessageId(){
         return Strings.randomAlphanumeric(8).toLowerCase();
     }
@@ -0,0 +1,119 @@
+package io.slingr.endpoints.sparkpost;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * JSON request body where the content of files is encoded to base64 while the body is written.
+ * Files are referenced in the JSON by placeholders strings (see {@link #placeholder(String)}), which
+ * are replaced by the content of the stream opened for the file id, so the encoded content of the
+ * files is never kept in memory. Placeholders include a random token generated when the endpoint
+ * starts, so text of the emails can't be taken as a placeholder.
+ */
+public class StreamingJsonEntity extends AbstractHttpEntity {
+    private static final String PLACEHOLDER_PREFIX = "__sparkpost_file:" + UUID.randomUUID() + ":";
+    private static final String PLACEHOLDER_SUFFIX = "__";
+    private static final String QUOTED_PREFIX = "\"" + PLACEHOLDER_PREFIX;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String json;
+    private final Function<String, InputStream> files;
+
+    /**
+     * @param json  serialized body, with placeholders instead of the content of the files
+     * @param files opens the stream of the content of a file id
+     */
+    public StreamingJsonEntity(String json, Function<String, InputStream> files) {
+        this.json = json;
+        this.files = files;
+        setContentType(ContentType.APPLICATION_JSON.toString());
+        setChunked(true);
+    }
+
+    public static String placeholder(String fileId) {
+        return PLACEHOLDER_PREFIX + fileId + PLACEHOLDER_SUFFIX;
+    }
+
+    public static boolean containsPlaceholders(String json) {
+        return json != null && json.contains(QUOTED_PREFIX);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writeTo(os);
+        return new ByteArrayInputStream(os.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException {
+        int position = 0;
+        int start;
+        while ((start = json.indexOf(QUOTED_PREFIX, position)) >= 0) {
+            final int end = json.indexOf(PLACEHOLDER_SUFFIX + "\"", start + QUOTED_PREFIX.length());
+            if (end < 0) {
+                break;
+            }
+            os.write(json.substring(position, start).getBytes(StandardCharsets.UTF_8));
+            final String fileId = json.substring(start + QUOTED_PREFIX.length(), end);
+            os.write('"');
+            writeBase64(fileId, os);
+            os.write('"');
+            position = end + PLACEHOLDER_SUFFIX.length() + 1;
+        }
+        os.write(json.substring(position).getBytes(StandardCharsets.UTF_8));
+        os.flush();
+    }
+
+    private void writeBase64(String fileId, OutputStream os) throws IOException {
+        // the encoder has to be closed to write the padding, but the request stream has to stay open
+        final OutputStream encoder = Base64.getEncoder().wrap(new FilterOutputStream(os) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        });
+        try (InputStream is = files.apply(fileId)) {
+            if (is == null) {
+                throw new IOException(String.format("File [%s] not found", fileId));
+            }
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                encoder.write(buffer, 0, read);
+            }
+        }
+        encoder.close();
+    }
+}
@@ -0,0 +1,125 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Client used to send transmissions with attachments streamed from the files service, instead of
+ * building the whole request body in memory. Bodies can also be compressed with gzip while they are
+ * written, when they have attachments or are larger than a threshold.
+ */
+public class StreamingTransmissionClient {
+    private static final Logger logger = LoggerFactory.getLogger(StreamingTransmissionClient.class);
+
+    private static final int MAX_CONNECTIONS = 20;
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int SOCKET_TIMEOUT = 60000;
+    private static final int CONNECTION_REQUEST_TIMEOUT = 5000;
+    private static final long MAX_IDLE_TIME = 30000;
+
+    private final String apiUri;
+    private final String apiKey;
+    private final int compressionThreshold;
+    private final CloseableHttpClient httpClient;
+
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+
+    /**
+     * @param apiUri               URI of the API
+     * @param apiKey               key of the API
+     * @param compressionThreshold minimum size in characters of the bodies compressed, zero or less to not compress them
+     */
+    public StreamingTransmissionClient(String apiUri, String apiKey, int compressionThreshold) {
+        this.apiUri = apiUri;
+        this.apiKey = apiKey;
+        this.compressionThreshold = compressionThreshold;
+        // a slow or stuck API fails the request instead of holding a connection of the pool forever
+        this.httpClient = HttpClients.custom()
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(CONNECT_TIMEOUT)
+                        .setSocketTimeout(SOCKET_TIMEOUT)
+                        .setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT)
+                        .build())
+                .setMaxConnTotal(MAX_CONNECTIONS)
+                .setMaxConnPerRoute(MAX_CONNECTIONS)
+                .evictExpiredConnections()
+                .evictIdleConnections(MAX_IDLE_TIME, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Returns true if the body is compressed when it is sent: bodies with files, which are at least
+     * as large as the files, and bodies longer than the threshold
+     */
+    public boolean isCompressed(String body) {
+        return compressionThreshold > 0 && body != null && (body.length() >= compressionThreshold || StreamingJsonEntity.containsPlaceholders(body));
+    }
+
+    /**
+     * Posts the body replacing the file placeholders by the base64 content of the files
+     *
+     * @param path  path of the API (relative to the API URI)
+     * @param body  serialized body with file placeholders
+     * @param files opens the stream of the content of a file id
+     */
+    public Json post(String path, String body, Function<String, InputStream> files) {
+        final HttpPost post = new HttpPost(apiUri + StringUtils.removeStart(path, "/"));
+        post.setHeader(HttpHeaders.AUTHORIZATION, apiKey);
+        post.setHeader(HttpHeaders.ACCEPT, "application/json");
+        final StreamingJsonEntity entity = new StreamingJsonEntity(body, files);
+        post.setEntity(isCompressed(body) ? new GzipEntity(entity, uncompressedBytes, compressedBytes) : entity);
+        try (CloseableHttpResponse response = httpClient.execute(post)) {
+            final int status = response.getStatusLine().getStatusCode();
+            final String content = response.getEntity() != null ? EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) : null;
+            if (status >= 300) {
+                throw ApiErrors.fromResponse(String.format("Error when send transmission [%s %s]: %s",
+                        status, response.getStatusLine().getReasonPhrase(), content), response, content);
+            }
+            return StringUtils.isNotBlank(content) ? Json.parse(content) : Json.map();
+        } catch (IOException ex) {
+            logger.info(String.format("Exception when try to send transmission [%s]", ex.getMessage()));
+            throw EndpointException.permanent(ErrorCode.CLIENT, String.format("Exception when try to send transmission [%s]", ex.getMessage()), ex);
+        }
+    }
+
+    /**
+     * Bytes of the bodies that were compressed, before the compression
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    /**
+     * Bytes sent of the bodies that were compressed
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException ex) {
+            logger.info(String.format("Exception when try to close the HTTP client [%s]", ex.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Local copy of the suppression list of the account, used to skip the recipients that SparkPost would
+ * reject anyway. Addresses are kept as 64 bits hashes of the lower case address, in one set for the
+ * suppressions of transactional emails and another one for non-transactional emails.
+ *
+ * The list is loaded from the API and it is updated with the bounces, spam complaints and unsubscribes
+ * received in webhooks, which are the events that make SparkPost add the recipient to the list.
+ *
+ * Only the first entries of the list are loaded, so the sets fit in the memory of the endpoint: 500000
+ * entries take up to 16 MB, and twice that while the list is loaded again. Suppressions received in
+ * webhooks are always added.
+ */
+public class SuppressionList {
+    private static final Logger logger = LoggerFactory.getLogger(SuppressionList.class);
+
+    private static final String PATH = "api/v1/suppression-list";
+    private static final int PAGE_SIZE = 10000;
+    static final int MAX_ENTRIES = 500000;
+    private static final long RETRY_PERIOD = 5 * 60 * 1000; // 5 minutes
+
+    /**
+     * Bounce classes of hard bounces: invalid recipient and no RCPT
+     */
+    private static final String[] HARD_BOUNCE_CLASSES = {"10", "30"};
+
+    /**
+     * Bounce class of the unsubscribes received by email
+     */
+    private static final String UNSUBSCRIBE_BOUNCE_CLASS = "90";
+
+    private final long refreshPeriod;
+    private final int maxEntries;
+
+    private LongSet transactional = new LongSet();
+    private LongSet nonTransactional = new LongSet();
+
+    // suppressions received while the list is loaded, they are added to the new list
+    private LongSet pendingTransactional;
+    private LongSet pendingNonTransactional;
+
+    private volatile long lastRefresh = 0;
+    private volatile long lastAttempt = 0;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+    /**
+     * @param refreshPeriod time in milliseconds after which the list has to be loaded again
+     */
+    public SuppressionList(long refreshPeriod) {
+        this(refreshPeriod, MAX_ENTRIES);
+    }
+
+    SuppressionList(long refreshPeriod, int maxEntries) {
+        this.refreshPeriod = refreshPeriod;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns true if emails to the address would be suppressed
+     *
+     * @param transactionalEmail if the email is sent with the option 'transactional'
+     */
+    public synchronized boolean isSuppressed(String address, boolean transactionalEmail) {
+        final String normalized = normalize(address);
+        if (normalized == null) {
+            return false;
+        }
+        final long hash = LongSet.hash(normalized);
+        return transactionalEmail ? transactional.contains(hash) : nonTransactional.contains(hash);
+    }
+
+    /**
+     * Updates the list with the event, returns true if the recipient of the event was added to the list
+     */
+    public boolean update(WebhookEvent event) {
+        final String eventName = event.getEventName();
+        if (eventName == null || StringUtils.isBlank(event.getRecipient())) {
+            return false;
+        }
+        switch (eventName) {
+            case "bounce":
+            case "out_of_band":
+                if (ArrayUtils.contains(HARD_BOUNCE_CLASSES, event.getBounceClass())) {
+                    add(event.getRecipient(), true, true);
+                    return true;
+                } else if (UNSUBSCRIBE_BOUNCE_CLASS.equals(event.getBounceClass())) {
+                    add(event.getRecipient(), false, true);
+                    return true;
+                }
+                return false;
+            case "spam_complaint":
+            case "list_unsubscribe":
+            case "link_unsubscribe":
+                add(event.getRecipient(), false, true);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public synchronized void add(String address, boolean forTransactional, boolean forNonTransactional) {
+        final String normalized = normalize(address);
+        if (normalized == null) {
+            return;
+        }
+        final long hash = LongSet.hash(normalized);
+        if (forTransactional) {
+            transactional.add(hash);
+            if (pendingTransactional != null) {
+                pendingTransactional.add(hash);
+            }
+        }
+        if (forNonTransactional) {
+            nonTransactional.add(hash);
+            if (pendingNonTransactional != null) {
+                pendingNonTransactional.add(hash);
+            }
+        }
+    }
+
+    /**
+     * True if the list was never loaded or it is older than the refresh period, and it is not being
+     * loaded now. Failed loads are retried after a few minutes.
+     */
+    public boolean needsRefresh() {
+        final long now = System.currentTimeMillis();
+        return !refreshing.get() && now - lastRefresh > refreshPeriod && now - lastAttempt > Math.min(RETRY_PERIOD, refreshPeriod);
+    }
+
+    /**
+     * Loads the whole list from the API and replaces the current one. Returns false if the list is
+     * already being loaded.
+     *
+     * @param api executes a GET request to the given path of the API
+     */
+    public boolean refresh(Function<String, Json> api) {
+        if (!refreshing.compareAndSet(false, true)) {
+            return false;
+        }
+        lastAttempt = System.currentTimeMillis();
+        try {
+            synchronized (this) {
+                pendingTransactional = new LongSet();
+                pendingNonTransactional = new LongSet();
+            }
+            final LongSet newTransactional = new LongSet();
+            final LongSet newNonTransactional = new LongSet();
+            String path = String.format("%s?per_page=%s&cursor=initial", PATH, PAGE_SIZE);
+            int entries = 0;
+            boolean truncated = false;
+            while (path != null && !truncated) {
+                final Json response = api.apply(path);
+                final List<Json> results = response != null ? response.jsons("results") : null;
+                if (results == null || results.isEmpty()) {
+                    break;
+                }
+                for (Json result : results) {
+                    if (entries >= maxEntries) {
+                        truncated = true;
+                        break;
+                    }
+                    entries++;
+                    final String address = normalize(result.string("recipient"));
+                    if (address != null) {
+                        final long hash = LongSet.hash(address);
+                        // the type is 'transactional' or 'non_transactional', older entries have flags
+                        final String type = result.string("type");
+                        if ("transactional".equals(type) || Boolean.TRUE.equals(result.bool("transactional"))) {
+                            newTransactional.add(hash);
+                        }
+                        if ("non_transactional".equals(type) || Boolean.TRUE.equals(result.bool("non_transactional"))) {
+                            newNonTransactional.add(hash);
+                        }
+                    }
+                }
+                path = nextPage(response);
+                truncated |= entries >= maxEntries && path != null;
+            }
+            if (truncated) {
+                logger.warn(String.format("Suppression list truncated to the first [%s] entries, the rest of the list is not loaded", entries));
+            }
+            synchronized (this) {
+                newTransactional.addAll(pendingTransactional);
+                newNonTransactional.addAll(pendingNonTransactional);
+                transactional = newTransactional;
+                nonTransactional = newNonTransactional;
+            }
+            lastRefresh = System.currentTimeMillis();
+            return true;
+        } finally {
+            synchronized (this) {
+                pendingTransactional = null;
+                pendingNonTransactional = null;
+            }
+            refreshing.set(false);
+        }
+    }
+
+    /**
+     * Number of entries, an address suppressed for both types of emails counts twice
+     */
+    public synchronized int size() {
+        return transactional.size() + nonTransactional.size();
+    }
+
+    @Override
+    public String toString() {
+        synchronized (this) {
+            return String.format("transactional [%s], non transactional [%s]", transactional.size(), nonTransactional.size());
+        }
+    }
+
+    /**
+     * Path of the next page of the list, from the links of the response
+     */
+    private static String nextPage(Json response) {
+        final Object links = response.object("links");
+        String next = null;
+        if (links instanceof Json) {
+            next = ((Json) links).string("next");
+        } else if (links instanceof List) {
+            // older format: [{"href": "...", "rel": "next"}]
+            for (Object link : (List<?>) links) {
+                if (link instanceof Json && "next".equals(((Json) link).string("rel"))) {
+                    next = ((Json) link).string("href");
+                }
+            }
+        }
+        return StringUtils.isNotBlank(next) ? StringUtils.removeStart(next.trim(), "/") : null;
+    }
+
+    /**
+     * Returns the address in lower case, taking it from 'Name <address>' if needed, or null if it is not an address
+     */
+    static String normalize(String address) {
+        if (address == null) {
+            return null;
+        }
+        String normalized = address.trim();
+        final int start = normalized.lastIndexOf('<');
+        final int end = normalized.lastIndexOf('>');
+        if (start >= 0 && end > start) {
+            normalized = normalized.substring(start + 1, end).trim();
+        }
+        return normalized.contains("@") ? normalized.toLowerCase() : null;
+    }
+}
@@ -0,0 +1,181 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.utils.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Promotes inline content that is sent repeatedly to a stored template, so the following transmissions
+ * only reference it by 'template_id'. The id of the template is a hash of the content, so the same
+ * content always maps to the same template, also after a restart or in other instances.
+ *
+ * Content is promoted after it was seen a number of times, to avoid creating templates for emails sent
+ * once. Content with attachments, inline images or other fields not supported by stored templates is
+ * never promoted. Templates are created in background, so sends don't wait for them; the content is
+ * sent inline until the template exists.
+ */
+public class TemplatePromoter {
+    private static final Logger logger = LoggerFactory.getLogger(TemplatePromoter.class);
+
+    private static final String TEMPLATE_ID_PREFIX = "slingr-";
+    private static final String[] TEMPLATE_FIELDS = {"from", "subject", "reply_to", "headers", "text", "html", "amp_html"};
+    private static final long RETRY_PERIOD = 10 * 60 * 1000; // 10 minutes
+
+    private final int threshold;
+    private final int maxTemplates;
+    private final Consumer<Json> registrar;
+    private final Executor executor;
+
+    private final Map<String, Integer> seen;
+    private final Set<String> registered = ConcurrentHashMap.newKeySet();
+    private final Set<String> registering = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> failed = new ConcurrentHashMap<>();
+
+    /**
+     * @param threshold    number of times the content has to be sent before it is promoted
+     * @param maxEntries   maximum number of contents counted, the least recently sent are forgotten
+     * @param maxTemplates maximum number of templates created
+     * @param registrar    creates the template in SparkPost
+     * @param executor     runs the creation of the templates
+     */
+    public TemplatePromoter(int threshold, int maxEntries, int maxTemplates, Consumer<Json> registrar, Executor executor) {
+        this.threshold = threshold;
+        this.maxTemplates = maxTemplates;
+        this.registrar = registrar;
+        this.executor = executor;
+        this.seen = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the id of the stored template with the content, or null if the content has to be sent
+     * inline. When the content was sent enough times the template is created in background.
+     */
+    public String getTemplateId(Json content) {
+        if (!isSupported(content)) {
+            return null;
+        }
+        final String templateId = templateId(content);
+        if (registered.contains(templateId)) {
+            return templateId;
+        }
+        if (count(templateId) < threshold || registered.size() >= maxTemplates) {
+            return null;
+        }
+        final Long failure = failed.get(templateId);
+        if (failure != null && System.currentTimeMillis() - failure < RETRY_PERIOD) {
+            return null;
+        }
+        // sends of the same content are sent inline while the template is created
+        if (registering.add(templateId)) {
+            try {
+                executor.execute(() -> register(templateId, content));
+            } catch (RejectedExecutionException ex) {
+                // the endpoint is stopping
+                registering.remove(templateId);
+            }
+        }
+        return null;
+    }
+
+    public int getRegistered() {
+        return registered.size();
+    }
+
+    @Override
+    public String toString() {
+        synchronized (seen) {
+            return String.format("templates [%s], contents [%s]", registered.size(), seen.size());
+        }
+    }
+
+    private void register(String templateId, Json content) {
+        final Json templateContent = Json.map();
+        for (String field : TEMPLATE_FIELDS) {
+            templateContent.setIfNotNull(field, content.object(field));
+        }
+        try {
+            registrar.accept(Json.map()
+                    .set("id", templateId)
+                    .set("name", templateId)
+                    .set("description", "Content promoted by the SLINGR endpoint")
+                    .set("published", true)
+                    .set("content", templateContent));
+            logger.info(String.format("Template [%s] created", templateId));
+            registered.add(templateId);
+            failed.remove(templateId);
+        } catch (EndpointException ex) {
+            if (ApiErrors.isConflict(ex)) {
+                // created before by this or another instance
+                registered.add(templateId);
+                failed.remove(templateId);
+            } else {
+                registrationFailed(templateId, ex);
+            }
+        } catch (RuntimeException ex) {
+            registrationFailed(templateId, ex);
+        } finally {
+            registering.remove(templateId);
+        }
+    }
+
+    private void registrationFailed(String templateId, RuntimeException ex) {
+        failed.put(templateId, System.currentTimeMillis());
+        logger.info(String.format("Template [%s] could not be created, content is sent inline [%s]", templateId, ex.getMessage()));
+    }
+
+    private int count(String templateId) {
+        synchronized (seen) {
+            final Integer count = seen.get(templateId);
+            final int newCount = count != null ? count + 1 : 1;
+            seen.put(templateId, newCount);
+            return newCount;
+        }
+    }
+
+    private static boolean isSupported(Json content) {
+        if (content == null || content.object("from") == null || (content.object("html") == null && content.object("text") == null)) {
+            return false;
+        }
+        for (String key : content.keys()) {
+            boolean supported = false;
+            for (String field : TEMPLATE_FIELDS) {
+                supported = supported || field.equals(key);
+            }
+            if (!supported) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The id is the prefix and 32 hexadecimal characters of the SHA-256 hash of the content fields
+     */
+    private static String templateId(Json content) {
+        // each field and its value are followed by a zero character
+        final StringBuilder fields = new StringBuilder();
+        for (String field : TEMPLATE_FIELDS) {
+            final Object value = content.object(field);
+            fields.append(field).append('\0');
+            if (value != null) {
+                fields.append(value);
+            }
+            fields.append('\0');
+        }
+        return TEMPLATE_ID_PREFIX + Hashes.sha256Hex(fields.toString()).substring(0, 32);
+    }
+}
@@ -0,0 +1,283 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang.ArrayUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Outbound pipeline for transmissions. Requests wait for the rate limiter before being sent and are
+ * retried when SparkPost throttles them. Sends with the same content arriving while another one is
+ * being sent can be coalesced in a single transmission.
+ */
+public class TransmissionSender {
+    private static final Logger logger = LoggerFactory.getLogger(TransmissionSender.class);
+
+    private static final int MAX_THROTTLED_RETRIES = 3;
+    private static final long DEFAULT_RETRY_AFTER = 1000; // 1 second
+    private static final int MAX_COALESCED_RECIPIENTS = 1000;
+    private static final int[] REJECTED_STATUSES = {400, 422};
+
+    private final RateLimiter rateLimiter;
+    private final long coalesceWindow;
+    private final Map<String, PendingTransmission> pending = new HashMap<>();
+    private final Map<String, Integer> sending = new HashMap<>();
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong totalQueueTime = new AtomicLong();
+    private final AtomicLong maxQueueTime = new AtomicLong();
+
+    /**
+     * @param rateLimiter    limiter of the requests sent to SparkPost
+     * @param coalesceWindow time in milliseconds to wait for sends with the same content, zero disables it
+     */
+    public TransmissionSender(RateLimiter rateLimiter, long coalesceWindow) {
+        this.rateLimiter = rateLimiter;
+        this.coalesceWindow = coalesceWindow;
+    }
+
+    public boolean isCoalescing() {
+        return coalesceWindow > 0;
+    }
+
+    /**
+     * Executes the request when the rate limiter allows it, retrying it if SparkPost throttles it
+     */
+    public Json send(Supplier<Json> request) {
+        return send(request, 0);
+    }
+
+    private Json send(Supplier<Json> request, long queueTime) {
+        int attempt = 0;
+        while (true) {
+            try {
+                queueTime += rateLimiter.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw EndpointException.permanent(ErrorCode.CLIENT, "Interrupted while waiting to send the transmission", ex);
+            }
+            try {
+                final Json response = request.get();
+                sent.incrementAndGet();
+                totalQueueTime.addAndGet(queueTime);
+                maxQueueTime.accumulateAndGet(queueTime, Math::max);
+                return response;
+            } catch (EndpointException ex) {
+                if (attempt >= MAX_THROTTLED_RETRIES || !ApiErrors.isThrottled(ex)) {
+                    throw ex;
+                }
+                attempt++;
+                throttled.incrementAndGet();
+                final long retryAfter = ApiErrors.getRetryAfter(ex);
+                rateLimiter.throttled(retryAfter > 0 ? retryAfter : DEFAULT_RETRY_AFTER * attempt);
+                logger.info(String.format("Transmission throttled by SparkPost, retry [%s] after [%sms] - rate [%s]", attempt, retryAfter, rateLimiter.getRate()));
+            }
+        }
+    }
+
+    /**
+     * Adds the recipients to a pending transmission with the same key, or creates a new one. A new
+     * transmission is sent right away if no other transmission with the same key is being sent, otherwise
+     * it waits until the coalesce window finishes or it is full. All the sends joined in the same
+     * transmission get its response. If SparkPost rejects the content of a joined transmission, each send
+     * is sent again alone so only the sends that are rejected by themselves fail; other errors, like
+     * network errors or SparkPost being down, fail all the sends of the transmission.
+     *
+     * @param key        identifies the content of the transmission (without recipients)
+     * @param body       transmission used if this is the first send with this key
+     * @param recipients recipients of this send
+     * @param poster     sends the transmission to SparkPost
+     */
+    public Json sendCoalesced(String key, Json body, List<Json> recipients, Function<Json, Json> poster) {
+        final long start = System.currentTimeMillis();
+        final CoalescedSend send = new CoalescedSend(recipients);
+        final PendingTransmission transmission;
+        final boolean leader;
+        final boolean alone;
+        synchronized (pending) {
+            final PendingTransmission current = pending.get(key);
+            if (current != null && current.size() + recipients.size() <= MAX_COALESCED_RECIPIENTS) {
+                transmission = current;
+                leader = false;
+                alone = false;
+                coalesced.incrementAndGet();
+            } else {
+                if (current != null) {
+                    // the transmission is full, it doesn't wait for the rest of the window
+                    flush(key, current);
+                }
+                transmission = new PendingTransmission(body);
+                leader = true;
+                alone = !sending.containsKey(key);
+                sending.merge(key, 1, Integer::sum);
+                if (!alone) {
+                    pending.put(key, transmission);
+                }
+            }
+            transmission.sends.add(send);
+            if (!alone && transmission.size() >= MAX_COALESCED_RECIPIENTS) {
+                flush(key, transmission);
+            }
+        }
+
+        if (leader) {
+            if (!alone) {
+                waitWindow(key, transmission, start + coalesceWindow);
+            }
+            try {
+                sendTransmission(transmission, poster, System.currentTimeMillis() - start);
+            } finally {
+                synchronized (pending) {
+                    sending.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+                }
+                transmission.done.countDown();
+            }
+        } else {
+            try {
+                transmission.done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw EndpointException.permanent(ErrorCode.CLIENT, "Interrupted while waiting to send the transmission", ex);
+            }
+        }
+        if (send.error != null) {
+            throw send.error;
+        }
+        return send.response;
+    }
+
+    /**
+     * Waits until the window finishes or the transmission is full, and removes it from the pending ones.
+     * Must be called by the thread that sends the transmission.
+     */
+    private void waitWindow(String key, PendingTransmission transmission, long deadline) {
+        synchronized (pending) {
+            long remaining;
+            while (!transmission.flushed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    pending.wait(remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            flush(key, transmission);
+        }
+    }
+
+    /**
+     * Stops adding sends to the transmission and wakes up the thread that sends it
+     */
+    private void flush(String key, PendingTransmission transmission) {
+        transmission.flushed = true;
+        if (pending.get(key) == transmission) {
+            pending.remove(key);
+        }
+        pending.notifyAll();
+    }
+
+    private void sendTransmission(PendingTransmission transmission, Function<Json, Json> poster, long queueTime) {
+        try {
+            transmission.body.set("recipients", transmission.recipients());
+            final Json response = send(() -> poster.apply(transmission.body), queueTime);
+            transmission.sends.forEach(send -> send.response = response);
+        } catch (RuntimeException ex) {
+            if (transmission.sends.size() > 1 && ex instanceof EndpointException
+                    && ArrayUtils.contains(REJECTED_STATUSES, ApiErrors.getStatus((EndpointException) ex))) {
+                logger.info(String.format("Coalesced transmission of [%s] sends rejected by SparkPost, sending them one by one: %s",
+                        transmission.sends.size(), ex.getMessage()));
+                for (CoalescedSend send : transmission.sends) {
+                    try {
+                        transmission.body.set("recipients", send.recipients);
+                        send.response = send(() -> poster.apply(transmission.body), queueTime);
+                    } catch (RuntimeException sendEx) {
+                        send.error = sendEx;
+                    }
+                }
+            } else {
+                transmission.sends.forEach(send -> send.error = ex);
+            }
+        }
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getMaxQueueTime() {
+        return maxQueueTime.get();
+    }
+
+    public long getAverageQueueTime() {
+        final long count = sent.get();
+        return count > 0 ? totalQueueTime.get() / count : 0;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sent [%s], throttled [%s], coalesced [%s], average queue time [%sms], max queue time [%sms], rate [%s]",
+                getSent(), getThrottled(), getCoalesced(), getAverageQueueTime(), getMaxQueueTime(), rateLimiter.getRate());
+    }
+
+    private static class PendingTransmission {
+        private final Json body;
+        private final List<CoalescedSend> sends = new ArrayList<>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private boolean flushed = false;
+
+        PendingTransmission(Json body) {
+            this.body = body;
+        }
+
+        int size() {
+            int size = 0;
+            for (CoalescedSend send : sends) {
+                size += send.recipients.size();
+            }
+            return size;
+        }
+
+        List<Json> recipients() {
+            final List<Json> recipients = new ArrayList<>();
+            for (CoalescedSend send : sends) {
+                recipients.addAll(send.recipients);
+            }
+            return recipients;
+        }
+    }
+
+    private static class CoalescedSend {
+        private final List<Json> recipients;
+        private volatile Json response;
+        private volatile RuntimeException error;
+
+        CoalescedSend(List<Json> recipients) {
+            this.recipients = recipients;
+        }
+    }
+}
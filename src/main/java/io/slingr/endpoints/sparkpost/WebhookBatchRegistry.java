@@ -0,0 +1,112 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.services.datastores.DataStore;
+import io.slingr.endpoints.services.exchange.Parameter;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ids of the webhook batches received by any instance of the endpoint. SparkPost retries a batch with
+ * the same batch id when the webhook fails or times out, and the retry can arrive to another instance
+ * than the first attempt, where the ids of its events are not known. Batch ids are kept in a data store
+ * shared by all the instances, so those retries are discarded wherever they arrive.
+ *
+ * The data store has no conditional insert, so each attempt saves its own claim of the batch, with a
+ * unique id so it never overwrites the claim of another attempt, and then reads the claims of the batch:
+ * an attempt is discarded only if there is an older claim. Attempts received at the same time by
+ * different instances, or less apart than the difference of their clocks, can both be processed, but a
+ * batch is never discarded by all of them. If the data store fails the batch is processed.
+ */
+public class WebhookBatchRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(WebhookBatchRegistry.class);
+
+    private final DataStore store;
+    private final long ttl;
+    private final String instanceId = UUID.randomUUID().toString();
+
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * @param store data store shared by the instances
+     * @param ttl   time in milliseconds a batch id is remembered
+     */
+    public WebhookBatchRegistry(DataStore store, long ttl) {
+        this.store = store;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Registers the batch and returns true if it was registered before, by this or another instance
+     */
+    public boolean isDuplicate(String batchId) {
+        if (StringUtils.isBlank(batchId)) {
+            return false;
+        }
+        final String claimId = batchId + ":" + UUID.randomUUID();
+        final long date = System.currentTimeMillis();
+        try {
+            store.save(Json.map()
+                    .set("_id", claimId)
+                    .set("batchId", batchId)
+                    .set("instance", instanceId)
+                    .set("date", date)
+                    .set(Parameter.DATA_STORE_TTL, ttl)
+            );
+            if (hasOlderClaim(store.find(Json.map().set("batchId", batchId)), date)) {
+                duplicates.incrementAndGet();
+                // the claim of a discarded attempt must not hide a failure of the processed one
+                store.removeById(claimId);
+                return true;
+            }
+        } catch (Exception ex) {
+            logger.info(String.format("Exception when try to register the webhook batch [%s]: %s", batchId, ex.getMessage()));
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the batch because it could not be processed, so the retry of SparkPost is accepted
+     */
+    public void unregister(String batchId) {
+        if (StringUtils.isBlank(batchId)) {
+            return;
+        }
+        try {
+            final List<Json> claims = store.find(Json.map().set("batchId", batchId).set("instance", instanceId));
+            if (claims != null) {
+                for (Json claim : claims) {
+                    store.removeById(claim.string("_id"));
+                }
+            }
+        } catch (Exception ex) {
+            logger.info(String.format("Exception when try to remove the webhook batch [%s]: %s", batchId, ex.getMessage()));
+        }
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("duplicates [%s]", getDuplicates());
+    }
+
+    private static boolean hasOlderClaim(List<Json> claims, long date) {
+        if (claims != null) {
+            for (Json claim : claims) {
+                final Long claimDate = claim.longInteger("date");
+                if (claimDate != null && claimDate < date) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,327 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.utils.Json;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Event of a SparkPost webhook batch. It keeps the information needed to correlate the event while
+ * the payload stays as raw bytes until the event is dispatched.
+ */
+public class WebhookEvent {
+    public static final String RELAY_MESSAGE = "relay_message";
+    public static final String RECIPIENT_METADATA = "rcpt_meta";
+    public static final String MESSAGE_ID_METADATA = "slingr_message_id";
+    public static final String EVENT_ID = "event_id";
+    public static final String EVENT_NAME = "type";
+    public static final String BOUNCE_CLASS = "bounce_class";
+    public static final String TIMESTAMP = "timestamp";
+
+    private String type;
+    private String eventId;
+    private String eventName;
+    private String bounceClass;
+    private long timestamp;
+    private String sender;
+    private String recipient;
+    private final List<String> ids = new ArrayList<>();
+
+    private final byte[] source;
+    private final int offset;
+    private final int length;
+    private Json json;
+
+    private int rawMessageOffset = -1;
+    private int rawMessageLength;
+    private boolean rawMessageBase64;
+
+    WebhookEvent(byte[] source, int offset, int length) {
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    WebhookEvent(Json json) {
+        this.source = null;
+        this.offset = 0;
+        this.length = 0;
+        this.json = json;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    void setType(String type) {
+        this.type = type;
+    }
+
+    /**
+     * Id assigned by SparkPost to the event, null for relay messages
+     */
+    public String getEventId() {
+        return eventId;
+    }
+
+    void setEventId(String eventId) {
+        this.eventId = eventId;
+    }
+
+    /**
+     * Type of the event sent by SparkPost, like 'delivery' or 'bounce' (the type of the event returned by
+     * {@link #getType()} is the group, like 'message_event')
+     */
+    public String getEventName() {
+        return eventName;
+    }
+
+    void setEventName(String eventName) {
+        this.eventName = eventName;
+    }
+
+    /**
+     * Class of bounces and out of band events, null for other events
+     */
+    public String getBounceClass() {
+        return bounceClass;
+    }
+
+    void setBounceClass(String bounceClass) {
+        this.bounceClass = bounceClass;
+    }
+
+    /**
+     * Time of the event in milliseconds, zero if it is unknown
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    void setSender(String sender) {
+        this.sender = sender;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    void setRecipient(String recipient) {
+        this.recipient = recipient;
+    }
+
+    /**
+     * Ids found in the plus-addresses of the event, in the order they have to be checked
+     */
+    public List<String> getIds() {
+        return ids;
+    }
+
+    void addId(String id) {
+        if (id != null && !ids.contains(id)) {
+            ids.add(id);
+        }
+    }
+
+    public boolean isRelayMessage() {
+        return RELAY_MESSAGE.equals(type);
+    }
+
+    /**
+     * Size of the raw payload in bytes (zero when the event was built from a Json tree)
+     */
+    public int getSize() {
+        return length;
+    }
+
+    void setRawMessage(int offset, int length, boolean base64) {
+        this.rawMessageOffset = offset;
+        this.rawMessageLength = length;
+        this.rawMessageBase64 = base64;
+    }
+
+    /**
+     * True if the event is a relay message that includes its MIME content
+     */
+    public boolean hasRawMessage() {
+        if (json == null) {
+            return rawMessageOffset >= 0;
+        }
+        final Json content = relayContent(json);
+        return content != null && content.string("email_rfc822") != null;
+    }
+
+    /**
+     * Size of the MIME content as it was sent by SparkPost, escaped and encoded in base64 if it is so
+     */
+    public int getRawMessageSize() {
+        if (json == null) {
+            return rawMessageOffset >= 0 ? rawMessageLength : 0;
+        }
+        final Json content = relayContent(json);
+        final String rawMessage = content != null ? content.string("email_rfc822") : null;
+        return rawMessage != null ? rawMessage.length() : 0;
+    }
+
+    /**
+     * Returns the decoded MIME content of a relay message. Raw events are decoded while the content is
+     * read, so the content is not copied.
+     */
+    public InputStream openRawMessage() {
+        final InputStream is;
+        final boolean base64;
+        if (json == null) {
+            is = new JsonStringInputStream(source, rawMessageOffset, rawMessageLength);
+            base64 = rawMessageBase64;
+        } else {
+            final Json content = relayContent(json);
+            is = new ByteArrayInputStream(content.string("email_rfc822").getBytes(StandardCharsets.UTF_8));
+            base64 = Boolean.TRUE.equals(content.bool("email_rfc822_is_base64"));
+        }
+        return base64 ? Base64.getMimeDecoder().wrap(is) : is;
+    }
+
+    /**
+     * Returns a copy of the payload without the MIME content of the relay message. The MIME content of
+     * raw events is not decoded.
+     */
+    public Json toJsonWithoutRawMessage() {
+        final Json result;
+        if (json == null && rawMessageOffset >= 0) {
+            // the string is replaced by null, without the quotes
+            final int start = rawMessageOffset - 1;
+            final int end = rawMessageOffset + rawMessageLength + 1;
+            result = Json.parse(new String(source, offset, start - offset, StandardCharsets.UTF_8)
+                    + "null" + new String(source, end, offset + length - end, StandardCharsets.UTF_8));
+        } else {
+            result = toJson().cloneJson();
+        }
+        final Json content = relayContent(result);
+        if (content != null) {
+            content.remove("email_rfc822");
+            content.remove("email_rfc822_is_base64");
+        }
+        return result;
+    }
+
+    /**
+     * Returns the content of the relay message of the payload, msys.relay_message.content
+     */
+    static Json relayContent(Json payload) {
+        final Json msys = payload != null && payload.contains("msys") ? payload.json("msys") : null;
+        final Json relayMessage = msys != null && msys.contains(RELAY_MESSAGE) ? msys.json(RELAY_MESSAGE) : null;
+        return relayMessage != null && relayMessage.contains("content") ? relayMessage.json("content") : null;
+    }
+
+    /**
+     * Returns the payload of the event, converting the raw bytes the first time
+     */
+    public Json toJson() {
+        if (json == null) {
+            json = Json.parse(new String(source, offset, length, StandardCharsets.UTF_8));
+        }
+        return json;
+    }
+
+    /**
+     * Value of a JSON string in the raw bytes of the payload, without the quotes. Escape sequences are
+     * decoded while it is read and characters are returned in UTF-8.
+     */
+    private static class JsonStringInputStream extends InputStream {
+        private final byte[] source;
+        private final int end;
+        private int position;
+        private final byte[] pending = new byte[4];
+        private int pendingPosition = 0;
+        private int pendingLength = 0;
+
+        JsonStringInputStream(byte[] source, int offset, int length) {
+            this.source = source;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            int count = 0;
+            while (count < len) {
+                if (pendingPosition < pendingLength) {
+                    b[off + count++] = pending[pendingPosition++];
+                } else if (position >= end) {
+                    break;
+                } else if (source[position] != '\\') {
+                    b[off + count++] = source[position++];
+                } else {
+                    unescape();
+                }
+            }
+            return count == 0 ? -1 : count;
+        }
+
+        private void unescape() {
+            final byte escaped = position + 1 < end ? source[position + 1] : (byte) '\\';
+            position += 2;
+            pendingPosition = 0;
+            pendingLength = 1;
+            switch (escaped) {
+                case 'n':
+                    pending[0] = '\n';
+                    break;
+                case 'r':
+                    pending[0] = '\r';
+                    break;
+                case 't':
+                    pending[0] = '\t';
+                    break;
+                case 'b':
+                    pending[0] = '\b';
+                    break;
+                case 'f':
+                    pending[0] = '\f';
+                    break;
+                case 'u':
+                    int codePoint = hex();
+                    if (Character.isHighSurrogate((char) codePoint) && position + 1 < end && source[position] == '\\' && source[position + 1] == 'u') {
+                        position += 2;
+                        codePoint = Character.toCodePoint((char) codePoint, (char) hex());
+                    }
+                    final byte[] encoded = new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8);
+                    System.arraycopy(encoded, 0, pending, 0, encoded.length);
+                    pendingLength = encoded.length;
+                    break;
+                default:
+                    // quote, backslash and slash
+                    pending[0] = escaped;
+            }
+        }
+
+        private int hex() {
+            int value = 0;
+            for (int i = 0; i < 4 && position < end; i++) {
+                value = (value << 4) | Math.max(0, Character.digit(source[position++], 16));
+            }
+            return value;
+        }
+    }
+}
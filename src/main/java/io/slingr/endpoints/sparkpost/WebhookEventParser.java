@@ -0,0 +1,282 @@
+package io.slingr.endpoints.sparkpost;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single pass parser of SparkPost event webhooks. It walks the token stream of the batch and only
+ * extracts the fields needed for correlation, keeping the payload of each event as raw bytes.
+ */
+public class WebhookEventParser {
+    private static final Logger logger = LoggerFactory.getLogger(WebhookEventParser.class);
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    /**
+     * Fields that could contain the message id, in the order they are checked
+     */
+    private static final String[] ID_FIELDS = {"msg_from", "friendly_from", "raw_rcpt_to", "rcpt_to", "mailfrom"};
+
+    /**
+     * Position of the message id set in the recipient metadata by batch sends
+     */
+    private static final int METADATA_ID = ID_FIELDS.length;
+
+    /**
+     * Position of the id of the event
+     */
+    private static final int EVENT_ID = ID_FIELDS.length + 1;
+
+    /**
+     * Positions of the type of the event ('bounce', 'delivery', ...) and of the class of bounces
+     */
+    private static final int EVENT_NAME = ID_FIELDS.length + 2;
+    private static final int BOUNCE_CLASS = ID_FIELDS.length + 3;
+
+    /**
+     * Position of the time of the event, in seconds
+     */
+    private static final int TIMESTAMP = ID_FIELDS.length + 4;
+
+    private static final int VALUES = ID_FIELDS.length + 5;
+
+    /**
+     * Parses the raw body of the webhook. Returns null when the body is not available as raw content
+     * or it is not a list of events, so the caller can fall back to the default converter.
+     */
+    public static List<WebhookEvent> parse(Object body) {
+        final byte[] bytes = toBytes(body);
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        try (JsonParser parser = jsonFactory.createParser(bytes)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                return null;
+            }
+            final List<WebhookEvent> events = new ArrayList<>();
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token != JsonToken.START_OBJECT) {
+                    return null;
+                }
+                final int start = (int) parser.getTokenLocation().getByteOffset();
+                final String[] values = new String[VALUES];
+                final int[] rawMessage = {-1, 0, 0};
+                String type = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String name = parser.getCurrentName();
+                    if ("msys".equals(name) && parser.nextToken() == JsonToken.START_OBJECT) {
+                        // msys: {<event type>: {...}}
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            final String eventType = parser.getCurrentName();
+                            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                                type = type != null && !WebhookEvent.RELAY_MESSAGE.equals(eventType) ? type : eventType;
+                                readIdFields(parser, values, WebhookEvent.RELAY_MESSAGE.equals(eventType) ? rawMessage : null, bytes);
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                    } else {
+                        if (!"msys".equals(name)) {
+                            parser.nextToken();
+                        }
+                        parser.skipChildren();
+                    }
+                }
+                final int end = (int) parser.getTokenLocation().getByteOffset() + 1;
+
+                final WebhookEvent event = new WebhookEvent(bytes, start, end - start);
+                complete(event, type, values);
+                if (rawMessage[0] >= 0) {
+                    event.setRawMessage(rawMessage[0], rawMessage[1], rawMessage[2] == 1);
+                }
+                events.add(event);
+            }
+            return events;
+        } catch (Exception ex) {
+            logger.info(String.format("Exception when try to parse the webhook body [%s]", ex.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Builds the events from a batch already converted to a Json tree
+     */
+    public static List<WebhookEvent> fromJson(List<Json> list) {
+        final List<WebhookEvent> events = new ArrayList<>();
+        for (Json e : list) {
+            final WebhookEvent event = new WebhookEvent(e);
+            final String[] values = new String[VALUES];
+            String type = null;
+            final Json msys = e.contains("msys") ? e.json("msys") : null;
+            if (msys != null) {
+                for (String mk : msys.keys()) {
+                    final Json ev = msys.json(mk);
+                    if (ev != null && ev.isNotEmpty()) {
+                        type = type != null && !WebhookEvent.RELAY_MESSAGE.equals(mk) ? type : mk;
+                        for (int i = 0; i < ID_FIELDS.length; i++) {
+                            if (values[i] == null) {
+                                final Object value = ev.object(ID_FIELDS[i]);
+                                values[i] = value instanceof String ? (String) value : null;
+                            }
+                        }
+                        final Object eventId = ev.object(WebhookEvent.EVENT_ID);
+                        if (values[EVENT_ID] == null && eventId != null) {
+                            values[EVENT_ID] = eventId.toString();
+                        }
+                        final Object eventName = ev.object(WebhookEvent.EVENT_NAME);
+                        if (values[EVENT_NAME] == null && eventName instanceof String) {
+                            values[EVENT_NAME] = (String) eventName;
+                        }
+                        final Object bounceClass = ev.object(WebhookEvent.BOUNCE_CLASS);
+                        if (values[BOUNCE_CLASS] == null && bounceClass != null) {
+                            values[BOUNCE_CLASS] = bounceClass.toString();
+                        }
+                        final Object timestamp = ev.object(WebhookEvent.TIMESTAMP);
+                        if (values[TIMESTAMP] == null && timestamp != null) {
+                            values[TIMESTAMP] = timestamp.toString();
+                        }
+                        final Object metadata = ev.object(WebhookEvent.RECIPIENT_METADATA);
+                        if (values[METADATA_ID] == null && metadata instanceof Json) {
+                            values[METADATA_ID] = ((Json) metadata).string(WebhookEvent.MESSAGE_ID_METADATA);
+                        }
+                    }
+                }
+            }
+            complete(event, type, values);
+            events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * Returns the id included in a plus-address (account+id@domain) or null if there is not one
+     */
+    public static String extractId(String address) {
+        if (StringUtils.isNotBlank(address)) {
+            final int plus = address.indexOf('+');
+            final int at = address.indexOf('@');
+            if (plus >= 0 && at > plus) {
+                final String id = address.substring(plus + 1, at);
+                if (StringUtils.isNotBlank(id)) {
+                    return id;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the fields used to correlate the event. For relay messages, the position of the MIME
+     * content is kept in rawMessage (offset, length and 1 if it is encoded in base64).
+     */
+    private static void readIdFields(JsonParser parser, String[] values, int[] rawMessage, byte[] bytes) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            if (WebhookEvent.EVENT_ID.equals(name) && (token == JsonToken.VALUE_STRING || token == JsonToken.VALUE_NUMBER_INT)) {
+                if (values[EVENT_ID] == null) {
+                    values[EVENT_ID] = parser.getText();
+                }
+            } else if (WebhookEvent.BOUNCE_CLASS.equals(name) && (token == JsonToken.VALUE_STRING || token == JsonToken.VALUE_NUMBER_INT)) {
+                if (values[BOUNCE_CLASS] == null) {
+                    values[BOUNCE_CLASS] = parser.getText();
+                }
+            } else if (WebhookEvent.TIMESTAMP.equals(name) && (token == JsonToken.VALUE_STRING || token == JsonToken.VALUE_NUMBER_INT)) {
+                if (values[TIMESTAMP] == null) {
+                    values[TIMESTAMP] = parser.getText();
+                }
+            } else if (WebhookEvent.EVENT_NAME.equals(name) && token == JsonToken.VALUE_STRING) {
+                if (values[EVENT_NAME] == null) {
+                    values[EVENT_NAME] = parser.getText();
+                }
+            } else if (token == JsonToken.VALUE_STRING) {
+                for (int i = 0; i < ID_FIELDS.length; i++) {
+                    if (values[i] == null && ID_FIELDS[i].equals(name)) {
+                        values[i] = parser.getText();
+                        break;
+                    }
+                }
+            } else if (token == JsonToken.START_OBJECT && WebhookEvent.RECIPIENT_METADATA.equals(name)) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final boolean messageId = WebhookEvent.MESSAGE_ID_METADATA.equals(parser.getCurrentName());
+                    if (parser.nextToken() == JsonToken.VALUE_STRING && messageId && values[METADATA_ID] == null) {
+                        values[METADATA_ID] = parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else if (token == JsonToken.START_OBJECT && rawMessage != null && "content".equals(name)) {
+                readRawMessage(parser, rawMessage, bytes);
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Finds the position of the field 'email_rfc822' of the content of a relay message. The value is
+     * skipped by the parser without decoding it.
+     */
+    private static void readRawMessage(JsonParser parser, int[] rawMessage, byte[] bytes) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            if ("email_rfc822".equals(name) && token == JsonToken.VALUE_STRING) {
+                int start = (int) parser.getTokenLocation().getByteOffset();
+                while (bytes[start] != '"') {
+                    start++;
+                }
+                int end = start + 1;
+                while (bytes[end] != '"') {
+                    end += bytes[end] == '\\' ? 2 : 1;
+                }
+                rawMessage[0] = start + 1;
+                rawMessage[1] = end - start - 1;
+            } else if ("email_rfc822_is_base64".equals(name)) {
+                rawMessage[2] = token == JsonToken.VALUE_TRUE ? 1 : 0;
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static void complete(WebhookEvent event, String type, String[] values) {
+        event.setType(type);
+        event.setEventId(values[EVENT_ID]);
+        event.setEventName(values[EVENT_NAME]);
+        event.setBounceClass(values[BOUNCE_CLASS]);
+        if (StringUtils.isNumeric(values[TIMESTAMP]) && StringUtils.isNotEmpty(values[TIMESTAMP]) && values[TIMESTAMP].length() <= 12) {
+            event.setTimestamp(Long.parseLong(values[TIMESTAMP]) * 1000);
+        }
+        // msg_from, friendly_from, raw_rcpt_to, rcpt_to, mailfrom
+        event.setSender(values[0] != null ? values[0] : values[1] != null ? values[1] : values[4]);
+        event.setRecipient(values[3] != null ? values[3] : values[2]);
+        // the message id of the recipient metadata is the most specific one
+        if (StringUtils.isNotBlank(values[METADATA_ID])) {
+            event.addId(values[METADATA_ID]);
+        }
+        for (int i = 0; i < ID_FIELDS.length; i++) {
+            event.addId(extractId(values[i]));
+        }
+    }
+
+    private static byte[] toBytes(Object body) {
+        if (body instanceof byte[]) {
+            return (byte[]) body;
+        } else if (body instanceof String) {
+            return ((String) body).getBytes(StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+}
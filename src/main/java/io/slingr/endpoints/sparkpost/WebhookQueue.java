@@ -0,0 +1,115 @@
+package io.slingr.endpoints.sparkpost;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of webhook batches drained by a fixed pool of workers.
+ * Batches are rejected when the queue is full so the webhook can ask SparkPost to retry later.
+ */
+public class WebhookQueue {
+    private static final Logger logger = LoggerFactory.getLogger(WebhookQueue.class);
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong lastLag = new AtomicLong();
+    private final AtomicLong maxLag = new AtomicLong();
+
+    public WebhookQueue(int workers, int capacity) {
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity), DaemonThreads.factory("sparkpost-webhook"), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Enqueues the task. Returns false when the queue is full or the pool was shut down.
+     */
+    public boolean submit(String name, Runnable task) {
+        final long enqueuedAt = System.currentTimeMillis();
+        try {
+            executor.execute(() -> {
+                final long lag = System.currentTimeMillis() - enqueuedAt;
+                lastLag.set(lag);
+                maxLag.accumulateAndGet(lag, Math::max);
+                try {
+                    task.run();
+                    processed.incrementAndGet();
+                } catch (Exception ex) {
+                    failed.incrementAndGet();
+                    logger.warn(String.format("Exception when processing webhook [%s]: %s", name, ex.getMessage()), ex);
+                }
+            });
+            accepted.incrementAndGet();
+            return true;
+        } catch (RejectedExecutionException ex) {
+            rejected.incrementAndGet();
+            logger.warn(String.format("Webhook [%s] rejected - %s", name, this));
+            return false;
+        }
+    }
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /**
+     * Stops accepting new batches and waits for the enqueued ones to be processed
+     */
+    public void shutdown(long timeoutMillis) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                logger.warn(String.format("Webhook queue did not finish in time - %s", this));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveWorkers() {
+        return executor.getActiveCount();
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getLastLag() {
+        return lastLag.get();
+    }
+
+    public long getMaxLag() {
+        return maxLag.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("depth [%s], active [%s], accepted [%s], rejected [%s], processed [%s], failed [%s], last lag [%sms], max lag [%sms]",
+                getDepth(), getActiveWorkers(), getAccepted(), getRejected(), getProcessed(), getFailed(), getLastLag(), getMaxLag());
+    }
+}
@@ -0,0 +1,191 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+import io.slingr.endpoints.utils.Json;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ApiRetrierTest {
+    private static final int MAX_RETRIES = 3;
+    private static final long BASE_DELAY = 100;
+    private static final long MAX_DELAY = 5000;
+
+    private ManualClock clock;
+    private CircuitBreaker breaker;
+    private ApiRetrier retrier;
+
+    @Before
+    public void setUp() {
+        clock = new ManualClock();
+        breaker = new CircuitBreaker(10, 30000, clock);
+        retrier = new ApiRetrier(MAX_RETRIES, BASE_DELAY, MAX_DELAY, breaker, clock);
+    }
+
+    @Test
+    public void idempotentRequestsAreRetriedOnTransientErrors() {
+        assertEquals(2, attempts(failing(1, error(500, null)), true, false));
+        assertEquals(2, attempts(failing(1, EndpointException.permanent(ErrorCode.TIMEOUT, "Timeout")), true, false));
+        assertEquals(2, attempts(failing(1, EndpointException.permanent(ErrorCode.API, "Connection reset", new IOException("reset"))), true, false));
+        // errors of the request are not retried
+        assertEquals(1, attempts(failing(1, error(400, null)), true, false));
+        assertEquals(1, attempts(failing(1, new IllegalStateException("bug")), true, false));
+    }
+
+    @Test
+    public void otherRequestsAreRetriedOnlyWhenNotProcessed() {
+        assertEquals(2, attempts(failing(1, error(502, null)), false, false));
+        assertEquals(2, attempts(failing(1, error(503, null)), false, false));
+        assertEquals(2, attempts(failing(1, error(504, null)), false, false));
+        // SparkPost could have processed the transmission
+        assertEquals(1, attempts(failing(1, error(500, null)), false, false));
+        assertEquals(1, attempts(failing(1, EndpointException.permanent(ErrorCode.TIMEOUT, "Timeout")), false, false));
+    }
+
+    @Test
+    public void throttledRequestsAreRetriedWhenAsked() {
+        assertEquals(2, attempts(failing(1, error(429, null)), false, true));
+        assertEquals(1, attempts(failing(1, error(429, null)), true, false));
+    }
+
+    @Test
+    public void retriesAreLimited() {
+        assertEquals(MAX_RETRIES + 1, attempts(failing(10, error(503, null)), true, false));
+        assertEquals(MAX_RETRIES, retrier.getRetries());
+    }
+
+    @Test
+    public void delaysGrowExponentiallyWithJitter() {
+        for (int i = 0; i < 50; i++) {
+            clock.sleeps.clear();
+            // the last attempt works, so the circuit is not opened
+            attempts(failing(MAX_RETRIES, error(503, null)), true, false);
+            assertEquals(MAX_RETRIES, clock.sleeps.size());
+            for (int retry = 0; retry < MAX_RETRIES; retry++) {
+                final long delay = clock.sleeps.get(retry);
+                assertTrue(delay >= 0 && delay <= BASE_DELAY << retry);
+            }
+        }
+    }
+
+    @Test
+    public void retryAfterIsWaited() {
+        assertEquals(2, attempts(failing(1, error(503, "3")), true, false));
+
+        assertEquals(1, clock.sleeps.size());
+        assertTrue(clock.sleeps.get(0) >= 3000);
+    }
+
+    @Test
+    public void longRetryAfterIsNotWaited() {
+        assertEquals(1, attempts(failing(1, error(503, "60")), true, false));
+        assertTrue(clock.sleeps.isEmpty());
+    }
+
+    @Test
+    public void openCircuitRejectsRequests() {
+        final CircuitBreaker breaker = new CircuitBreaker(2, 30000, clock);
+        final ApiRetrier retrier = new ApiRetrier(0, BASE_DELAY, MAX_DELAY, breaker, clock);
+        final AtomicInteger calls = new AtomicInteger();
+        final Supplier<Json> unavailable = () -> {
+            calls.incrementAndGet();
+            throw error(503, null);
+        };
+        for (int i = 0; i < 2; i++) {
+            try {
+                retrier.call(unavailable, true, false);
+                fail("SparkPost is down");
+            } catch (EndpointException ex) {
+                assertEquals(503, ApiErrors.getStatus(ex));
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        try {
+            retrier.call(unavailable, true, false);
+            fail("the circuit is open");
+        } catch (EndpointException ex) {
+            assertTrue(ex.getMessage().contains("[30] seconds"));
+        }
+        assertEquals(2, calls.get());
+
+        // the probe closes the circuit
+        clock.advance(30000);
+        final Json response = Json.map();
+        assertSame(response, retrier.call(() -> response, true, false));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void errorsOfTheRequestCloseTheCircuit() {
+        final CircuitBreaker breaker = new CircuitBreaker(2, 30000, clock);
+        final ApiRetrier retrier = new ApiRetrier(0, BASE_DELAY, MAX_DELAY, breaker, clock);
+
+        attempts(retrier, failing(1, error(503, null)), true);
+        attempts(retrier, failing(1, error(422, null)), true);
+        attempts(retrier, failing(1, error(503, null)), true);
+
+        // SparkPost answered the request in the middle
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    private int attempts(Failing request, boolean idempotent, boolean retryThrottled) {
+        try {
+            retrier.call(request, idempotent, retryThrottled);
+        } catch (RuntimeException ex) {
+            // the attempts are returned
+        }
+        return request.attempts.get();
+    }
+
+    private static void attempts(ApiRetrier retrier, Failing request, boolean idempotent) {
+        try {
+            retrier.call(request, idempotent, false);
+        } catch (RuntimeException ex) {
+            // the attempts are not checked
+        }
+    }
+
+    private static Failing failing(int failures, RuntimeException error) {
+        return new Failing(failures, error);
+    }
+
+    private static EndpointException error(int status, String retryAfter) {
+        final Json headers = Json.map();
+        if (retryAfter != null) {
+            headers.set("Retry-After", retryAfter);
+        }
+        return EndpointException.permanent(ErrorCode.API, "Error " + status, Json.map().set("status", status).set("headers", headers));
+    }
+
+    /**
+     * Request that fails the given times and then returns an empty response
+     */
+    private static class Failing implements Supplier<Json> {
+        private final int failures;
+        private final RuntimeException error;
+        private final AtomicInteger attempts = new AtomicInteger();
+
+        Failing(int failures, RuntimeException error) {
+            this.failures = failures;
+            this.error = error;
+        }
+
+        @Override
+        public Json get() {
+            if (attempts.incrementAndGet() <= failures) {
+                throw error;
+            }
+            return Json.map();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package io.slingr.endpoints.sparkpost;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+    private ManualClock clock;
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        clock = new ManualClock();
+        breaker = new CircuitBreaker(3, 10000, clock);
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        fail(2);
+        breaker.success();
+        fail(2);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allow());
+
+        fail(1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getOpened());
+        assertFalse(breaker.allow());
+        assertEquals(1, breaker.getRejected());
+        assertEquals(10000, breaker.getRemainingOpenTime());
+
+        clock.advance(9999);
+        assertFalse(breaker.allow());
+        assertEquals(1, breaker.getRemainingOpenTime());
+    }
+
+    @Test
+    public void probeClosesTheCircuit() {
+        fail(3);
+        clock.advance(10000);
+
+        // only one request is let through while half open
+        assertTrue(breaker.allow());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals(0, breaker.getRemainingOpenTime());
+        assertFalse(breaker.allow());
+
+        breaker.success();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allow());
+        assertTrue(breaker.allow());
+    }
+
+    @Test
+    public void failedProbeOpensTheCircuitAgain() {
+        fail(3);
+        clock.advance(10000);
+
+        assertTrue(breaker.allow());
+        breaker.failure();
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getOpened());
+        assertEquals(10000, breaker.getRemainingOpenTime());
+        assertFalse(breaker.allow());
+    }
+
+    private void fail(int failures) {
+        for (int i = 0; i < failures; i++) {
+            assertTrue(breaker.allow());
+            breaker.failure();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package io.slingr.endpoints.sparkpost;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CorrelationWriterTest {
+    // flushes are triggered by the tests or by full batches
+    private static final long INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+    private final Map<String, String> store = new ConcurrentHashMap<>();
+    private CorrelationWriter writer;
+
+    @After
+    public void tearDown() {
+        if (writer != null) {
+            writer.close(0);
+        }
+    }
+
+    @Test
+    public void recordsNotSavedAreFound() {
+        writer = new CorrelationWriter((messageId, functionId) -> {
+            // records being saved are found too
+            assertEquals(functionId, writer.get(messageId));
+            store.put(messageId, functionId);
+        }, INTERVAL, 10, 100, 3, 1);
+
+        writer.add("m1", "fn1");
+        writer.add("m2", "fn2");
+
+        assertEquals("fn1", writer.get("m1"));
+        assertEquals("fn2", writer.get("m2"));
+        assertNull(writer.get("m3"));
+        assertTrue(store.isEmpty());
+
+        writer.flushAll();
+
+        assertEquals(2, store.size());
+        assertNull(writer.get("m1"));
+        assertEquals(0, writer.size());
+        assertEquals(2, writer.getSaved());
+    }
+
+    @Test
+    public void fullBatchesAreSavedRightAway() throws InterruptedException {
+        writer = new CorrelationWriter(store::put, INTERVAL, 2, 100, 3, 1);
+
+        writer.add("m1", "fn1");
+        writer.add("m2", "fn2");
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (store.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, store.size());
+        assertEquals(1, writer.getBatches());
+    }
+
+    @Test
+    public void fullBufferSavesDirectly() {
+        writer = new CorrelationWriter(store::put, INTERVAL, 10, 2, 3, 1);
+        writer.add("m1", "fn1");
+        writer.add("m2", "fn2");
+
+        writer.add("m3", "fn3");
+
+        // saved by the caller without waiting for a flush
+        assertEquals("fn3", store.get("m3"));
+        assertEquals(1, store.size());
+        assertEquals(1, writer.getDirect());
+        assertEquals(2, writer.size());
+    }
+
+    @Test
+    public void directSaveFailsTheCaller() {
+        writer = new CorrelationWriter(failingFor("m2"), INTERVAL, 10, 1, 3, 1);
+        writer.add("m1", "fn1");
+
+        try {
+            writer.add("m2", "fn2");
+            fail("the data store failed");
+        } catch (IllegalStateException ex) {
+            assertEquals("data store failed", ex.getMessage());
+        }
+        assertNull(writer.get("m2"));
+    }
+
+    @Test
+    public void failedRecordsAreRetriedAndDropped() {
+        writer = new CorrelationWriter(failingFor("m1"), INTERVAL, 10, 100, 3, 1);
+        writer.add("m1", "fn1");
+        writer.add("m2", "fn2");
+
+        writer.flushAll();
+        assertEquals("fn2", store.get("m2"));
+        assertEquals("fn1", writer.get("m1"));
+        assertEquals(1, writer.getRetrying());
+
+        writer.flushAll();
+        assertEquals(1, writer.size());
+        assertEquals(0, writer.getDropped());
+
+        writer.flushAll();
+        assertEquals(0, writer.size());
+        assertNull(writer.get("m1"));
+        assertEquals(3, writer.getFailed());
+        assertEquals(1, writer.getDropped());
+        assertEquals(0, writer.getRetrying());
+    }
+
+    @Test
+    public void closeSavesTheBuffer() {
+        writer = new CorrelationWriter(store::put, INTERVAL, 2, 100, 3, 1);
+        // less than a batch, so no flush is scheduled
+        writer.add("m1", "fn1");
+
+        writer.close(5000);
+
+        assertEquals("fn1", store.get("m1"));
+        assertEquals(0, writer.size());
+
+        // records added after closing are saved right away
+        writer.add("m2", "fn2");
+        assertEquals("fn2", store.get("m2"));
+        assertEquals(1, writer.getDirect());
+    }
+
+    private BiConsumer<String, String> failingFor(String failingMessageId) {
+        return (messageId, functionId) -> {
+            if (failingMessageId.equals(messageId)) {
+                throw new IllegalStateException("data store failed");
+            }
+            store.put(messageId, functionId);
+        };
+    }
+}
@@ -0,0 +1,82 @@
+package io.slingr.endpoints.sparkpost;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventDeduplicatorTest {
+    private static final long WINDOW = 60000;
+
+    private ManualClock clock;
+
+    @Before
+    public void setUp() {
+        clock = new ManualClock();
+    }
+
+    @Test
+    public void repeatedIdsAreDuplicates() {
+        final EventDeduplicator deduplicator = new EventDeduplicator(WINDOW, 100, clock);
+
+        assertFalse(deduplicator.isDuplicate("92356927693813856"));
+        assertFalse(deduplicator.isDuplicate("not-a-number"));
+        assertTrue(deduplicator.isDuplicate("92356927693813856"));
+        assertTrue(deduplicator.isDuplicate("not-a-number"));
+        assertFalse(deduplicator.isDuplicate("92356927693813857"));
+
+        assertEquals(2, deduplicator.getDuplicates());
+        assertEquals(3, deduplicator.size());
+    }
+
+    @Test
+    public void idsAreRememberedBetweenOneAndTwoWindows() {
+        final EventDeduplicator deduplicator = new EventDeduplicator(WINDOW, 100, clock);
+        assertFalse(deduplicator.isDuplicate("1"));
+
+        // the first generation becomes the previous one
+        clock.advance(WINDOW + 1);
+        assertFalse(deduplicator.isDuplicate("2"));
+        assertTrue(deduplicator.isDuplicate("1"));
+
+        // and then it is discarded
+        clock.advance(WINDOW + 1);
+        assertFalse(deduplicator.isDuplicate("3"));
+        assertTrue(deduplicator.isDuplicate("2"));
+        assertFalse(deduplicator.isDuplicate("1"));
+    }
+
+    @Test
+    public void fullGenerationsAreRotated() {
+        final EventDeduplicator deduplicator = new EventDeduplicator(WINDOW, 2, clock);
+        assertFalse(deduplicator.isDuplicate("1"));
+        assertFalse(deduplicator.isDuplicate("2"));
+
+        // rotated without waiting for the window
+        assertFalse(deduplicator.isDuplicate("3"));
+        assertTrue(deduplicator.isDuplicate("1"));
+        assertFalse(deduplicator.isDuplicate("4"));
+        assertFalse(deduplicator.isDuplicate("5"));
+
+        assertFalse(deduplicator.isDuplicate("1"));
+        assertTrue(deduplicator.size() <= 4);
+    }
+
+    @Test
+    public void forgottenIdsAreProcessedAgain() {
+        final EventDeduplicator deduplicator = new EventDeduplicator(WINDOW, 100, clock);
+        assertFalse(deduplicator.isDuplicate("1"));
+        clock.advance(WINDOW + 1);
+        assertFalse(deduplicator.isDuplicate("2"));
+
+        // in the previous and in the current generation
+        deduplicator.forget("1");
+        deduplicator.forget("2");
+
+        assertFalse(deduplicator.isDuplicate("1"));
+        assertFalse(deduplicator.isDuplicate("2"));
+        assertEquals(0, deduplicator.getDuplicates());
+    }
+}
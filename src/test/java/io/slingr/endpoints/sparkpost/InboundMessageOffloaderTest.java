@@ -0,0 +1,173 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.services.Files;
+import io.slingr.endpoints.utils.Json;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class InboundMessageOffloaderTest {
+    private static final byte[] PDF = "%PDF-1.4 binary \u0000\u0001\u0002 content".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final String MIME = String.join("\r\n",
+            "Subject: Report",
+            "Content-Type: multipart/mixed; boundary=b1",
+            "",
+            "--b1",
+            "Content-Type: text/plain",
+            "",
+            "See the attached report",
+            "--b1",
+            "Content-Type: application/pdf",
+            "Content-Disposition: attachment; filename=\"report.pdf\"",
+            "Content-Transfer-Encoding: base64",
+            "",
+            Base64.getMimeEncoder().encodeToString(PDF),
+            "--b1",
+            "Content-Type: image/png",
+            "Content-ID: <logo@example.com>",
+            "",
+            "PNG",
+            "--b1--"
+    );
+
+    private Files files;
+    private InboundMessageOffloader offloader;
+    private Map<String, byte[]> uploaded;
+
+    @Before
+    public void setUp() {
+        files = mock(Files.class);
+        offloader = new InboundMessageOffloader(files);
+        uploaded = new LinkedHashMap<>();
+        when(files.upload(anyString(), any(InputStream.class), anyString())).thenAnswer(invocation -> {
+            final String fileId = "f" + (uploaded.size() + 1);
+            uploaded.put(fileId, WebhookEventTest.read((InputStream) invocation.getArguments()[1]));
+            return Json.map().set("fileId", fileId);
+        });
+    }
+
+    @Test
+    public void attachmentsAreUploaded() throws IOException {
+        final WebhookEvent event = relayEvent(MIME);
+
+        final Json payload = offloader.offload(event);
+
+        final Json content = WebhookEvent.relayContent(payload);
+        assertFalse(content.contains("email_rfc822"));
+        final List<Json> attachments = content.jsons("attachments");
+        assertEquals(2, attachments.size());
+
+        assertEquals("f1", attachments.get(0).string("fileId"));
+        assertEquals("report.pdf", attachments.get(0).string("name"));
+        assertEquals("application/pdf", attachments.get(0).string("type"));
+        assertEquals(PDF.length, attachments.get(0).longInteger("size").intValue());
+        assertArrayEquals(PDF, uploaded.get("f1"));
+
+        assertEquals("f2", attachments.get(1).string("fileId"));
+        assertEquals("attachment-2", attachments.get(1).string("name"));
+        assertEquals("image/png", attachments.get(1).string("type"));
+        assertEquals("logo@example.com", attachments.get(1).string("contentId"));
+
+        assertEquals("f3", content.json("email_rfc822_file").string("fileId"));
+        assertEquals("message/rfc822", content.json("email_rfc822_file").string("type"));
+        assertEquals(MIME, new String(uploaded.get("f3"), StandardCharsets.UTF_8));
+        verify(files, never()).delete(anyString());
+    }
+
+    @Test
+    public void smallEmailsAreKept() throws IOException {
+        final String mime = "Subject: Hello\r\nContent-Type: text/plain\r\n\r\nHello";
+        final WebhookEvent event = relayEvent(mime);
+
+        final Json payload = offloader.offload(event);
+
+        assertSame(event.toJson(), payload);
+        assertEquals(mime, WebhookEvent.relayContent(payload).string("email_rfc822"));
+        assertTrue(uploaded.isEmpty());
+    }
+
+    @Test
+    public void bigEmailsWithoutAttachments() throws IOException {
+        final StringBuilder body = new StringBuilder();
+        while (body.length() <= InboundMessageOffloader.MAX_INLINE_SIZE) {
+            body.append("A long line of text\r\n");
+        }
+        final String mime = "Subject: Hello\r\n\r\n" + body;
+
+        final Json payload = offloader.offload(relayEvent(mime));
+
+        final Json content = WebhookEvent.relayContent(payload);
+        assertTrue(content.jsons("attachments").isEmpty());
+        assertEquals("f1", content.json("email_rfc822_file").string("fileId"));
+        assertEquals(mime, new String(uploaded.get("f1"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void otherEventsAreKept() throws IOException {
+        final WebhookEvent event = WebhookEventParser.parse("[{\"msys\": {\"message_event\": {\"type\": \"delivery\"}}}]").get(0);
+
+        assertSame(event.toJson(), offloader.offload(event));
+        assertTrue(uploaded.isEmpty());
+    }
+
+    @Test
+    public void uploadedFilesAreDeletedOnFailure() throws IOException {
+        doReturn(Json.map().set("fileId", "f1")).doReturn(Json.map())
+                .when(files).upload(anyString(), any(InputStream.class), anyString());
+
+        try {
+            offloader.offload(relayEvent(MIME));
+            fail("the upload failed");
+        } catch (IllegalStateException ex) {
+            verify(files).delete("f1");
+        }
+    }
+
+    @Test
+    public void failedDeletesAreIgnored() throws IOException {
+        doReturn(Json.map().set("fileId", "f1")).doThrow(new RuntimeException("upload failed"))
+                .when(files).upload(anyString(), any(InputStream.class), anyString());
+        doThrow(new RuntimeException("delete failed")).when(files).delete("f1");
+
+        try {
+            offloader.offload(relayEvent(MIME));
+            fail("the upload failed");
+        } catch (RuntimeException ex) {
+            assertEquals("upload failed", ex.getMessage());
+            verify(files).delete("f1");
+        }
+    }
+
+    private static WebhookEvent relayEvent(String mime) {
+        return WebhookEventParser.fromJson(Collections.singletonList(Json.map()
+                .set("msys", Json.map().set("relay_message", Json.map()
+                        .set("rcpt_to", "relay@example.com")
+                        .set("content", Json.map().set("email_rfc822", mime))
+                ))
+        )).get(0);
+    }
+}
@@ -0,0 +1,128 @@
+package io.slingr.endpoints.sparkpost;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LongSetTest {
+
+    @Test
+    public void addAndRemove() {
+        final LongSet set = new LongSet();
+        set.add(1);
+        set.add(-1);
+        set.add(1);
+
+        assertEquals(2, set.size());
+        assertTrue(set.contains(1));
+        assertTrue(set.contains(-1));
+        assertFalse(set.contains(2));
+
+        assertTrue(set.remove(1));
+        assertFalse(set.remove(1));
+        assertFalse(set.contains(1));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void zero() {
+        final LongSet set = new LongSet();
+        assertFalse(set.contains(0));
+
+        set.add(0);
+        set.add(0);
+        assertTrue(set.contains(0));
+        assertEquals(1, set.size());
+
+        assertTrue(set.remove(0));
+        assertFalse(set.remove(0));
+        assertFalse(set.contains(0));
+        assertEquals(0, set.size());
+    }
+
+    @Test
+    public void growsAndKeepsValues() {
+        final LongSet set = new LongSet();
+        for (long i = 1; i <= 100000; i++) {
+            set.add(i * 7919);
+        }
+
+        assertEquals(100000, set.size());
+        for (long i = 1; i <= 100000; i++) {
+            assertTrue(set.contains(i * 7919));
+            assertFalse(set.contains(i * 7919 + 1));
+        }
+    }
+
+    @Test
+    public void removeKeepsCollidingValues() {
+        // values that are consecutive in the table, wrapping around its end
+        final LongSet set = new LongSet();
+        final List<Long> values = new ArrayList<>();
+        for (long value = 1; values.size() < 200; value++) {
+            values.add(value);
+            set.add(value);
+        }
+        for (int i = 0; i < values.size(); i += 3) {
+            assertTrue(set.remove(values.get(i)));
+        }
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(i % 3 != 0, set.contains(values.get(i)));
+        }
+    }
+
+    @Test
+    public void sameAsHashSet() {
+        final Random random = new Random(42);
+        final LongSet set = new LongSet();
+        final Set<Long> expected = new HashSet<>();
+        for (int i = 0; i < 200000; i++) {
+            // a small range of values, so there are many repeated adds and removes
+            final long value = random.nextInt(5000) - 2500;
+            if (random.nextBoolean()) {
+                set.add(value);
+                expected.add(value);
+            } else {
+                assertEquals(expected.remove(value), set.remove(value));
+            }
+            assertEquals(expected.size(), set.size());
+        }
+        for (long value = -2500; value < 2500; value++) {
+            assertEquals(expected.contains(value), set.contains(value));
+        }
+    }
+
+    @Test
+    public void addAll() {
+        final LongSet set = new LongSet();
+        set.add(1);
+        final LongSet other = new LongSet();
+        other.add(0);
+        other.add(1);
+        other.add(2);
+
+        set.addAll(other);
+
+        assertEquals(3, set.size());
+        assertTrue(set.contains(0));
+        assertTrue(set.contains(2));
+    }
+
+    @Test
+    public void hash() {
+        // FNV-1a test vectors
+        assertEquals(0xcbf29ce484222325L, LongSet.hash(""));
+        assertEquals(0xaf63dc4c8601ec8cL, LongSet.hash("a"));
+        assertEquals(0x85944171f73967e8L, LongSet.hash("foobar"));
+        assertNotEquals(LongSet.hash("john@example.com"), LongSet.hash("jane@example.com"));
+    }
+}
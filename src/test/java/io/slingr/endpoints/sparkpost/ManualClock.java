@@ -0,0 +1,32 @@
+package io.slingr.endpoints.sparkpost;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Clock that only moves when a component sleeps or the test advances it
+ */
+class ManualClock implements Clock {
+    final List<Long> sleeps = new ArrayList<>();
+    private long millis = 1000000;
+
+    @Override
+    public synchronized long millis() {
+        return millis;
+    }
+
+    @Override
+    public synchronized long nanos() {
+        return millis * 1000000;
+    }
+
+    @Override
+    public synchronized void sleep(long millis) {
+        sleeps.add(millis);
+        this.millis += millis;
+    }
+
+    synchronized void advance(long millis) {
+        this.millis += millis;
+    }
+}
@@ -0,0 +1,110 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.utils.Json;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MimeHeadersTest {
+
+    @Test
+    public void defaults() {
+        final MimeHeaders headers = new MimeHeaders();
+
+        assertTrue(headers.isEmpty());
+        assertEquals("text/plain", headers.getMimeType());
+        assertEquals(StandardCharsets.UTF_8, headers.getCharset());
+        assertEquals("7bit", headers.getTransferEncoding());
+        assertFalse(headers.isMultipart());
+        assertFalse(headers.isAttachment());
+        assertNull(headers.get("Subject"));
+    }
+
+    @Test
+    public void namesAreCaseInsensitive() {
+        final MimeHeaders headers = new MimeHeaders();
+        headers.add("Content-Type", " Multipart/Mixed; Boundary=\"abc;def\" ");
+
+        assertEquals("multipart/mixed", headers.getMimeType());
+        assertTrue(headers.isMultipart());
+        assertEquals("abc;def", headers.getBoundary());
+        assertEquals("abc;def", headers.getParameter("content-type", "BOUNDARY"));
+    }
+
+    @Test
+    public void firstValueOfRepeatedHeaders() {
+        final MimeHeaders headers = new MimeHeaders();
+        headers.add("Received", "first");
+        headers.add("received", "second");
+
+        assertEquals("first", headers.get("Received"));
+        final Json json = headers.toJson();
+        assertEquals("first", json.string("Received"));
+    }
+
+    @Test
+    public void invalidCharset() {
+        final MimeHeaders headers = new MimeHeaders();
+        headers.add("Content-Type", "text/plain; charset=unknown-charset");
+
+        assertEquals(StandardCharsets.UTF_8, headers.getCharset());
+    }
+
+    @Test
+    public void filenames() {
+        final MimeHeaders disposition = new MimeHeaders();
+        disposition.add("Content-Type", "application/pdf; name=\"type.pdf\"");
+        disposition.add("Content-Disposition", "inline; filename=\"disposition.pdf\"");
+        assertEquals("disposition.pdf", disposition.getFilename());
+        assertTrue(disposition.isAttachment());
+
+        final MimeHeaders type = new MimeHeaders();
+        type.add("Content-Type", "image/png; name=logo.png");
+        assertEquals("logo.png", type.getFilename());
+        assertTrue(type.isAttachment());
+
+        final MimeHeaders attachment = new MimeHeaders();
+        attachment.add("Content-Disposition", "ATTACHMENT");
+        assertNull(attachment.getFilename());
+        assertTrue(attachment.isAttachment());
+    }
+
+    @Test
+    public void extendedParameters() {
+        final MimeHeaders headers = new MimeHeaders();
+        headers.add("Content-Disposition", "attachment; filename*=utf-8''na%C3%AFve+file.txt");
+
+        assertEquals("naïve+file.txt", headers.getFilename());
+    }
+
+    @Test
+    public void plainParameterBeforeExtended() {
+        final MimeHeaders headers = new MimeHeaders();
+        headers.add("Content-Disposition", "attachment; filename*=utf-8''extended.txt; filename=plain.txt");
+
+        assertEquals("plain.txt", headers.getFilename());
+    }
+
+    @Test
+    public void encodedWords() {
+        assertEquals("Café", MimeHeaders.decode("=?UTF-8?B?Q2Fmw6k=?="));
+        assertEquals("Café au lait", MimeHeaders.decode("=?iso-8859-1?Q?Caf=E9_au_lait?="));
+        // whitespace between encoded words is ignored
+        assertEquals("Café au lait", MimeHeaders.decode("=?UTF-8?Q?Caf=C3=A9?= \r\n =?UTF-8?Q?_au_lait?="));
+        assertEquals("Re: Café", MimeHeaders.decode("Re: =?UTF-8?B?Q2Fmw6k=?="));
+        // unknown charsets are kept as they are
+        assertEquals("=?unknown?Q?abc?=", MimeHeaders.decode("=?unknown?Q?abc?="));
+        assertEquals("plain", MimeHeaders.decode("plain"));
+        assertNull(MimeHeaders.decode(null));
+
+        final MimeHeaders headers = new MimeHeaders();
+        headers.add("Subject", "=?UTF-8?B?Q2Fmw6k=?=");
+        assertEquals("Café", headers.get("Subject"));
+        assertEquals("Café", headers.toJson().string("Subject"));
+    }
+}
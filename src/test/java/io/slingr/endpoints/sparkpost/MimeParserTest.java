@@ -0,0 +1,261 @@
+package io.slingr.endpoints.sparkpost;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MimeParserTest {
+
+    @Test
+    public void singlePart() throws IOException {
+        final List<Part> parts = new ArrayList<>();
+        final MimeHeaders headers = parse(lines(
+                "From: john@example.com",
+                "Subject: Hello",
+                "",
+                "First line",
+                "Second line"
+        ), parts);
+
+        assertEquals("john@example.com", headers.get("from"));
+        assertEquals("Hello", headers.get("Subject"));
+        assertEquals(1, parts.size());
+        assertEquals("text/plain", parts.get(0).headers.getMimeType());
+        assertEquals("First line\r\nSecond line", parts.get(0).text());
+    }
+
+    @Test
+    public void foldedHeaders() throws IOException {
+        final MimeHeaders headers = parse(lines(
+                "Subject: a long",
+                "\tsubject",
+                "Content-Type: text/plain;",
+                " charset=\"iso-8859-1\"",
+                "",
+                "body"
+        ), new ArrayList<>());
+
+        assertEquals("a long subject", headers.get("Subject"));
+        assertEquals(StandardCharsets.ISO_8859_1, headers.getCharset());
+    }
+
+    @Test
+    public void multipart() throws IOException {
+        final List<Part> parts = new ArrayList<>();
+        final MimeHeaders headers = parse(lines(
+                "Content-Type: multipart/alternative; boundary=\"b1\"",
+                "",
+                "This is the preamble",
+                "--b1",
+                "Content-Type: text/plain",
+                "",
+                "Plain text",
+                "--b1",
+                "Content-Type: text/html",
+                "",
+                "<p>HTML</p>",
+                "--b1--",
+                "This is the epilogue"
+        ), parts);
+
+        assertTrue(headers.isMultipart());
+        assertEquals(2, parts.size());
+        assertEquals("text/plain", parts.get(0).headers.getMimeType());
+        assertEquals("Plain text", parts.get(0).text());
+        assertEquals("text/html", parts.get(1).headers.getMimeType());
+        assertEquals("<p>HTML</p>", parts.get(1).text());
+    }
+
+    @Test
+    public void nestedMultipart() throws IOException {
+        final List<Part> parts = new ArrayList<>();
+        parse(lines(
+                "Content-Type: multipart/mixed; boundary=outer",
+                "",
+                "--outer",
+                "Content-Type: multipart/alternative; boundary=inner",
+                "",
+                "--inner",
+                "Content-Type: text/plain",
+                "",
+                "Plain text",
+                "--inner",
+                "Content-Type: text/html",
+                "",
+                "<p>HTML</p>",
+                "--inner--",
+                "",
+                "--outer",
+                "Content-Type: application/pdf",
+                "Content-Disposition: attachment; filename=\"file.pdf\"",
+                "",
+                "PDF",
+                "--outer--"
+        ), parts);
+
+        assertEquals(3, parts.size());
+        assertEquals("Plain text", parts.get(0).text());
+        assertEquals("<p>HTML</p>", parts.get(1).text());
+        assertEquals("application/pdf", parts.get(2).headers.getMimeType());
+        assertEquals("file.pdf", parts.get(2).headers.getFilename());
+        assertTrue(parts.get(2).headers.isAttachment());
+        assertEquals("PDF", parts.get(2).text());
+    }
+
+    @Test
+    public void base64Part() throws IOException {
+        final byte[] content = new byte[1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        final List<Part> parts = new ArrayList<>();
+        parse(lines(
+                "Content-Type: multipart/mixed; boundary=b1",
+                "",
+                "--b1",
+                "Content-Type: application/octet-stream",
+                "Content-Transfer-Encoding: BASE64",
+                "",
+                Base64.getMimeEncoder().encodeToString(content),
+                "--b1--"
+        ), parts);
+
+        assertEquals(1, parts.size());
+        assertArrayEquals(content, parts.get(0).content);
+    }
+
+    @Test
+    public void quotedPrintablePart() throws IOException {
+        final List<Part> parts = new ArrayList<>();
+        parse(lines(
+                "Content-Type: text/plain; charset=utf-8",
+                "Content-Transfer-Encoding: quoted-printable",
+                "",
+                "Caf=C3=A9 au lait, a long line that is split with a soft=",
+                " line break, 1 + 1 =3D 2 and an invalid =ZZ escape"
+        ), parts);
+
+        assertEquals(1, parts.size());
+        assertEquals("Café au lait, a long line that is split with a soft line break, 1 + 1 = 2 and an invalid =ZZ escape",
+                parts.get(0).text());
+    }
+
+    @Test
+    public void longLines() throws IOException {
+        final StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            line.append((char) ('a' + i % 26));
+        }
+        final List<Part> parts = new ArrayList<>();
+        parse(lines(
+                "Content-Type: multipart/mixed; boundary=b1",
+                "",
+                "--b1",
+                "",
+                line.toString(),
+                "--b1--"
+        ), parts);
+
+        assertEquals(1, parts.size());
+        assertEquals(line.toString(), parts.get(0).text());
+    }
+
+    @Test
+    public void truncatedMultipart() throws IOException {
+        final List<Part> parts = new ArrayList<>();
+        parse(lines(
+                "Content-Type: multipart/mixed; boundary=b1",
+                "",
+                "--b1",
+                "Content-Type: text/plain",
+                "",
+                "First part",
+                "--b1",
+                "Content-Type: text/plain",
+                "",
+                "Second part without the close delimiter"
+        ), parts);
+
+        assertEquals(2, parts.size());
+        assertEquals("First part", parts.get(0).text());
+        assertEquals("Second part without the close delimiter", parts.get(1).text());
+    }
+
+    @Test
+    public void truncatedHeaders() throws IOException {
+        final List<Part> parts = new ArrayList<>();
+        final MimeHeaders headers = parse("Content-Type: multipart/mixed; boundary=b1\r\nSubj", parts);
+
+        assertEquals("b1", headers.getBoundary());
+        assertEquals(Collections.emptyList(), parts);
+    }
+
+    @Test
+    public void partContentNotRead() throws IOException {
+        final List<MimeHeaders> parts = new ArrayList<>();
+        MimeParser.parse(stream(lines(
+                "Content-Type: multipart/mixed; boundary=b1",
+                "",
+                "--b1",
+                "Content-Type: text/plain",
+                "",
+                "Skipped",
+                "--b1",
+                "Content-Type: text/html",
+                "",
+                "Skipped too",
+                "--b1--"
+        )), (headers, content) -> parts.add(headers));
+
+        assertEquals(2, parts.size());
+        assertEquals("text/html", parts.get(1).getMimeType());
+    }
+
+    private static MimeHeaders parse(String message, List<Part> parts) throws IOException {
+        return MimeParser.parse(stream(message), (headers, content) -> parts.add(new Part(headers, read(content))));
+    }
+
+    private static InputStream stream(String message) {
+        return new ByteArrayInputStream(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String lines(String... lines) {
+        return String.join("\r\n", lines);
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            os.write(buffer, 0, read);
+        }
+        return os.toByteArray();
+    }
+
+    private static class Part {
+        private final MimeHeaders headers;
+        private final byte[] content;
+
+        Part(MimeHeaders headers, byte[] content) {
+            this.headers = headers;
+            this.content = content;
+        }
+
+        String text() {
+            return new String(content, headers.getCharset());
+        }
+    }
+}
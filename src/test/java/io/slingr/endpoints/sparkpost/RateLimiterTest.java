@@ -0,0 +1,79 @@
+package io.slingr.endpoints.sparkpost;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+    private ManualClock clock;
+
+    @Before
+    public void setUp() {
+        clock = new ManualClock();
+    }
+
+    @Test
+    public void requestsWaitForTokens() throws InterruptedException {
+        final RateLimiter limiter = new RateLimiter(2, clock);
+
+        assertEquals(0, limiter.acquire());
+        assertEquals(0, limiter.acquire());
+        assertEquals(500, limiter.acquire());
+        assertEquals(Collections.singletonList(500L), clock.sleeps);
+
+        // unused tokens are kept up to one second of requests
+        clock.advance(10000);
+        assertEquals(0, limiter.acquire());
+        assertEquals(0, limiter.acquire());
+        assertEquals(500, limiter.acquire());
+    }
+
+    @Test
+    public void throttledRequestsPauseAndSlowDown() throws InterruptedException {
+        final RateLimiter limiter = new RateLimiter(2, clock);
+        limiter.acquire();
+
+        limiter.throttled(3000);
+
+        assertEquals(1, limiter.getRate(), 0.001);
+        assertEquals(3000, limiter.acquire());
+        // the rate recovers with each request
+        assertEquals(1.1, limiter.getRate(), 0.001);
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire();
+        }
+        assertEquals(2, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void rateIsNotHalvedBelowTheMinimum() {
+        final RateLimiter limiter = new RateLimiter(2, clock);
+
+        for (int i = 0; i < 5; i++) {
+            limiter.throttled(0);
+        }
+
+        assertEquals(0.5, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void unlimitedRequestsOnlyWaitWhenThrottled() throws InterruptedException {
+        final RateLimiter limiter = new RateLimiter(0, clock);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.acquire());
+        }
+        limiter.throttled(2000);
+        // a shorter pause doesn't shorten the current one
+        limiter.throttled(1000);
+
+        assertEquals(2000, limiter.acquire());
+        assertEquals(0, limiter.acquire());
+        assertEquals(Collections.singletonList(2000L), clock.sleeps);
+        assertTrue(limiter.getRate() <= 0);
+    }
+}
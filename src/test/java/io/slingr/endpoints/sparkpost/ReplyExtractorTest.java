@@ -0,0 +1,115 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.utils.Json;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReplyExtractorTest {
+    private static final String MIME = String.join("\r\n",
+            "From: john@example.com",
+            "Subject: =?UTF-8?Q?Re:_Caf=C3=A9?=",
+            "Content-Type: multipart/mixed; boundary=outer",
+            "",
+            "--outer",
+            "Content-Type: multipart/alternative; boundary=inner",
+            "",
+            "--inner",
+            "Content-Type: text/plain; charset=utf-8",
+            "Content-Transfer-Encoding: quoted-printable",
+            "",
+            "Merci, caf=C3=A9 is fine",
+            "--inner",
+            "Content-Type: text/html; charset=utf-8",
+            "Content-Transfer-Encoding: base64",
+            "",
+            Base64.getEncoder().encodeToString("<p>Merci, café is fine</p>".getBytes(StandardCharsets.UTF_8)),
+            "--inner--",
+            "--outer",
+            "Content-Type: text/plain",
+            "Content-Disposition: attachment; filename=notes.txt",
+            "",
+            "Attached text",
+            "--outer--"
+    );
+
+    @Test
+    public void withoutContent() {
+        assertNull(ReplyExtractor.extract(null));
+        assertNull(ReplyExtractor.extract(Json.map()));
+    }
+
+    @Test
+    public void parsedBySparkPost() {
+        final Json reply = ReplyExtractor.extract(Json.map().set("content", Json.map()
+                .set("text", "Parsed text")
+                .set("html", "<p>Parsed HTML</p>")
+                .set("headers", Arrays.asList(
+                        Json.map().set("Subject", "Hello"),
+                        Json.map().set("Received", "first"),
+                        Json.map().set("Received", "second")
+                ))
+                .set("email_rfc822", MIME)
+        ));
+
+        assertTrue(reply.string("text").contains("Parsed text"));
+        assertTrue(reply.string("html").contains("Parsed HTML"));
+        assertEquals("Hello", reply.json("headers").string("Subject"));
+        assertEquals("first", reply.json("headers").string("Received"));
+    }
+
+    @Test
+    public void fromMimeContent() {
+        final Json reply = ReplyExtractor.extract(Json.map().set("content", Json.map().set("email_rfc822", MIME)));
+
+        assertTrue(reply.string("text").contains("Merci, café is fine"));
+        assertFalse(reply.string("text").contains("Attached text"));
+        assertTrue(reply.string("html").contains("Merci, café is fine"));
+        assertEquals("john@example.com", reply.json("headers").string("From"));
+        assertEquals("Re: Café", reply.json("headers").string("Subject"));
+    }
+
+    @Test
+    public void fromBase64MimeContent() {
+        final Json reply = ReplyExtractor.extract(Json.map().set("content", Json.map()
+                .set("email_rfc822", Base64.getMimeEncoder().encodeToString(MIME.getBytes(StandardCharsets.UTF_8)))
+                .set("email_rfc822_is_base64", true)
+        ));
+
+        assertTrue(reply.string("text").contains("Merci, café is fine"));
+        assertEquals("Re: Café", reply.json("headers").string("Subject"));
+    }
+
+    @Test
+    public void onlyMissingFieldsFromMimeContent() {
+        final Json reply = ReplyExtractor.extract(Json.map().set("content", Json.map()
+                .set("text", "Parsed text")
+                .set("email_rfc822", MIME)
+        ));
+
+        assertTrue(reply.string("text").contains("Parsed text"));
+        assertTrue(reply.string("html").contains("Merci, café is fine"));
+        assertEquals("john@example.com", reply.json("headers").string("From"));
+    }
+
+    @Test
+    public void invalidMimeContent() {
+        final Json reply = ReplyExtractor.extract(Json.map().set("content", Json.map()
+                .set("email_rfc822", "QUJD=QUJD")
+                .set("email_rfc822_is_base64", true)
+        ));
+
+        assertNotNull(reply);
+        assertNull(reply.string("text"));
+        assertNull(reply.string("html"));
+        assertTrue(reply.json("headers").isEmpty());
+    }
+}
@@ -0,0 +1,84 @@
+package io.slingr.endpoints.sparkpost;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SignedMessageIdsTest {
+    private static final String FUNCTION_ID = "5a1f0c9e2b3d4e5f60718293";
+
+    private final SignedMessageIds ids = new SignedMessageIds("secret");
+
+    @Test
+    public void hexFunctionIds() {
+        final String messageId = ids.encode(FUNCTION_ID);
+
+        assertTrue(messageId.startsWith("h"));
+        assertTrue(messageId.matches("[a-z2-7-]+"));
+        assertEquals(FUNCTION_ID, ids.decode(messageId));
+    }
+
+    @Test
+    public void textFunctionIds() {
+        for (String functionId : new String[]{"ABCDEF", "abc", "función-1", "a"}) {
+            final String messageId = ids.encode(functionId);
+
+            assertTrue(messageId.startsWith("s"));
+            assertTrue(messageId.matches("[a-z2-7-]+"));
+            assertEquals(functionId, ids.decode(messageId));
+        }
+    }
+
+    @Test
+    public void caseFoldedIds() {
+        final String messageId = ids.encode(FUNCTION_ID);
+
+        assertEquals(FUNCTION_ID, ids.decode(messageId.toUpperCase()));
+        final String text = ids.encode("Text-Id");
+        assertEquals("Text-Id", ids.decode(text.toUpperCase()));
+        assertEquals("Text-Id", ids.decode(Character.toUpperCase(text.charAt(0)) + text.substring(1)));
+    }
+
+    @Test
+    public void tamperedIds() {
+        final String messageId = ids.encode(FUNCTION_ID);
+        final int separator = messageId.indexOf('-');
+
+        // payload, signature and prefix changed
+        assertNull(ids.decode(messageId.substring(0, 1) + replace(messageId.charAt(1)) + messageId.substring(2)));
+        assertNull(ids.decode(messageId.substring(0, separator + 1) + replace(messageId.charAt(separator + 1)) + messageId.substring(separator + 2)));
+        assertNull(ids.decode("s" + messageId.substring(1)));
+        // signature of another function id
+        final String other = ids.encode("5a1f0c9e2b3d4e5f60718294");
+        assertNull(ids.decode(messageId.substring(0, separator) + other.substring(other.indexOf('-'))));
+        // truncated signature
+        assertNull(ids.decode(messageId.substring(0, messageId.length() - 2)));
+    }
+
+    @Test
+    public void otherSecret() {
+        final String messageId = ids.encode(FUNCTION_ID);
+
+        assertNull(new SignedMessageIds("other secret").decode(messageId));
+        assertNotEquals(messageId, new SignedMessageIds("other secret").encode(FUNCTION_ID));
+        assertEquals(FUNCTION_ID, new SignedMessageIds("secret").decode(messageId));
+    }
+
+    @Test
+    public void unsignedIds() {
+        assertNull(ids.decode(null));
+        assertNull(ids.decode(""));
+        assertNull(ids.decode("h-"));
+        assertNull(ids.decode(FUNCTION_ID));
+        assertNull(ids.decode("habc-"));
+        assertNull(ids.decode("x" + ids.encode(FUNCTION_ID).substring(1)));
+        assertNull(ids.decode("habc1-abc"));
+    }
+
+    private static char replace(char c) {
+        return c == 'a' ? 'b' : 'a';
+    }
+}
@@ -0,0 +1,212 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.services.HttpService;
+import io.slingr.endpoints.utils.Json;
+import io.slingr.endpoints.ws.exchange.WebServiceRequest;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SparkPostEndpointTest {
+    private static final String EVENTS = "["
+            + "{\"msys\": {\"message_event\": {\"type\": \"delivery\", \"event_id\": \"1\", \"rcpt_to\": \"john@example.com\","
+            + "\"rcpt_meta\": {\"slingr_message_id\": \"abc\"}}}},"
+            + "{\"msys\": {\"track_event\": {\"type\": \"open\", \"event_id\": \"2\", \"rcpt_to\": \"jane@example.com\"}}}"
+            + "]";
+
+    @Test
+    public void eventsKeepTheFieldsOfTheRequest() {
+        final TestEndpoint endpoint = new TestEndpoint();
+        endpoint.addMessage("abc", "fn1");
+        final WebServiceRequest request = TestEndpoint.request(EVENTS, null);
+
+        endpoint.webhookProcessor(request);
+
+        final Json converted = HttpService.defaultWebhookConverter(request);
+        assertEquals(2, endpoint.sentEvents.size());
+        for (TestEndpoint.SentEvent event : endpoint.sentEvents) {
+            assertEquals("serviceEvent", event.name);
+            assertEquals(converted.keys(), event.data.keys());
+            for (String key : converted.keys()) {
+                if (!"body".equals(key)) {
+                    assertEquals(String.valueOf(converted.object(key)), String.valueOf(event.data.object(key)));
+                }
+            }
+        }
+        assertEquals("fn1", endpoint.sentEvents.get(0).functionId);
+        assertEquals("delivery", endpoint.sentEvents.get(0).data.json("body").json("msys").json("message_event").string("type"));
+        assertNull(endpoint.sentEvents.get(1).functionId);
+        assertEquals("open", endpoint.sentEvents.get(1).data.json("body").json("msys").json("track_event").string("type"));
+    }
+
+    @Test
+    public void groupedEventsKeepTheFieldsOfTheRequest() {
+        final TestEndpoint endpoint = new TestEndpoint().set("groupServiceEvents", "true");
+        final WebServiceRequest request = TestEndpoint.request(EVENTS, null);
+
+        endpoint.webhookProcessor(request);
+
+        final Set<String> expected = new HashSet<>(HttpService.defaultWebhookConverter(request).keys());
+        expected.add("grouped");
+        expected.add("count");
+        assertEquals(2, endpoint.sentEvents.size());
+        for (TestEndpoint.SentEvent event : endpoint.sentEvents) {
+            assertEquals(expected, new HashSet<>(event.data.keys()));
+        }
+    }
+
+    @Test
+    public void uncorrelatedEventsAreGroupedByEventName() {
+        final TestEndpoint endpoint = new TestEndpoint().set("groupServiceEvents", "true");
+        endpoint.addMessage("abc", "fn1");
+        final String batch = "["
+                + "{\"msys\": {\"message_event\": {\"type\": \"delivery\", \"event_id\": \"1\"}}},"
+                + "{\"msys\": {\"message_event\": {\"type\": \"bounce\", \"event_id\": \"2\"}}},"
+                + "{\"msys\": {\"message_event\": {\"type\": \"delivery\", \"event_id\": \"3\"}}},"
+                + "{\"msys\": {\"message_event\": {\"type\": \"bounce\", \"event_id\": \"4\", \"rcpt_meta\": {\"slingr_message_id\": \"abc\"}}}}"
+                + "]";
+
+        endpoint.webhookProcessor(TestEndpoint.request(batch, null));
+
+        assertEquals(3, endpoint.sentEvents.size());
+        assertEquals("fn1", endpoint.sentEvents.get(0).functionId);
+        assertEquals(1, endpoint.sentEvents.get(0).data.longInteger("count").intValue());
+        assertNull(endpoint.sentEvents.get(1).functionId);
+        assertEquals(2, endpoint.sentEvents.get(1).data.longInteger("count").intValue());
+        assertEquals("delivery", endpoint.sentEvents.get(1).data.jsons("body").get(1).json("msys").json("message_event").string("type"));
+        assertNull(endpoint.sentEvents.get(2).functionId);
+        assertEquals(1, endpoint.sentEvents.get(2).data.longInteger("count").intValue());
+        assertEquals("bounce", endpoint.sentEvents.get(2).data.jsons("body").get(0).json("msys").json("message_event").string("type"));
+    }
+
+    @Test
+    public void retriedBatchesOnlySendTheEventsNotSent() {
+        final TestEndpoint endpoint = new TestEndpoint();
+        endpoint.webhookProcessor(TestEndpoint.request(EVENTS, null));
+        assertEquals(2, endpoint.sentEvents.size());
+
+        // the same batch retried by SparkPost
+        endpoint.webhookProcessor(TestEndpoint.request(EVENTS, null));
+        assertEquals(2, endpoint.sentEvents.size());
+    }
+
+    @Test
+    public void eventsNotSentAreForgotten() {
+        final TestEndpoint endpoint = new TestEndpoint();
+        endpoint.failingSends = 1;
+        try {
+            endpoint.webhookProcessor(TestEndpoint.request(EVENTS, null));
+            fail("the event could not be sent");
+        } catch (IllegalStateException ex) {
+            assertTrue(endpoint.sentEvents.isEmpty());
+        }
+
+        // SparkPost retries the batch
+        endpoint.webhookProcessor(TestEndpoint.request(EVENTS, null));
+
+        assertEquals(2, endpoint.sentEvents.size());
+    }
+
+    @Test
+    public void emptyBatchIsSentAsItArrives() {
+        final TestEndpoint endpoint = new TestEndpoint();
+        final WebServiceRequest request = TestEndpoint.request("[]".getBytes(StandardCharsets.UTF_8), null);
+
+        endpoint.webhookProcessor(request);
+
+        assertEquals(1, endpoint.sentEvents.size());
+        assertEquals(HttpService.defaultWebhookConverter(request).keys(), endpoint.sentEvents.get(0).data.keys());
+        assertEquals(0, endpoint.sentEvents.get(0).data.jsons("body").size());
+    }
+
+    @Test
+    public void compressedInboundEmails() throws IOException {
+        final TestEndpoint endpoint = new TestEndpoint();
+        final String batch = "[{\"msys\": {\"relay_message\": {\"msg_from\": \"jane@example.com\", \"rcpt_to\": \"support@relay.example.com\","
+                + "\"content\": {\"subject\": \"Hello\", \"email_rfc822\": \"Subject: Hello\\r\\n\\r\\nHi\"}}}}]";
+
+        endpoint.inboundDomainProcessor(TestEndpoint.request(gzip(batch), "gzip"));
+
+        assertEquals(1, endpoint.sentEvents.size());
+        assertEquals("emailArrived", endpoint.sentEvents.get(0).name);
+        final Json relayMessage = endpoint.sentEvents.get(0).data.json("body").json("msys").json("relay_message");
+        assertEquals("support@relay.example.com", relayMessage.string("rcpt_to"));
+        assertEquals("Subject: Hello\r\n\r\nHi", relayMessage.json("content").string("email_rfc822"));
+    }
+
+    @Test
+    public void invalidCompressedInboundEmails() throws IOException {
+        final TestEndpoint endpoint = new TestEndpoint();
+        final byte[] truncated = Arrays.copyOf(gzip("[]"), 12);
+
+        endpoint.inboundDomainProcessor(TestEndpoint.request(truncated, "gzip"));
+
+        // bodies bigger than the limit are rejected in the same way
+        final StringBuilder big = new StringBuilder("[\"");
+        while (big.length() <= 8 * 1024 * 1024) {
+            big.append("0000000000000000000000000000000000000000000000000000000000000000");
+        }
+        endpoint.inboundDomainProcessor(TestEndpoint.request(gzip(big.append("\"]").toString()), "gzip"));
+
+        assertTrue(endpoint.sentEvents.isEmpty());
+    }
+
+    @Test
+    public void plusCodesWithSeparatorAreLookedUpWhole() {
+        final TestEndpoint endpoint = new TestEndpoint();
+        endpoint.addMessage("ticket.42", "fn1");
+        endpoint.addMessage("ticket", "fn2");
+        endpoint.addMessage("abc123", "fn3");
+        final String batch = "["
+                + "{\"msys\": {\"relay_message\": {\"rcpt_to\": \"acct+ticket.42@relay.example.com\", \"content\": {\"subject\": \"Re: 42\"}}}},"
+                + "{\"msys\": {\"relay_message\": {\"rcpt_to\": \"acct+ticket@relay.example.com\", \"content\": {\"subject\": \"Re: other\"}}}},"
+                + "{\"msys\": {\"relay_message\": {\"rcpt_to\": \"acct+abc123.1z@relay.example.com\", \"content\": {\"subject\": \"Re: batch\"}}}}"
+                + "]";
+
+        endpoint.inboundDomainProcessor(TestEndpoint.request(batch, null));
+
+        assertEquals(3, endpoint.sentEvents.size());
+        assertEquals("responseArrived", endpoint.sentEvents.get(0).name);
+        assertEquals("fn1", endpoint.sentEvents.get(0).functionId);
+        assertEquals("fn2", endpoint.sentEvents.get(1).functionId);
+        // recipients of a batch use the message id of the transmission
+        assertEquals("fn3", endpoint.sentEvents.get(2).functionId);
+    }
+
+    @Test
+    public void pendingCorrelationRecordsAreSavedWhenStopped() {
+        final TestEndpoint endpoint = new TestEndpoint();
+        final Map<String, String> saved = new HashMap<>();
+        final CorrelationWriter writer = new CorrelationWriter(saved::put, TimeUnit.HOURS.toMillis(1), 100, 1000, 3, 1);
+        endpoint.set("correlationWriter", writer);
+        writer.add("abc", "fn1");
+
+        endpoint.endpointStopped("test");
+
+        assertEquals(Collections.singletonMap("abc", "fn1"), saved);
+        assertEquals(0, writer.size());
+    }
+
+    private static byte[] gzip(String content) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(os)) {
+            gzip.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return os.toByteArray();
+    }
+}
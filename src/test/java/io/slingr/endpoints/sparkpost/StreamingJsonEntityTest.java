@@ -0,0 +1,57 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.utils.Json;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingJsonEntityTest {
+
+    @Test
+    public void placeholdersAreReplacedByTheContentOfTheFiles() throws IOException {
+        final String json = Json.map()
+                .set("subject", "Report")
+                .set("data", StreamingJsonEntity.placeholder("file1"))
+                .toString();
+        assertTrue(StreamingJsonEntity.containsPlaceholders(json));
+
+        final Json written = write(json);
+
+        assertEquals("Report", written.string("subject"));
+        assertEquals(Base64.getEncoder().encodeToString(content("file1")), written.string("data"));
+    }
+
+    @Test
+    public void textLikePlaceholdersIsKeptAsIs() throws IOException {
+        final String text = "__sparkpost_file:file1__";
+        final String json = Json.map()
+                .set("text", text)
+                .set("data", StreamingJsonEntity.placeholder("file2"))
+                .toString();
+
+        final Json written = write(json);
+
+        assertEquals(text, written.string("text"));
+        assertEquals(Base64.getEncoder().encodeToString(content("file2")), written.string("data"));
+        assertFalse(StreamingJsonEntity.containsPlaceholders(Json.map().set("text", text).toString()));
+    }
+
+    private static Json write(String json) throws IOException {
+        final StreamingJsonEntity entity = new StreamingJsonEntity(json, fileId -> new ByteArrayInputStream(content(fileId)));
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        entity.writeTo(os);
+        return Json.parse(new String(os.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static byte[] content(String fileId) {
+        return ("content of " + fileId).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,186 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.utils.Json;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SuppressionListTest {
+
+    @Test
+    public void normalize() {
+        assertEquals("john@example.com", SuppressionList.normalize(" John@Example.com "));
+        assertEquals("john@example.com", SuppressionList.normalize("John Doe <John@Example.com>"));
+        assertEquals("john@example.com", SuppressionList.normalize("\"Doe <jd>\" < john@example.com >"));
+        assertNull(SuppressionList.normalize("John Doe"));
+        assertNull(SuppressionList.normalize(null));
+    }
+
+    @Test
+    public void addedAddresses() {
+        final SuppressionList list = new SuppressionList(60000);
+        list.add("John@Example.com", true, false);
+        list.add("jane@example.com", false, true);
+        list.add("not an address", true, true);
+
+        assertTrue(list.isSuppressed("john@example.com", true));
+        assertTrue(list.isSuppressed("John <JOHN@example.com>", true));
+        assertFalse(list.isSuppressed("john@example.com", false));
+        assertTrue(list.isSuppressed("jane@example.com", false));
+        assertFalse(list.isSuppressed("jane@example.com", true));
+        assertFalse(list.isSuppressed("other@example.com", true));
+        assertFalse(list.isSuppressed(null, true));
+        assertEquals(2, list.size());
+    }
+
+    @Test
+    public void updatedWithEvents() {
+        final SuppressionList list = new SuppressionList(60000);
+
+        assertTrue(list.update(event("bounce", "10", "hard@example.com")));
+        assertTrue(list.update(event("out_of_band", "30", "norcpt@example.com")));
+        assertTrue(list.update(event("bounce", "90", "unsubscribed@example.com")));
+        assertTrue(list.update(event("spam_complaint", null, "spam@example.com")));
+        assertTrue(list.update(event("link_unsubscribe", null, "link@example.com")));
+        assertTrue(list.update(event("list_unsubscribe", null, "list@example.com")));
+        assertFalse(list.update(event("bounce", "21", "soft@example.com")));
+        assertFalse(list.update(event("delivery", null, "delivered@example.com")));
+        assertFalse(list.update(event(null, null, "unknown@example.com")));
+        assertFalse(list.update(event("bounce", "10", null)));
+
+        assertTrue(list.isSuppressed("hard@example.com", true));
+        assertTrue(list.isSuppressed("hard@example.com", false));
+        assertTrue(list.isSuppressed("norcpt@example.com", true));
+        assertFalse(list.isSuppressed("unsubscribed@example.com", true));
+        assertTrue(list.isSuppressed("unsubscribed@example.com", false));
+        assertFalse(list.isSuppressed("spam@example.com", true));
+        assertTrue(list.isSuppressed("spam@example.com", false));
+        assertTrue(list.isSuppressed("link@example.com", false));
+        assertTrue(list.isSuppressed("list@example.com", false));
+        assertFalse(list.isSuppressed("soft@example.com", false));
+        assertFalse(list.isSuppressed("delivered@example.com", false));
+    }
+
+    @Test
+    public void refreshLoadsAllPages() {
+        final SuppressionList list = new SuppressionList(60000);
+        list.add("old@example.com", true, true);
+        final List<String> paths = new ArrayList<>();
+
+        assertTrue(list.needsRefresh());
+        assertTrue(list.refresh(path -> {
+            paths.add(path);
+            switch (paths.size()) {
+                case 1:
+                    return page(Json.map().set("next", "/api/v1/suppression-list?cursor=2"),
+                            entry("transactional@example.com").set("type", "transactional"),
+                            entry("both@example.com").set("transactional", true).set("non_transactional", true));
+                case 2:
+                    return page(Json.map().set("next", " api/v1/suppression-list?cursor=3 "),
+                            entry("Non <Non@Example.com>").set("type", "non_transactional"));
+                default:
+                    return page(null);
+            }
+        }));
+
+        assertEquals(Arrays.asList(
+                "api/v1/suppression-list?per_page=10000&cursor=initial",
+                "api/v1/suppression-list?cursor=2",
+                "api/v1/suppression-list?cursor=3"
+        ), paths);
+        assertTrue(list.isSuppressed("transactional@example.com", true));
+        assertFalse(list.isSuppressed("transactional@example.com", false));
+        assertTrue(list.isSuppressed("both@example.com", true));
+        assertTrue(list.isSuppressed("both@example.com", false));
+        assertTrue(list.isSuppressed("non@example.com", false));
+        // the list is replaced
+        assertFalse(list.isSuppressed("old@example.com", true));
+        assertEquals(4, list.size());
+        assertFalse(list.needsRefresh());
+    }
+
+    @Test
+    public void suppressionsReceivedWhileRefreshing() {
+        final SuppressionList list = new SuppressionList(60000);
+
+        assertTrue(list.refresh(path -> {
+            list.add("received@example.com", true, false);
+            assertFalse(list.needsRefresh());
+            assertFalse(list.refresh(other -> null));
+            return page(null, entry("loaded@example.com").set("type", "transactional"));
+        }));
+
+        assertTrue(list.isSuppressed("received@example.com", true));
+        assertTrue(list.isSuppressed("loaded@example.com", true));
+        assertEquals(2, list.size());
+    }
+
+    @Test
+    public void failedRefreshKeepsTheList() {
+        final SuppressionList list = new SuppressionList(60000);
+        list.add("old@example.com", true, true);
+
+        try {
+            list.refresh(path -> {
+                throw new IllegalStateException("API error");
+            });
+            fail("the API failed");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+
+        assertTrue(list.isSuppressed("old@example.com", true));
+        // retried after a few minutes
+        assertFalse(list.needsRefresh());
+        assertTrue(list.refresh(path -> null));
+    }
+
+    @Test
+    public void bigListsAreTruncated() {
+        final SuppressionList list = new SuppressionList(60000, 3);
+        final List<String> paths = new ArrayList<>();
+
+        assertTrue(list.refresh(path -> {
+            paths.add(path);
+            return page(Json.map().set("next", "api/v1/suppression-list?cursor=" + paths.size()),
+                    entry("a" + paths.size() + "@example.com").set("type", "transactional"),
+                    entry("b" + paths.size() + "@example.com").set("type", "transactional"));
+        }));
+
+        // the rest of the second page and the next pages are not loaded
+        assertEquals(2, paths.size());
+        assertTrue(list.isSuppressed("a1@example.com", true));
+        assertTrue(list.isSuppressed("b1@example.com", true));
+        assertTrue(list.isSuppressed("a2@example.com", true));
+        assertFalse(list.isSuppressed("b2@example.com", true));
+        assertEquals(3, list.size());
+
+        // suppressions received in webhooks are added anyway
+        list.add("webhook@example.com", true, false);
+        assertTrue(list.isSuppressed("webhook@example.com", true));
+    }
+
+    private static WebhookEvent event(String eventName, String bounceClass, String recipient) {
+        final WebhookEvent event = new WebhookEvent(Json.map());
+        event.setEventName(eventName);
+        event.setBounceClass(bounceClass);
+        event.setRecipient(recipient);
+        return event;
+    }
+
+    private static Json entry(String recipient) {
+        return Json.map().set("recipient", recipient);
+    }
+
+    private static Json page(Object links, Json... results) {
+        return Json.map().set("results", Arrays.asList(results)).setIfNotNull("links", links);
+    }
+}
@@ -0,0 +1,136 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+import io.slingr.endpoints.utils.Json;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TemplatePromoterTest {
+    private final List<Json> templates = new ArrayList<>();
+    private final List<Runnable> tasks = new ArrayList<>();
+    private TemplatePromoter promoter;
+
+    @Before
+    public void setUp() {
+        // registrations run when the test runs the tasks
+        promoter = new TemplatePromoter(3, 100, 10, templates::add, tasks::add);
+    }
+
+    @Test
+    public void contentIsPromotedAfterTheThreshold() {
+        assertNull(promoter.getTemplateId(content("Hello")));
+        assertNull(promoter.getTemplateId(content("Hello")));
+        assertTrue(tasks.isEmpty());
+
+        // the send that reaches the threshold is sent inline while the template is created
+        assertNull(promoter.getTemplateId(content("Hello")));
+        assertEquals(1, tasks.size());
+        assertNull(promoter.getTemplateId(content("Hello")));
+        assertEquals(1, tasks.size());
+
+        runTasks();
+
+        final String templateId = promoter.getTemplateId(content("Hello"));
+        assertNotNull(templateId);
+        assertTrue(templateId.startsWith("slingr-"));
+        assertEquals(1, templates.size());
+        assertEquals(templateId, templates.get(0).string("id"));
+        assertEquals("Hello", templates.get(0).json("content").string("subject"));
+        assertEquals(1, promoter.getRegistered());
+        // other content is counted apart
+        assertNull(promoter.getTemplateId(content("Other")));
+        assertNull(promoter.getTemplateId(content("Other")));
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void existingTemplatesAreRegistered() {
+        promoter = new TemplatePromoter(1, 100, 10, template -> {
+            throw EndpointException.permanent(ErrorCode.API, "Conflict", Json.map().set("status", 409));
+        }, tasks::add);
+
+        assertNull(promoter.getTemplateId(content("Hello")));
+        runTasks();
+
+        assertNotNull(promoter.getTemplateId(content("Hello")));
+        assertEquals(1, promoter.getRegistered());
+    }
+
+    @Test
+    public void failedTemplatesAreNotRetriedRightAway() {
+        promoter = new TemplatePromoter(1, 100, 10, template -> {
+            throw EndpointException.permanent(ErrorCode.API, "Invalid template", Json.map().set("status", 422));
+        }, tasks::add);
+
+        assertNull(promoter.getTemplateId(content("Hello")));
+        runTasks();
+
+        assertNull(promoter.getTemplateId(content("Hello")));
+        assertTrue(tasks.isEmpty());
+        assertEquals(0, promoter.getRegistered());
+    }
+
+    @Test
+    public void unsupportedContentIsNotPromoted() {
+        promoter = new TemplatePromoter(1, 100, 10, templates::add, tasks::add);
+
+        assertNull(promoter.getTemplateId(content("Hello").set("attachments", new ArrayList<>())));
+        assertNull(promoter.getTemplateId(Json.map().set("subject", "Without sender").set("text", "Hi")));
+        assertNull(promoter.getTemplateId(Json.map().set("from", "info@example.com").set("subject", "Without body")));
+        assertNull(promoter.getTemplateId(null));
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void templatesAreLimited() {
+        promoter = new TemplatePromoter(1, 100, 1, templates::add, Runnable::run);
+
+        assertNull(promoter.getTemplateId(content("First")));
+        assertNull(promoter.getTemplateId(content("Second")));
+
+        assertNotNull(promoter.getTemplateId(content("First")));
+        assertNull(promoter.getTemplateId(content("Second")));
+        assertEquals(1, templates.size());
+    }
+
+    @Test
+    public void rejectedRegistrationsAreTriedAgain() {
+        final List<Runnable> accepted = new ArrayList<>();
+        final boolean[] stopped = {true};
+        promoter = new TemplatePromoter(1, 100, 10, templates::add, task -> {
+            if (stopped[0]) {
+                throw new RejectedExecutionException("stopped");
+            }
+            accepted.add(task);
+        });
+
+        assertNull(promoter.getTemplateId(content("Hello")));
+        stopped[0] = false;
+        assertNull(promoter.getTemplateId(content("Hello")));
+
+        assertEquals(1, accepted.size());
+    }
+
+    private void runTasks() {
+        final List<Runnable> pending = new ArrayList<>(tasks);
+        tasks.clear();
+        pending.forEach(Runnable::run);
+    }
+
+    private static Json content(String subject) {
+        return Json.map()
+                .set("from", "info@example.com")
+                .set("subject", subject)
+                .set("html", "<p>Hello {{name}}</p>");
+    }
+}
@@ -0,0 +1,125 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.services.AppLogs;
+import io.slingr.endpoints.services.Events;
+import io.slingr.endpoints.services.Files;
+import io.slingr.endpoints.services.Properties;
+import io.slingr.endpoints.services.datastores.DataStore;
+import io.slingr.endpoints.utils.Base64Utils;
+import io.slingr.endpoints.utils.Json;
+import io.slingr.endpoints.ws.exchange.WebServiceRequest;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Endpoint that is not started, with the services of the platform replaced by mocks. Sent events are
+ * recorded and the data store of emails keeps the documents in a map.
+ */
+class TestEndpoint extends SparkPostEndpoint {
+    static final String BASIC_AUTH = "Basic " + Base64Utils.encodeBasicAuthorization("sparkpost", "secret");
+
+    final Map<String, Json> emails = new ConcurrentHashMap<>();
+    final List<SentEvent> sentEvents = new ArrayList<>();
+    final Files files = mock(Files.class);
+    // number of the next sends of events that fail
+    int failingSends = 0;
+
+    private final Events events = mock(Events.class);
+    private final Properties properties = mock(Properties.class);
+
+    TestEndpoint() {
+        doAnswer(invocation -> record(invocation.getArguments(), null)).when(events).send(anyString(), any());
+        doAnswer(invocation -> record(invocation.getArguments(), (String) invocation.getArguments()[2])).when(events).send(anyString(), any(), anyString());
+
+        final DataStore dataStore = mock(DataStore.class);
+        doAnswer(invocation -> emails.get(String.valueOf(invocation.getArguments()[0]))).when(dataStore).findById(anyString());
+        doAnswer(invocation -> {
+            final Json document = (Json) invocation.getArguments()[0];
+            emails.put(document.string("_id"), document);
+            return document;
+        }).when(dataStore).save(any(Json.class));
+
+        set("emails", dataStore);
+        set("settings", mock(DataStore.class));
+        set("webhookBatches", mock(DataStore.class));
+        set("appLogger", mock(AppLogs.class));
+        set("basicAuth", BASIC_AUTH);
+    }
+
+    @Override
+    public Events events() {
+        return events;
+    }
+
+    @Override
+    public Files files() {
+        return files;
+    }
+
+    @Override
+    public Properties properties() {
+        return properties;
+    }
+
+    private Object record(Object[] arguments, String functionId) {
+        if (failingSends > 0) {
+            failingSends--;
+            throw new IllegalStateException("event could not be sent");
+        }
+        sentEvents.add(new SentEvent((String) arguments[0], (Json) arguments[1], functionId));
+        return null;
+    }
+
+    /**
+     * Sets a field of the endpoint, like the platform does with the properties and services
+     */
+    TestEndpoint set(String name, Object value) {
+        try {
+            final Field field = SparkPostEndpoint.class.getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(this, value);
+            return this;
+        } catch (NoSuchFieldException | IllegalAccessException ex) {
+            throw new IllegalStateException(String.format("Unable to set the field [%s] of the endpoint", name), ex);
+        }
+    }
+
+    /**
+     * Stores the correlation between the message and the function, as a previous send would do
+     */
+    void addMessage(String messageId, String functionId) {
+        emails.put(messageId, Json.map().set("_id", messageId).set("functionId", functionId).set("date", System.currentTimeMillis()));
+    }
+
+    static WebServiceRequest request(Object body, String contentEncoding) {
+        final WebServiceRequest request = mock(WebServiceRequest.class);
+        doReturn(BASIC_AUTH).when(request).getHeader("Authorization");
+        doReturn(contentEncoding).when(request).getHeader("Content-Encoding");
+        doReturn(body).when(request).getBody();
+        doReturn("/").when(request).getPath();
+        doReturn(Json.map().set("Authorization", BASIC_AUTH).setIfNotNull("Content-Encoding", contentEncoding)).when(request).getHeaders();
+        return request;
+    }
+
+    static class SentEvent {
+        final String name;
+        final Json data;
+        final String functionId;
+
+        SentEvent(String name, Json data, String functionId) {
+            this.name = name;
+            this.data = data;
+            this.functionId = functionId;
+        }
+    }
+}
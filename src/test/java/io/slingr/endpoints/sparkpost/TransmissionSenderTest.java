@@ -0,0 +1,231 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+import io.slingr.endpoints.utils.Json;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class TransmissionSenderTest {
+    private static final long WINDOW = 300;
+
+    private RateLimiter rateLimiter;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        // the limiter is not waited, throttled requests are checked with the calls to it
+        rateLimiter = mock(RateLimiter.class);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void throttledRequestsAreRetried() {
+        final TransmissionSender sender = new TransmissionSender(rateLimiter, 0);
+        final Json response = Json.map().set("results", Json.map());
+        final AtomicInteger attempts = new AtomicInteger();
+
+        final Json result = sender.send(() -> {
+            switch (attempts.incrementAndGet()) {
+                case 1:
+                    throw error(429, "3");
+                case 2:
+                    throw error(429, null);
+                default:
+                    return response;
+            }
+        });
+
+        assertSame(response, result);
+        assertEquals(3, attempts.get());
+        verify(rateLimiter).throttled(3000);
+        // without 'Retry-After' the pause grows with each retry
+        verify(rateLimiter).throttled(2000);
+        assertEquals(2, sender.getThrottled());
+        assertEquals(1, sender.getSent());
+    }
+
+    @Test
+    public void throttledRetriesAreLimited() {
+        final TransmissionSender sender = new TransmissionSender(rateLimiter, 0);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        try {
+            sender.send(() -> {
+                attempts.incrementAndGet();
+                throw error(429, "1");
+            });
+            fail("the request is always throttled");
+        } catch (EndpointException ex) {
+            assertTrue(ApiErrors.isThrottled(ex));
+        }
+        assertEquals(4, attempts.get());
+        assertEquals(0, sender.getSent());
+    }
+
+    @Test
+    public void otherErrorsAreNotRetried() {
+        final TransmissionSender sender = new TransmissionSender(rateLimiter, 0);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        try {
+            sender.send(() -> {
+                attempts.incrementAndGet();
+                throw error(500, "1");
+            });
+            fail("the request failed");
+        } catch (EndpointException ex) {
+            assertEquals(500, ApiErrors.getStatus(ex));
+        }
+        assertEquals(1, attempts.get());
+        verify(rateLimiter, never()).throttled(1000);
+    }
+
+    @Test
+    public void loneSendIsNotDelayed() {
+        final TransmissionSender sender = new TransmissionSender(rateLimiter, 60000);
+        final List<Json> posted = new ArrayList<>();
+        final Json response = Json.map().set("results", Json.map());
+        final long start = System.currentTimeMillis();
+
+        final Json result = sender.sendCoalesced("key", Json.map(), recipients("john@example.com"), body -> {
+            posted.add(body);
+            return response;
+        });
+
+        assertSame(response, result);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, posted.size());
+        assertEquals("john@example.com", posted.get(0).jsons("recipients").get(0).string("address"));
+        assertEquals(0, sender.getCoalesced());
+    }
+
+    @Test
+    public void rejectedCoalescedTransmissionIsSplit() throws Exception {
+        final TransmissionSender sender = new TransmissionSender(rateLimiter, WINDOW);
+        final CountDownLatch firstPosted = new CountDownLatch(1);
+        final CountDownLatch joined = new CountDownLatch(1);
+        final List<Integer> postedSizes = Collections.synchronizedList(new ArrayList<>());
+        final Function<Json, Json> poster = body -> {
+            final List<Json> recipients = body.jsons("recipients");
+            postedSizes.add(recipients.size());
+            if (postedSizes.size() == 1) {
+                // the first send is being sent while the other ones arrive
+                firstPosted.countDown();
+                await(joined);
+            } else if (recipients.size() > 1) {
+                throw error(422, null);
+            } else if ("invalid@example.com".equals(recipients.get(0).string("address"))) {
+                throw error(400, null);
+            }
+            return Json.map().set("results", Json.map().set("total_accepted_recipients", recipients.size()));
+        };
+
+        final Future<Json> first = executor.submit(() -> sender.sendCoalesced("key", Json.map(), recipients("first@example.com"), poster));
+        assertTrue(firstPosted.await(5, TimeUnit.SECONDS));
+        final Future<Json> valid = executor.submit(() -> sender.sendCoalesced("key", Json.map(), recipients("valid@example.com"), poster));
+        final Future<Json> invalid = executor.submit(() -> {
+            // waits until the previous send is pending in the window
+            Thread.sleep(WINDOW / 3);
+            return sender.sendCoalesced("key", Json.map(), recipients("invalid@example.com"), poster);
+        });
+        Thread.sleep(WINDOW * 2 / 3);
+        joined.countDown();
+
+        assertEquals(1, first.get(5, TimeUnit.SECONDS).json("results").longInteger("total_accepted_recipients").intValue());
+        assertEquals(1, valid.get(5, TimeUnit.SECONDS).json("results").longInteger("total_accepted_recipients").intValue());
+        try {
+            invalid.get(5, TimeUnit.SECONDS);
+            fail("the recipient is rejected");
+        } catch (ExecutionException ex) {
+            assertEquals(400, ApiErrors.getStatus((EndpointException) ex.getCause()));
+        }
+        assertEquals(1, sender.getCoalesced());
+        // first send, both sends joined, and each one again
+        assertEquals(Arrays.asList(1, 2, 1, 1), postedSizes);
+    }
+
+    @Test
+    public void otherErrorsFailAllTheCoalescedSends() throws Exception {
+        final TransmissionSender sender = new TransmissionSender(rateLimiter, WINDOW);
+        final CountDownLatch firstPosted = new CountDownLatch(1);
+        final CountDownLatch joined = new CountDownLatch(1);
+        final AtomicInteger posted = new AtomicInteger();
+        final Function<Json, Json> poster = body -> {
+            if (posted.incrementAndGet() == 1) {
+                firstPosted.countDown();
+                await(joined);
+                return Json.map();
+            }
+            throw error(503, null);
+        };
+
+        final Future<Json> first = executor.submit(() -> sender.sendCoalesced("key", Json.map(), recipients("first@example.com"), poster));
+        assertTrue(firstPosted.await(5, TimeUnit.SECONDS));
+        final List<Future<Json>> coalesced = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            final String address = "user" + i + "@example.com";
+            coalesced.add(executor.submit(() -> sender.sendCoalesced("key", Json.map(), recipients(address), poster)));
+            Thread.sleep(WINDOW / 3);
+        }
+        joined.countDown();
+
+        first.get(5, TimeUnit.SECONDS);
+        for (Future<Json> send : coalesced) {
+            try {
+                send.get(5, TimeUnit.SECONDS);
+                fail("SparkPost is down");
+            } catch (ExecutionException ex) {
+                assertEquals(503, ApiErrors.getStatus((EndpointException) ex.getCause()));
+            }
+        }
+        assertEquals(2, posted.get());
+    }
+
+    private static List<Json> recipients(String address) {
+        return Collections.singletonList(Json.map().set("address", address));
+    }
+
+    private static EndpointException error(int status, String retryAfter) {
+        final Json headers = Json.map();
+        if (retryAfter != null) {
+            headers.set("Retry-After", retryAfter);
+        }
+        return EndpointException.permanent(ErrorCode.API, "Error " + status, Json.map().set("status", status).set("headers", headers));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.utils.Json;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WebhookEventParserTest {
+    private static final String BATCH = "["
+            + "{\"msys\": {\"message_event\": {"
+            + "\"type\": \"bounce\", \"event_id\": \"92356927693813856\", \"bounce_class\": \"10\", \"timestamp\": \"1460989507\","
+            + "\"friendly_from\": \"Support <support+abc123@example.com>\", \"rcpt_to\": \"john@example.com\","
+            + "\"rcpt_meta\": {\"other\": {\"nested\": true}, \"slingr_message_id\": \"fn1\"},"
+            + "\"tags\": [\"a\", {\"b\": [1, 2]}], \"subject\": \"Quotes \\\" and braces } ] in \\\"strings\\\"\""
+            + "}}},"
+            + "{\"msys\": {\"track_event\": {\"type\": \"click\", \"event_id\": 123, \"timestamp\": 1460989508,"
+            + "\"msg_from\": \"msprvs1=abc+\\u0066n2@example.com\", \"rcpt_to\": \"jane@example.com\"}}},"
+            + "{\"msys\": {\"relay_message\": {\"msg_from\": \"jane@example.com\", \"rcpt_to\": \"reply+fn3@relay.example.com\","
+            + "\"content\": {\"subject\": \"Re: hello\", \"email_rfc822\": \"Subject: Re: hello\\r\\n\\r\\n\\\"quoted\\\"\", \"email_rfc822_is_base64\": false}}}}"
+            + "]";
+
+    @Test
+    public void correlationFields() {
+        final List<WebhookEvent> events = WebhookEventParser.parse(BATCH.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(3, events.size());
+
+        final WebhookEvent bounce = events.get(0);
+        assertEquals("message_event", bounce.getType());
+        assertEquals("bounce", bounce.getEventName());
+        assertEquals("92356927693813856", bounce.getEventId());
+        assertEquals("10", bounce.getBounceClass());
+        assertEquals(1460989507000L, bounce.getTimestamp());
+        assertEquals("Support <support+abc123@example.com>", bounce.getSender());
+        assertEquals("john@example.com", bounce.getRecipient());
+        // the id of the recipient metadata goes first
+        assertEquals(Arrays.asList("fn1", "abc123"), bounce.getIds());
+        assertFalse(bounce.isRelayMessage());
+
+        final WebhookEvent click = events.get(1);
+        assertEquals("track_event", click.getType());
+        assertEquals("click", click.getEventName());
+        assertEquals("123", click.getEventId());
+        assertNull(click.getBounceClass());
+        assertEquals(1460989508000L, click.getTimestamp());
+        assertEquals(Collections.singletonList("fn2"), click.getIds());
+
+        final WebhookEvent relay = events.get(2);
+        assertEquals("relay_message", relay.getType());
+        assertTrue(relay.isRelayMessage());
+        assertNull(relay.getEventId());
+        assertEquals("jane@example.com", relay.getSender());
+        assertEquals("reply+fn3@relay.example.com", relay.getRecipient());
+        assertEquals(Collections.singletonList("fn3"), relay.getIds());
+        assertTrue(relay.hasRawMessage());
+    }
+
+    @Test
+    public void payloadOfEachEvent() {
+        final List<WebhookEvent> events = WebhookEventParser.parse(BATCH);
+        final List<Json> batch = Json.parse("{\"batch\": " + BATCH + "}").jsons("batch");
+
+        for (int i = 0; i < batch.size(); i++) {
+            final Json msys = events.get(i).toJson().json("msys");
+            assertEquals(batch.get(i).json("msys").keys(), msys.keys());
+            final String type = events.get(i).getType();
+            assertEquals(batch.get(i).json("msys").json(type).keys(), msys.json(type).keys());
+            assertTrue(events.get(i).getSize() > 0);
+        }
+        assertEquals("Quotes \" and braces } ] in \"strings\"",
+                events.get(0).toJson().json("msys").json("message_event").string("subject"));
+        assertEquals("Subject: Re: hello\r\n\r\n\"quoted\"",
+                WebhookEvent.relayContent(events.get(2).toJson()).string("email_rfc822"));
+    }
+
+    @Test
+    public void sameFieldsFromJson() {
+        final List<WebhookEvent> parsed = WebhookEventParser.parse(BATCH);
+        final List<WebhookEvent> converted = WebhookEventParser.fromJson(Json.parse("{\"batch\": " + BATCH + "}").jsons("batch"));
+
+        assertEquals(parsed.size(), converted.size());
+        for (int i = 0; i < parsed.size(); i++) {
+            final WebhookEvent expected = parsed.get(i);
+            final WebhookEvent actual = converted.get(i);
+            assertEquals(expected.getType(), actual.getType());
+            assertEquals(expected.getEventName(), actual.getEventName());
+            assertEquals(expected.getEventId(), actual.getEventId());
+            assertEquals(expected.getBounceClass(), actual.getBounceClass());
+            assertEquals(expected.getTimestamp(), actual.getTimestamp());
+            assertEquals(expected.getSender(), actual.getSender());
+            assertEquals(expected.getRecipient(), actual.getRecipient());
+            assertEquals(expected.getIds(), actual.getIds());
+            assertEquals(expected.hasRawMessage(), actual.hasRawMessage());
+        }
+    }
+
+    @Test
+    public void invalidTimestamps() {
+        final List<WebhookEvent> events = WebhookEventParser.parse("["
+                + "{\"msys\": {\"message_event\": {\"timestamp\": \"not a number\"}}},"
+                + "{\"msys\": {\"message_event\": {\"timestamp\": \"1234567890123456789012\"}}}"
+                + "]");
+
+        assertEquals(0, events.get(0).getTimestamp());
+        assertEquals(0, events.get(1).getTimestamp());
+    }
+
+    @Test
+    public void emptyBatch() {
+        assertTrue(WebhookEventParser.parse("[]").isEmpty());
+        assertTrue(WebhookEventParser.fromJson(new ArrayList<>()).isEmpty());
+    }
+
+    @Test
+    public void fallbackToTheConverter() {
+        // the caller converts these bodies with the default converter
+        assertNull(WebhookEventParser.parse(null));
+        assertNull(WebhookEventParser.parse(new byte[0]));
+        assertNull(WebhookEventParser.parse(Json.list()));
+        assertNull(WebhookEventParser.parse("{\"msys\": {}}"));
+        assertNull(WebhookEventParser.parse("[1, 2]"));
+        assertNull(WebhookEventParser.parse("[{\"msys\": {\"message_event\": {\"type\": \"delivery\"}}}"));
+        assertNull(WebhookEventParser.parse("[{\"msys\": {\"message_event\": {\"type\": \"delivery}}}]"));
+        assertNull(WebhookEventParser.parse("not json"));
+    }
+
+    @Test
+    public void extractId() {
+        assertEquals("abc", WebhookEventParser.extractId("reply+abc@example.com"));
+        assertEquals("abc", WebhookEventParser.extractId("Support <reply+abc@example.com>"));
+        assertNull(WebhookEventParser.extractId("reply@example.com"));
+        assertNull(WebhookEventParser.extractId("reply+@example.com"));
+        assertNull(WebhookEventParser.extractId("reply@example+abc.com"));
+        assertNull(WebhookEventParser.extractId(" "));
+        assertNull(WebhookEventParser.extractId(null));
+    }
+}
@@ -0,0 +1,118 @@
+package io.slingr.endpoints.sparkpost;
+
+import io.slingr.endpoints.utils.Json;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WebhookEventTest {
+    private static final String MIME = "Subject: \"Café\" 😀\r\n\r\nTab\there, back\\slash and a/slash\n\b\f";
+
+    @Test
+    public void escapedRawMessage() throws IOException {
+        final String escaped = "Subject: \\\"Caf\\u00e9\\\" \\ud83d\\ude00\\r\\n\\r\\nTab\\there, back\\\\slash and a\\/slash\\n\\b\\f";
+        final WebhookEvent event = relayEvent("\"" + escaped + "\"");
+
+        assertTrue(event.hasRawMessage());
+        assertEquals(escaped.length(), event.getRawMessageSize());
+        assertEquals(MIME, new String(read(event.openRawMessage()), StandardCharsets.UTF_8));
+        // the content can be read again
+        assertEquals(MIME, new String(read(event.openRawMessage()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void rawMessageReadByByte() throws IOException {
+        final WebhookEvent event = relayEvent("\"Caf\\u00e9\\n\"");
+
+        final InputStream is = event.openRawMessage();
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        int b;
+        while ((b = is.read()) != -1) {
+            os.write(b);
+        }
+        assertEquals("Café\n", new String(os.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void unescapedUtf8RawMessage() throws IOException {
+        final WebhookEvent event = relayEvent("\"Café 😀\"");
+
+        assertEquals("Café 😀", new String(read(event.openRawMessage()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void base64RawMessage() throws IOException {
+        // encoders of JSON may escape the slashes of base64
+        final String encoded = Base64.getMimeEncoder().encodeToString(MIME.getBytes(StandardCharsets.UTF_8))
+                .replace("/", "\\/").replace("\r\n", "\\r\\n");
+        final WebhookEvent event = relayEvent("\"" + encoded + "\", \"email_rfc822_is_base64\": true");
+
+        assertEquals(MIME, new String(read(event.openRawMessage()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void rawMessageOfJsonEvent() throws IOException {
+        final Json content = Json.map().set("email_rfc822", MIME);
+        final WebhookEvent event = WebhookEventParser.fromJson(Collections.singletonList(Json.map()
+                .set("msys", Json.map().set("relay_message", Json.map().set("content", content))))).get(0);
+
+        assertTrue(event.hasRawMessage());
+        assertEquals(MIME, new String(read(event.openRawMessage()), StandardCharsets.UTF_8));
+
+        content.set("email_rfc822", Base64.getMimeEncoder().encodeToString(MIME.getBytes(StandardCharsets.UTF_8)));
+        content.set("email_rfc822_is_base64", true);
+        assertEquals(MIME, new String(read(event.openRawMessage()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void withoutRawMessage() {
+        final WebhookEvent event = relayEvent("\"" + "Subject: test\\r\\n\\r\\nbody" + "\", \"email_rfc822_is_base64\": false, \"text\": \"body\"");
+
+        final Json payload = event.toJsonWithoutRawMessage();
+        final Json content = WebhookEvent.relayContent(payload);
+        assertFalse(content.contains("email_rfc822"));
+        assertFalse(content.contains("email_rfc822_is_base64"));
+        assertEquals("body", content.string("text"));
+        assertEquals("relay@example.com", payload.json("msys").json("relay_message").string("rcpt_to"));
+        // the payload of the event is not changed
+        assertEquals("Subject: test\r\n\r\nbody", WebhookEvent.relayContent(event.toJson()).string("email_rfc822"));
+    }
+
+    @Test
+    public void eventWithoutContent() {
+        final List<WebhookEvent> events = WebhookEventParser.parse("[{\"msys\": {\"message_event\": {\"type\": \"delivery\"}}}]");
+
+        assertFalse(events.get(0).hasRawMessage());
+        assertEquals(0, events.get(0).getRawMessageSize());
+        assertNull(WebhookEvent.relayContent(events.get(0).toJsonWithoutRawMessage()));
+    }
+
+    private static WebhookEvent relayEvent(String rawMessage) {
+        final String body = "[{\"msys\": {\"message_event\": {\"type\": \"delivery\"}}},"
+                + " {\"msys\": {\"relay_message\": {\"rcpt_to\": \"relay@example.com\", \"content\": {\"email_rfc822\": " + rawMessage + "}}}}]";
+        final List<WebhookEvent> events = WebhookEventParser.parse(body.getBytes(StandardCharsets.UTF_8));
+        assertEquals(2, events.size());
+        return events.get(1);
+    }
+
+    static byte[] read(InputStream is) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[7];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            os.write(buffer, 0, read);
+        }
+        return os.toByteArray();
+    }
+}